@@ -12,7 +12,8 @@ repositories {
     mavenCentral()
 }
 
-val moduleNames = File(rootDir, "modules").listFiles().filter { it.isDirectory && it.name != "build" }.map { it.name }
+// The annotation processor only runs at compile time, so it isn't bundled.
+val moduleNames = File(rootDir, "modules").listFiles().filter { it.isDirectory && it.name != "build" && it.name != "event-processor" }.map { it.name }
 
 dependencies {
     moduleNames.forEach { name ->
@@ -1,4 +1,5 @@
 dependencies {
+    api(project(":event"))
     testImplementation(kotlin("test"))
 }
 
@@ -0,0 +1,155 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.lang.ref.PhantomReference
+import java.lang.ref.ReferenceQueue
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * A shared, size-classed pool of direct [ByteBuffer]s used to stage socket reads and writes.
+ *
+ * Buffers are handed out by [acquire] with a capacity rounded up to the nearest size class and
+ * must be given back with [release] once the I/O is done. Each size class keeps at most
+ * `maxPooledPerClass` idle buffers, extra ones are left to the garbage collector. Requests larger
+ * than the biggest size class are served by a non-pooled direct buffer.
+ *
+ * When [leakDetection] is enabled, every acquired buffer is tracked with a phantom reference.
+ * A buffer that becomes unreachable without being released is reported with the stack trace of
+ * its allocation, and releasing a buffer twice is logged as well.
+ *
+ * @param sizeClasses the capacities of the pooled buffers, in ascending order.
+ * @param maxPooledPerClass the maximum number of idle buffers kept per size class.
+ * @param leakDetection true to track acquired buffers and report leaks (debug mode).
+ */
+class BufferPool(
+    sizeClasses: IntArray = intArrayOf(1024, 8 * 1024, 64 * 1024),
+    private val maxPooledPerClass: Int = 64,
+    val leakDetection: Boolean = java.lang.Boolean.getBoolean(LEAK_DETECTION_PROPERTY)
+) {
+    private val sizeClasses = sizeClasses.copyOf().apply { sort() }
+    private val pools = Array(this.sizeClasses.size) { ArrayBlockingQueue<ByteBuffer>(maxPooledPerClass) }
+
+    private val outstanding = AtomicInteger()
+    private val leaks = AtomicInteger()
+    private val leakQueue = ReferenceQueue<ByteBuffer>()
+    private val tracked = ConcurrentHashMap<Int, MutableList<LeakTracker>>()
+
+    init {
+        require(this.sizeClasses.isNotEmpty()) { "At least one size class is required" }
+        require(this.sizeClasses.first() > 0) { "Size classes must be positive" }
+    }
+
+    /** The capacity of the biggest pooled buffer. */
+    val maxPooledCapacity: Int
+        get() = sizeClasses.last()
+
+    /** Number of buffers acquired and not yet released. */
+    val outstandingCount: Int
+        get() = outstanding.get()
+
+    /** Number of leaked buffers reported so far. Always 0 when [leakDetection] is disabled. */
+    val leakCount: Int
+        get() {
+            pollLeaks()
+            return leaks.get()
+        }
+
+    /**
+     * Acquires a cleared direct buffer with at least [minCapacity] bytes of capacity.
+     *
+     * @param minCapacity the minimum capacity of the returned buffer.
+     * @return a buffer ready to be written into, to give back with [release].
+     */
+    fun acquire(minCapacity: Int = sizeClasses.first()): ByteBuffer {
+        if (leakDetection) pollLeaks()
+
+        val index = sizeClassIndex(minCapacity)
+        val buffer = if (index < 0) {
+            ByteBuffer.allocateDirect(minCapacity)
+        } else {
+            pools[index].poll()?.clear() ?: ByteBuffer.allocateDirect(sizeClasses[index])
+        }
+
+        outstanding.incrementAndGet()
+        if (leakDetection) track(buffer)
+        return buffer
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used by the caller afterward.
+     *
+     * @param buffer a buffer previously returned by [acquire].
+     */
+    fun release(buffer: ByteBuffer) {
+        if (leakDetection && !untrack(buffer)) {
+            LOGGER.log(Level.WARNING, "Buffer released twice or not acquired from this pool.", Throwable())
+            return
+        }
+        outstanding.decrementAndGet()
+
+        val index = sizeClasses.indexOf(buffer.capacity())
+        if (index >= 0 && buffer.isDirect) {
+            pools[index].offer(buffer.clear())
+        }
+    }
+
+    private fun sizeClassIndex(capacity: Int): Int {
+        for (i in sizeClasses.indices) {
+            if (sizeClasses[i] >= capacity) return i
+        }
+        return -1
+    }
+
+    private fun track(buffer: ByteBuffer) {
+        val tracker = LeakTracker(buffer, leakQueue)
+        tracked.computeIfAbsent(System.identityHashCode(buffer)) { ArrayList(1) }
+            .let { synchronized(it) { it.add(tracker) } }
+    }
+
+    private fun untrack(buffer: ByteBuffer): Boolean {
+        val trackers = tracked[System.identityHashCode(buffer)] ?: return false
+        synchronized(trackers) {
+            val iterator = trackers.iterator()
+            while (iterator.hasNext()) {
+                val tracker = iterator.next()
+                if (tracker.refersTo(buffer)) {
+                    tracker.clear()
+                    iterator.remove()
+                    return true
+                }
+            }
+        }
+        return false
+    }
+
+    private fun pollLeaks() {
+        while (true) {
+            val tracker = leakQueue.poll() as LeakTracker? ?: return
+            tracked[tracker.hash]?.let { synchronized(it) { it.remove(tracker) } }
+            outstanding.decrementAndGet()
+            leaks.incrementAndGet()
+            LOGGER.log(Level.SEVERE, "LEAK: a ${tracker.capacity} bytes buffer was garbage collected without release().", tracker.allocation)
+        }
+    }
+
+    private class LeakTracker(buffer: ByteBuffer, queue: ReferenceQueue<ByteBuffer>) : PhantomReference<ByteBuffer>(buffer, queue) {
+        val hash = System.identityHashCode(buffer)
+        val capacity = buffer.capacity()
+        val allocation = Throwable("Buffer allocated here")
+    }
+
+    companion object {
+        private val LOGGER: Logger = Logger.getLogger(BufferPool::class.java.getName())
+
+        /** System property enabling [leakDetection] on pools created with the default value. */
+        const val LEAK_DETECTION_PROPERTY = "vallib.connection.leakDetection"
+
+        /** The pool shared by every connection of the module. */
+        @JvmStatic
+        val DEFAULT = BufferPool()
+    }
+}
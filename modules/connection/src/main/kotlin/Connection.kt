@@ -1,18 +1,29 @@
 package fr.valentinjdt.lib.tcp.connection
 
-import java.io.BufferedReader
 import java.io.IOException
-import java.io.InputStreamReader
-import java.io.PrintWriter
-import java.net.ServerSocket
-import java.net.Socket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.NetworkInterface
+import java.net.ProtocolException
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.security.MessageDigest
+import java.security.SecureRandom
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.Flow
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.BiConsumer
 import java.util.function.Consumer
 import java.util.logging.Level
 import java.util.logging.Logger
+import javax.net.ssl.SSLException
 
 
 /**
@@ -50,11 +61,48 @@ import java.util.logging.Logger
  *
  *
  * Note: The server runs in a separate thread for each client connection.
+ * Socket reads and writes are staged in direct buffers borrowed from [BufferPool].
+ * Outgoing messages go through an [OutboundQueue] per client, where control frames
+ * such as KICK are written before any queued data.
  *
  *
- * @see ServerSocket
  *
- * @see Socket
+ *
+ * When [ReliabilityOptions] are given, data messages are sequenced and acknowledged by a
+ * [ReliableSession] per client, with a bounded send window. A client whose connection is lost
+ * keeps its session for [ReliabilityOptions.resumeTimeout] and can resume it on reconnection,
+ * receiving again the messages it missed. Since client UUIDs are seen by every peer, resuming a session
+ * takes the secret token the server sent in its last `RESUMED` answer; clients ask for a first one with a
+ * `RESUME` of their own UUID.
+ *
+ *
+ *
+ * When [TlsOptions] are given, every connection is encrypted by a [TlsChannel]. The handshake
+ * runs on the client's threads, never on the accepting thread, and is recorded in [TlsOptions.stats].
+ *
+ *
+ *
+ * When [MulticastOptions] are given, GLOBAL messages are published once to a multicast group by a
+ * [MulticastPublisher]. Clients that joined the group (`MCAST JOIN`) no longer receive them over TCP;
+ * they ask for the frames they missed with `MCAST NACK <from> <to>` and get them back over TCP.
+ * Other clients keep receiving GLOBAL messages over TCP. Multicast datagrams are neither encrypted nor
+ * authenticated, so [MulticastOptions] can't be combined with [TlsOptions].
+ *
+ *
+ *
+ * Received messages are logged through a [MessageLog], which samples them and formats them on a
+ * background thread, so logging doesn't slow the handler threads down at high message rates.
+ *
+ *
+ *
+ * Messages may carry a [TraceContext] (`TRACE <traceId> <spanId> <sentAt> <message>`). The server strips it,
+ * forwards a child context with relayed messages and, when a [TraceExporter] is given, exports a [TraceSpan]
+ * per hop with the time the message was received, routed, queued and written to its target.
+ *
+ *
+ * @see ServerSocketChannel
+ *
+ * @see MessageChannel
  *
  * @see UUID
  *
@@ -64,18 +112,47 @@ import java.util.logging.Logger
  *
  * @see Consumer
  */
-class ServerSocketHandler(private val port: Int) {
-    private val clientMap = ConcurrentHashMap<UUID?, Socket?>()
-    private val writerMap = ConcurrentHashMap<UUID?, PrintWriter?>()
+class ServerSocketHandler(
+    private val port: Int,
+    private val bufferPool: BufferPool = BufferPool.DEFAULT,
+    private val reliability: ReliabilityOptions? = null,
+    private val tls: TlsOptions? = null,
+    private val multicast: MulticastOptions? = null,
+    private val messageLog: MessageLog = MessageLog.DEFAULT,
+    private val traceExporter: TraceExporter? = null
+) {
+    private val clientMap = ConcurrentHashMap<UUID, OutboundQueue>()
+    private val sessions = ConcurrentHashMap<UUID, ReliableSession>()
+    private val sessionExpirations = ConcurrentHashMap<UUID, ScheduledFuture<*>>()
+    private val resumeTokens = ConcurrentHashMap<UUID, String>()
+    private val sessionScheduler: ScheduledExecutorService by lazy {
+        Executors.newSingleThreadScheduledExecutor { Thread(it, "ServerSocketHandler-sessions").apply { isDaemon = true } }
+    }
     private val subscribers: MutableList<(UUID, String) -> Unit> =
         CopyOnWriteArrayList()
+    private val interceptors: MutableList<(UUID, String) -> Boolean> = CopyOnWriteArrayList()
     private val connectCallbacks: MutableList<(UUID) -> Unit> = CopyOnWriteArrayList()
     private val disconnectCallbacks: MutableList<(UUID) -> Unit> = CopyOnWriteArrayList()
-    private var serverSocket: ServerSocket? = null
+    private val handlerThreads: MutableSet<Thread> = ConcurrentHashMap.newKeySet()
+    private val droppedOnSend = AtomicInteger()
+    private val inbound = InboundPublisher()
+    private val multicastPublisher = multicast?.let { MulticastPublisher(it, bufferPool) }
+    private val multicastMembers: MutableSet<UUID> = ConcurrentHashMap.newKeySet()
+    private val multicastLock = Any()
+
+    @Volatile
+    private var serverChannel: ServerSocketChannel? = null
+
+    @Volatile
+    private var acceptThread: Thread? = null
 
     @Volatile
     private var isRunning = true
 
+    init {
+        require(tls == null || multicast == null) { "GLOBAL messages would be sent in cleartext over multicast beside TLS" }
+    }
+
     /**
      * Subscribes a callback to be notified when a new message is received.
      *
@@ -85,6 +162,54 @@ class ServerSocketHandler(private val port: Int) {
         subscribers.add(callback)
     }
 
+    /**
+     * Registers a callback that sees the messages meant for the subscribers first, and consumes them by returning true:
+     * consumed messages are neither logged nor passed to the subscribers or the [inboundPublisher]s.
+     *
+     * @param interceptor the callback, invoked with the UUID of the sender and the message string.
+     */
+    internal fun intercept(interceptor: (UUID, String) -> Boolean) {
+        interceptors.add(interceptor)
+    }
+
+    /**
+     * Returns a [Flow.Publisher] of the messages received from every client, i.e. the messages
+     * passed to [subscribe] callbacks.
+     *
+     * Demand is applied to the sockets: while a subscriber has no outstanding demand, the server stops
+     * reading from the clients, so TCP flow control slows them down instead of queueing their messages.
+     * Subscriptions complete when the server is stopped.
+     *
+     * @return a publisher that can be subscribed to any number of times.
+     */
+    fun inboundPublisher(): Flow.Publisher<ClientMessage> = Flow.Publisher { inbound.subscribe(null, it) }
+
+    /**
+     * Returns a [Flow.Publisher] of the messages received from one client.
+     * Only the reads of that client are paused while a subscriber has no outstanding demand.
+     * Subscriptions complete when the client disconnects or the server is stopped.
+     *
+     * @param uuid the UUID of the client.
+     * @return a publisher that can be subscribed to any number of times.
+     */
+    fun inboundPublisher(uuid: UUID): Flow.Publisher<ClientMessage> = Flow.Publisher { inbound.subscribe(uuid, it) }
+
+    /**
+     * Returns a [Flow.Subscriber] sending each [ClientMessage] to its recipient with [sendToClient].
+     *
+     * The subscriber requests [batchSize] messages ahead and only requests the next one once the recipient's
+     * outbound queue holds at most [highWatermark] messages, so a slow client slows the publisher down.
+     * With reliability enabled, sends also wait for the client's send window.
+     *
+     * @param batchSize the number of messages requested ahead.
+     * @param highWatermark the outbound queue length above which requests are postponed.
+     * @return a subscriber to subscribe to a single publisher.
+     */
+    fun outboundSubscriber(batchSize: Int = 16, highWatermark: Int = 64): Flow.Subscriber<ClientMessage> {
+        require(batchSize > 0) { "batchSize must be positive" }
+        return OutboundSubscriber(this, batchSize, highWatermark)
+    }
+
     /**
      * Registers a callback to be executed when a client connects.
      *
@@ -108,26 +233,32 @@ class ServerSocketHandler(private val port: Int) {
      * This method initializes the server socket on the specified port and
      * continuously accepts client connections while the server is running.
      * Each client connection is handled in a separate thread.
+     * The method returns once [stop] or [shutdown] closes the server socket.
      *
      * @throws IOException if an I/O error occurs when opening the socket.
      */
     fun start() {
         try {
-            serverSocket = ServerSocket(port)
+            val channel = ServerSocketChannel.open().bind(InetSocketAddress(port))
+            serverChannel = channel
+            acceptThread = Thread.currentThread()
             LOGGER.info("Server started on port $port")
 
+            // The channel is closed by stop/shutdown after isRunning is cleared, which ends accept().
             while (isRunning) {
-                val clientSocket = serverSocket!!.accept()
-                val clientUUID = addClient(clientSocket)
-
-                Thread(Runnable {
-                    try {
-                        handleClient(clientUUID, clientSocket)
-                    } catch (e: Exception) {
-                        LOGGER.info("Client disconnected: $clientUUID")
-                        removeClient(clientUUID, clientSocket)
-                    }
-                }).start()
+                val socketChannel = channel.accept()
+                if (!isRunning) {
+                    socketChannel.close()
+                    break
+                }
+                acceptClient(MessageChannel(
+                    tls?.let { TlsChannel(socketChannel, it.serverEngine(), bufferPool, it.stats) } ?: socketChannel,
+                    bufferPool
+                ))
+            }
+        } catch (e: ClosedChannelException) {
+            if (isRunning) {
+                LOGGER.log(Level.SEVERE, "Server error", e)
             }
         } catch (e: IOException) {
             LOGGER.log(Level.SEVERE, "Server error", e)
@@ -140,62 +271,259 @@ class ServerSocketHandler(private val port: Int) {
      * during the closing of the server socket and logs an info message when the server is stopped.
      */
     fun stop() {
+        stopAccepting()
+        clientMap.keys.forEach(Consumer { uuid: UUID -> this.kickClient(uuid) })
+        inbound.completeAll()
+        multicastPublisher?.close()
+        LOGGER.info("Server stopped.")
+    }
+
+    /**
+     * Gracefully shuts the server down, so a rolling restart doesn't lose traffic.
+     *
+     * 1. New connections are no longer accepted and the accept loop is joined.
+     * 2. Every client's outbound queue is given until the deadline to drain.
+     * 3. Each client receives a `RECONNECT <delay>` control frame, hinting it to connect again later,
+     *    and its channel is closed once the control lane is flushed.
+     * 4. The per-client handler threads are joined.
+     *
+     * Whatever is still queued when the deadline elapses is dropped and reported.
+     *
+     * @param timeout the maximum time to spend draining and waiting for threads.
+     * @param unit the unit of [timeout].
+     * @param reconnectDelay the delay, in milliseconds, clients are asked to wait before reconnecting.
+     * @return a report with the number of dropped messages.
+     */
+    fun shutdown(timeout: Long, unit: TimeUnit = TimeUnit.MILLISECONDS, reconnectDelay: Long = 1000L): ShutdownReport {
+        val deadline = System.nanoTime() + unit.toNanos(timeout)
+        val remaining = { (deadline - System.nanoTime()).coerceAtLeast(0L) }
+
+        stopAccepting()
+        acceptThread?.takeIf { it != Thread.currentThread() }?.join(TimeUnit.NANOSECONDS.toMillis(remaining()) + 1)
+
+        val queues = clientMap.values.toList()
+        droppedOnSend.set(0)
+
+        while (queues.any { it.pendingCount > 0 } && remaining() > 0) {
+            Thread.sleep(DRAIN_POLL_INTERVAL)
+        }
+
+        queues.forEach { queue ->
+            queue.offer("RECONNECT $reconnectDelay", OutboundQueue.Lane.CONTROL)
+            queue.close()
+        }
+
+        var timedOut = false
+        queues.forEach { queue ->
+            if (!queue.awaitTermination(remaining(), TimeUnit.NANOSECONDS)) {
+                timedOut = true
+                queue.closeNow()
+            }
+        }
+        clientMap.clear()
+        sessions.clear()
+        resumeTokens.clear()
+        sessionExpirations.values.forEach { it.cancel(false) }
+        sessionExpirations.clear()
+        inbound.completeAll()
+        multicastMembers.clear()
+        multicastPublisher?.close()
+
+        handlerThreads.toList().forEach { thread ->
+            thread.join(TimeUnit.NANOSECONDS.toMillis(remaining()) + 1)
+            if (thread.isAlive) timedOut = true
+        }
+
+        val report = ShutdownReport(queues.size, queues.sumOf { it.droppedCount } + droppedOnSend.get(), timedOut)
+        LOGGER.info("Server shut down: $report")
+        return report
+    }
+
+    /**
+     * Clears the running flag, then closes the server socket so a blocked accept returns.
+     * Logs any IOException that occurs during the closing of the server socket.
+     */
+    private fun stopAccepting() {
         isRunning = false
-        clientMap.keys.forEach(Consumer { uuid: UUID? -> this.kickClient(uuid!!) })
-        if (serverSocket != null) {
+        try {
+            serverChannel?.close()
+        } catch (e: IOException) {
+            LOGGER.log(Level.SEVERE, "Server error", e)
+        }
+    }
+
+    /**
+     * Registers a connected client and starts its handler thread.
+     * Used by the accept loop and by [WebSocketGateway], so every client shares the same table and routing.
+     *
+     * @param clientChannel the channel of the client, closed right away if the server is stopped
+     */
+    internal fun acceptClient(clientChannel: FramedChannel) {
+        if (!isRunning) {
+            clientChannel.close()
+            return
+        }
+        val clientUUID = addClient(clientChannel)
+
+        val thread = Thread(Runnable {
             try {
-                serverSocket!!.close()
-            } catch (e: IOException) {
-                LOGGER.log(Level.SEVERE, "Server error", e)
+                handleClient(clientUUID, clientChannel)
+            } finally {
+                handlerThreads.remove(Thread.currentThread())
             }
-        }
-        LOGGER.info("Server stopped.")
+        }, "ServerSocketHandler-reader-$clientUUID")
+        handlerThreads.add(thread)
+        thread.start()
     }
 
     /**
      * Adds a client to the server by generating a unique UUID for the client,
-     * storing the client's socket and output stream writer in respective maps,
+     * storing the client's outbound queue in the client map,
      * and notifying all registered connection callbacks.
      *
-     * @param clientSocket the socket of the client to be added
+     * @param clientChannel the message channel of the client to be added
      * @return the UUID assigned to the connected client
      */
-    private fun addClient(clientSocket: Socket): UUID {
+    private fun addClient(clientChannel: FramedChannel): UUID {
         val clientUUID = UUID.randomUUID()
-        clientMap.put(clientUUID, clientSocket)
-        try {
-            val writer = PrintWriter(clientSocket.getOutputStream(), true)
-            writerMap.put(clientUUID, writer)
-            sendToClient(clientUUID, clientUUID.toString())
-            connectCallbacks.forEach { cb -> cb(clientUUID) }
-        } catch (e: IOException) {
-            LOGGER.log(Level.SEVERE, e.message, e)
+        val queue = OutboundQueue(clientChannel, "ServerSocketHandler-writer-$clientUUID")
+        clientMap.put(clientUUID, queue)
+        sendToClient(clientUUID, clientUUID.toString(), OutboundQueue.Lane.CONTROL)
+        multicast?.let {
+            sendToClient(clientUUID, "${MulticastPublisher.MCAST} GROUP ${it.group.hostAddress} ${it.port}", OutboundQueue.Lane.CONTROL)
         }
+        reliability?.let { options -> sessions.put(clientUUID, ReliableSession(options).apply { attach(queue::offer, 0L) }) }
+        connectCallbacks.forEach { cb -> cb(clientUUID) }
         LOGGER.info("Client connected: $clientUUID")
         return clientUUID
     }
 
     /**
      * Handles communication with a client connected to the server.
+     * A `RESUME` request moves the connection to the resumed session's UUID.
+     * When the connection is lost, the client's reliable session, if any, is kept for it to resume.
      *
-     * @param uuid   the unique identifier of the client
-     * @param socket the socket associated with the client connection
+     * @param uuid    the unique identifier of the client
+     * @param channel the message channel associated with the client connection
      */
-    private fun handleClient(uuid: UUID, socket: Socket) {
+    private fun handleClient(uuid: UUID, channel: FramedChannel) {
+        var clientUUID = uuid
         try {
-            BufferedReader(InputStreamReader(socket.getInputStream())).use { reader ->
-                reader.lines().forEach { message: String? -> processMessage(uuid, socket, message!!) }
+            channel.use {
+                while (channel.isOpen) {
+                    inbound.awaitDemand(clientUUID, channel)
+                    val message = channel.readMessage() ?: break
+                    if (reliability != null && message.startsWith(ReliableSession.RESUME + " ")) {
+                        clientUUID = resumeSession(clientUUID, message)
+                    } else {
+                        processMessage(clientUUID, channel, message)
+                    }
+                }
             }
+        } catch (e: ProtocolException) {
+            LOGGER.warning("Invalid frame from $clientUUID, connection closed: ${e.message}")
         } catch (e: IOException) {
-            LOGGER.log(Level.SEVERE, "Message parsing not working", e)
+            if (channel.isOpen) {
+                LOGGER.log(Level.SEVERE, "Message parsing not working", e)
+            }
+        } catch (e: Exception) {
+            LOGGER.info("Client disconnected: $clientUUID")
+            removeClient(clientUUID, channel)
+        }
+        if (reliability == null) {
+            inbound.complete(clientUUID)
+        } else if (clientMap.get(clientUUID)?.channel === channel) {
+            detachSession(clientUUID)
+        }
+    }
+
+    /**
+     * Handles a `RESUME <uuid> <lastReceived> <token>` request sent by a reconnecting client.
+     * If the session of that UUID is waiting to be resumed and the token is the last one issued for it,
+     * the connection takes it over: the server answers `RESUMED <uuid> <lastReceived> <newToken>` and
+     * retransmits what the client missed. Otherwise, including when a new client asks for its first token,
+     * the client is told to go on with a new session on its current UUID, and gets the token to resume it.
+     *
+     * @param current the UUID assigned to the connection when it was accepted
+     * @param message the resume request
+     * @return the UUID the connection is now bound to
+     */
+    private fun resumeSession(current: UUID, message: String): UUID {
+        val parts = message.split(' ')
+        val previous = parts.getOrNull(1)?.let { runCatching { UUID.fromString(it) }.getOrNull() }
+        val peerLastReceived = parts.getOrNull(2)?.toLongOrNull() ?: 0L
+        val token = parts.getOrNull(3).orEmpty()
+        val queue = clientMap.get(current) ?: return current
+        val session = previous?.let { sessions.get(it) }
+
+        if (previous == null || previous == current || session == null || session.isAttached || !tokenMatches(previous, token)) {
+            queue.offer("${ReliableSession.RESUMED} $current 0 ${issueResumeToken(current)}", OutboundQueue.Lane.CONTROL)
+            return current
         }
+
+        sessionExpirations.remove(previous)?.cancel(false)
+        sessions.remove(current)
+        resumeTokens.remove(current)
+        clientMap.remove(current)
+        multicastMembers.remove(current)
+        clientMap.put(previous, queue)
+        queue.offer("${ReliableSession.RESUMED} $previous ${session.lastReceivedSeq} ${issueResumeToken(previous)}", OutboundQueue.Lane.CONTROL)
+        session.attach(queue::offer, peerLastReceived)
+        disconnectCallbacks.forEach { cb -> cb(current) }
+        LOGGER.info("Client $previous resumed its session.")
+        return previous
+    }
+
+    /**
+     * Issues a new resume token for the session of a client, replacing the previous one.
+     *
+     * @param uuid the UUID of the client
+     * @return the token, to send in a `RESUMED` frame
+     */
+    private fun issueResumeToken(uuid: UUID): String {
+        val bytes = ByteArray(RESUME_TOKEN_BYTES).also { RANDOM.nextBytes(it) }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes).also { resumeTokens.put(uuid, it) }
+    }
+
+    /**
+     * Checks the token of a `RESUME` request in constant time, so its value can't be guessed from timings.
+     *
+     * @param uuid  the UUID of the session to resume
+     * @param token the token sent by the client
+     */
+    private fun tokenMatches(uuid: UUID, token: String): Boolean {
+        val expected = resumeTokens.get(uuid) ?: return false
+        return MessageDigest.isEqual(expected.toByteArray(), token.toByteArray())
+    }
+
+    /**
+     * Keeps the session of a client whose connection was lost, for [ReliabilityOptions.resumeTimeout].
+     * If it isn't resumed in time, the client is removed and disconnection callbacks are notified.
+     *
+     * @param uuid the UUID of the client
+     */
+    private fun detachSession(uuid: UUID) {
+        if (!isRunning) return
+        val session = sessions.get(uuid) ?: return
+        clientMap.remove(uuid)?.closeNow()
+        multicastMembers.remove(uuid)
+        session.detach()
+        LOGGER.info("Connection of $uuid lost, session kept for ${reliability!!.resumeTimeout} ms.")
+        sessionExpirations.put(uuid, sessionScheduler.schedule({
+            sessionExpirations.remove(uuid)
+            if (!session.isAttached && sessions.remove(uuid, session)) {
+                resumeTokens.remove(uuid)
+                inbound.complete(uuid)
+                disconnectCallbacks.forEach { cb -> cb(uuid) }
+            }
+        }, reliability.resumeTimeout, TimeUnit.MILLISECONDS))
     }
 
     /**
      * Processes a message received from a client identified by a UUID.
      *
      * @param uuid    The UUID of the client sending the message.
-     * @param socket  The socket associated with the client.
+     * @param channel The message channel associated with the client.
      * @param message The message received from the client.
      *
      * The message is processed based on its type:
@@ -203,17 +531,47 @@ class ServerSocketHandler(private val port: Int) {
      * - "GLOBAL": Broadcasts a message to all connected clients.
      * - "DISCONNECT": Handles client disconnection.
      * - Default: Logs the message and notifies subscribers.
+     *
+     * A leading trace context is stripped first, and passed on to the relayed messages.
+     *
+     * With reliability enabled, "SEQ" frames are unwrapped and processed once, in order,
+     * then acknowledged; "ACK" and "ACKREQ" frames drive the client's send window.
+     *
+     * @throws ProtocolException if a "SEQ" frame is out of sequence.
+     */
+    private fun processMessage(uuid: UUID, channel: FramedChannel, message: String) {
+        if (reliability != null && processReliabilityFrame(uuid, channel, message)) {
+            return
+        }
+        routeMessage(uuid, channel, message)
+    }
+
+    /**
+     * Routes a message received from a client, once unwrapped from the reliability layer.
+     *
+     * @param uuid    The UUID of the client sending the message.
+     * @param channel The message channel associated with the client.
+     * @param message The message received from the client.
      */
-    private fun processMessage(uuid: UUID, socket: Socket, message: String) {
-        when (message.split(DELIMITER.toRegex(), limit = 2).toTypedArray()[0]) {
+    private fun routeMessage(uuid: UUID, channel: FramedChannel, message: String) {
+        if (multicastPublisher != null && message.startsWith(MulticastPublisher.MCAST + " ")) {
+            processMulticastRequest(uuid, message)
+            return
+        }
+        val receivedAt = if (traceExporter != null) TraceContext.nowMicros() else -1L
+        val traced = TraceContext.unwrap(message)
+        val context = traced?.first
+        val text = traced?.second ?: message
+        when (commandOf(text)) {
             "TO" -> {
-                val targetUUIDMessage = message.substring("TO".length).trim { it <= ' ' }
-                val targetUUID = targetUUIDMessage.substring(0, targetUUIDMessage.indexOf(':')).trim { it <= ' ' }
-                val actualMessage = targetUUIDMessage.substring(targetUUIDMessage.indexOf(':') + 1).trim { it <= ' ' }
+                val targetUUIDMessage = text.substring("TO".length).trim { it <= ' ' }
+                val separator = targetUUIDMessage.indexOf(':')
+                val targetUUID = if (separator < 0) "" else targetUUIDMessage.substring(0, separator).trim { it <= ' ' }
+                val actualMessage = targetUUIDMessage.substring(separator + 1).trim { it <= ' ' }
 
                 try {
                     val targetUUIDParsed = UUID.fromString(targetUUID)
-                    sendToClient(targetUUIDParsed, "FROM $uuid: $actualMessage")
+                    relay(uuid, targetUUIDParsed, "FROM $uuid: $actualMessage", context, receivedAt)
                 } catch (e: IllegalArgumentException) {
                     LOGGER.log(Level.WARNING, "Invalid UUID format from client $uuid.")
                     sendToClient(uuid, "Invalid UUID format.")
@@ -221,71 +579,242 @@ class ServerSocketHandler(private val port: Int) {
             }
 
             "GLOBAL" -> {
-                val actualMessage = message.substring("GLOBAL:".length).trim { it <= ' ' }
-                broadcastMessage(uuid, actualMessage)
+                val actualMessage = text.substring("GLOBAL:".length).trim { it <= ' ' }
+                broadcastMessage(uuid, actualMessage, context, receivedAt)
             }
 
             "DISCONNECT" -> {
                 LOGGER.log(Level.INFO, "Client $uuid requested disconnection.")
-                removeClient(uuid, socket)
+                removeClient(uuid, channel)
             }
 
             else -> {
-                LOGGER.info("Received from $uuid: $message")
-                subscribers.forEach{ cb -> cb(uuid, message) }
+                if (interceptors.any { it(uuid, text) }) return
+                messageLog.log(LOGGER, "Received from", uuid, text)
+                if (context != null && traceExporter != null) {
+                    traceExporter.export(TraceSpan(
+                        TraceSpan.Kind.RELAY, context.traceId, context.child().spanId, context.spanId, uuid, null,
+                        context.sentAt, receivedAt, routedAt = TraceContext.nowMicros()
+                    ))
+                }
+                subscribers.forEach{ cb -> cb(uuid, text) }
+                inbound.publish(ClientMessage(uuid, text))
             }
         }
     }
 
     /**
-     * Removes a client from the server based on the provided UUID and closes the associated socket.
+     * Returns the command of a message: "TO <uuid>: message" carries it before a space,
+     * "GLOBAL: message" before the delimiter.
+     *
+     * @param message the message received from a client
+     * @return the command, or the start of the message if it has none
+     */
+    private fun commandOf(message: String): String = message.substringBefore(DELIMITER).substringBefore(' ')
+
+    /**
+     * Sends a message relayed from one client to another, with the next hop of its trace context if it had one.
+     * When a [TraceExporter] is set, the span of the hop is exported once the message is written,
+     * or once queued with reliability enabled, since sessions write it later and possibly more than once.
      *
-     * @param uuid   the unique identifier of the client to be removed
-     * @param socket the socket associated with the client to be closed
+     * @param sender     the UUID of the client that sent the message
+     * @param target     the UUID of the client to relay the message to
+     * @param message    the message to relay
+     * @param context    the trace context of the received message, or null
+     * @param receivedAt the time the message was received, in microseconds since the epoch
      */
-    private fun removeClient(uuid: UUID, socket: Socket) {
-        clientMap.remove(uuid)
-        val writer = writerMap.remove(uuid)
-        if (writer != null) {
-            writer.close()
+    private fun relay(sender: UUID, target: UUID, message: String, context: TraceContext?, receivedAt: Long) {
+        if (context == null) {
+            sendToClient(target, message)
+            return
+        }
+        val hop = context.child()
+        val exporter = traceExporter
+        if (exporter == null) {
+            sendToClient(target, hop.wrap(message))
+            return
+        }
+        val span = TraceSpan(
+            TraceSpan.Kind.RELAY, hop.traceId, hop.spanId, context.spanId, sender, target,
+            context.sentAt, receivedAt, routedAt = TraceContext.nowMicros()
+        )
+        val frame = hop.wrap(message)
+        if (reliability != null) {
+            sendToClient(target, frame)
+            exporter.export(span.copy(enqueuedAt = TraceContext.nowMicros()))
+            return
+        }
+        val enqueuedAt = TraceContext.nowMicros()
+        offerToClient(target, frame, OutboundQueue.Lane.DATA) {
+            exporter.export(span.copy(enqueuedAt = enqueuedAt, flushedAt = TraceContext.nowMicros()))
         }
+    }
+
+    /**
+     * Handles the multicast requests of a client:
+     * - `MCAST JOIN`: the client joined the group; GLOBAL messages are no longer sent to it over TCP,
+     *   and it is told the first sequence number to expect with `MCAST JOINED <seq>`.
+     * - `MCAST NACK <from> <to>`: the client missed frames; they are sent again as `MCAST DATA <seq> <frame>`,
+     *   followed by `MCAST LOST <from> <to>` for the ones already evicted from the history.
+     *
+     * @param uuid    The UUID of the client sending the request.
+     * @param message The request.
+     */
+    private fun processMulticastRequest(uuid: UUID, message: String) {
+        val publisher = multicastPublisher ?: return
+        val parts = message.split(' ')
+        when (parts.getOrNull(1)) {
+            "JOIN" -> {
+                val from = synchronized(multicastLock) {
+                    multicastMembers.add(uuid)
+                    publisher.nextSeq
+                }
+                sendToClient(uuid, "${MulticastPublisher.MCAST} JOINED $from", OutboundQueue.Lane.CONTROL)
+            }
+            "NACK" -> {
+                val from = parts.getOrNull(2)?.toLongOrNull() ?: return
+                val to = parts.getOrNull(3)?.toLongOrNull() ?: return
+                var lostUpTo = from - 1
+                for (seq in from..minOf(to, from + multicast!!.historySize)) {
+                    val frame = publisher.retransmit(seq)
+                    if (frame == null) {
+                        lostUpTo = seq
+                    } else {
+                        sendToClient(uuid, "${MulticastPublisher.MCAST} DATA $seq $frame")
+                    }
+                }
+                if (lostUpTo >= from) {
+                    sendToClient(uuid, "${MulticastPublisher.MCAST} LOST $from $lostUpTo")
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the frames of the reliability layer.
+     *
+     * @return true if the message was a reliability frame
+     */
+    private fun processReliabilityFrame(uuid: UUID, channel: FramedChannel, message: String): Boolean {
+        val session = sessions.get(uuid) ?: return false
+        when {
+            message.startsWith(ReliableSession.SEQ + " ") -> {
+                val (seq, payload) = ReliableSession.parseData(message) ?: return true
+                if (session.onData(seq)) {
+                    routeMessage(uuid, channel, payload)
+                }
+                session.acknowledge()
+            }
+            message == ReliableSession.ACK_REQUEST -> session.acknowledge(true)
+            message.startsWith(ReliableSession.ACK + " ") -> {
+                message.substring(ReliableSession.ACK.length + 1).toLongOrNull()?.let { session.onAck(it) }
+            }
+            else -> return false
+        }
+        return true
+    }
+
+    /**
+     * Removes a client from the server based on the provided UUID and closes the associated channel.
+     *
+     * @param uuid    the unique identifier of the client to be removed
+     * @param channel the message channel associated with the client to be closed
+     */
+    private fun removeClient(uuid: UUID, channel: FramedChannel) {
+        sessions.remove(uuid)
+        resumeTokens.remove(uuid)
+        sessionExpirations.remove(uuid)?.cancel(false)
+        val queue = clientMap.remove(uuid)
+        multicastMembers.remove(uuid)
+        inbound.complete(uuid)
         disconnectCallbacks.forEach { cb -> cb(uuid) }
-        try {
-            socket.close()
-        } catch (e: IOException) {
-            LOGGER.log(Level.SEVERE, "Error sending message to client $uuid.", e)
-            clientMap.remove(uuid)
+        if (queue != null) {
+            queue.closeNow()
+        } else {
+            try {
+                channel.close()
+            } catch (e: IOException) {
+                LOGGER.log(Level.SEVERE, "Error sending message to client $uuid.", e)
+            }
         }
     }
 
     /**
      * Sends a message to the client identified by the given UUID.
+     * The message is queued on the given lane of the client's [OutboundQueue]:
+     * [OutboundQueue.Lane.CONTROL] messages are written before any queued data.
+     * With reliability enabled, data messages go through the client's [ReliableSession]
+     * and may block while its send window is full. Threads reading from the clients, which run the
+     * subscribers, never block: they must go on reading the acks that open the window.
      *
      * @param uuid    the UUID of the client to send the message to
      * @param message the message to be sent to the client
+     * @param lane    the lane of the outbound queue, [OutboundQueue.Lane.DATA] by default
      */
-    fun sendToClient(uuid: UUID?, message: String?) {
-        val clientSocket = clientMap.get(uuid)
-        if (clientSocket != null) {
-            val writer = writerMap.get(uuid)
-            if (writer != null) {
-                writer.println(message)
-            } else {
-                LOGGER.warning("Client writer for $uuid not found or disconnected.")
+    fun sendToClient(uuid: UUID?, message: String?, lane: OutboundQueue.Lane = OutboundQueue.Lane.DATA) {
+        if (uuid == null) return
+        if (reliability != null && lane == OutboundQueue.Lane.DATA) {
+            val session = sessions.get(uuid) ?: return
+            if (!session.send(message.toString(), wait = Thread.currentThread() !in handlerThreads)) {
+                droppedOnSend.incrementAndGet()
+                LOGGER.warning("Send window of $uuid stayed full, message dropped.")
             }
+            return
+        }
+        offerToClient(uuid, message.toString(), lane, null)
+    }
+
+    /**
+     * Queues a message on the outbound queue of a client, bypassing the reliability layer.
+     *
+     * @param uuid      the UUID of the client
+     * @param message   the message to queue
+     * @param lane      the lane of the outbound queue
+     * @param onWritten called once the message is written, or null
+     */
+    private fun offerToClient(uuid: UUID, message: String, lane: OutboundQueue.Lane, onWritten: (() -> Unit)?) {
+        val queue = clientMap.get(uuid) ?: return
+        if (!queue.offer(message, lane, onWritten)) {
+            droppedOnSend.incrementAndGet()
+            LOGGER.warning("Client writer for $uuid not found or disconnected.")
         }
     }
 
+    /**
+     * Runs a callback once the outbound queue of a client holds at most [count] messages,
+     * or right away if the client isn't connected.
+     *
+     * @param uuid     the UUID of the client
+     * @param count    the number of pending messages to wait for
+     * @param callback the function to call
+     */
+    internal fun whenOutboundBelow(uuid: UUID, count: Int, callback: () -> Unit) {
+        clientMap.get(uuid)?.whenPendingAtMost(count, callback) ?: callback()
+    }
+
     /**
      * Broadcasts a message to all connected clients except the sender.
      *
+     * With multicast enabled, the message is published once to the group and only sent over TCP
+     * to the clients that didn't join it.
+     *
      * @param senderUUID the UUID of the client sending the message
      * @param message    the message to be broadcasted
+     * @param context    the trace context of the message, passed on to the clients reached over TCP, or null
+     * @param receivedAt the time the message was received, in microseconds since the epoch
      */
-    private fun broadcastMessage(senderUUID: UUID?, message: String?) {
-        clientMap.keys.forEach(Consumer { targetUUID: UUID? ->
+    private fun broadcastMessage(senderUUID: UUID, message: String?, context: TraceContext?, receivedAt: Long) {
+        // Reliable sessions waiting to be resumed are skipped, since nothing drains their window.
+        val targets: Collection<UUID> = clientMap.keys
+        val unicastTargets = multicastPublisher?.let { publisher ->
+            synchronized(multicastLock) {
+                // Members joining after this point are told to expect the next sequence number.
+                if (publisher.publish("GLOBAL $senderUUID: $message") < 0) targets else targets.filter { it !in multicastMembers }
+            }
+        } ?: targets
+        unicastTargets.forEach(Consumer { targetUUID: UUID ->
             if (targetUUID != senderUUID) {
-                sendToClient(targetUUID, "GLOBAL $senderUUID: $message")
+                relay(senderUUID, targetUUID, "GLOBAL $senderUUID: $message", context, receivedAt)
             }
         })
     }
@@ -294,9 +823,10 @@ class ServerSocketHandler(private val port: Int) {
      * Kicks a client from the server based on their UUID.
      *
      *
-     * This method sends a "KICK" message to the client, removes the client from the
-     * client map,
-     * and closes the client's socket connection. If the client is not found or
+     * This method queues a "KICK" message on the control lane of the client, removes
+     * the client from the client map,
+     * and closes the client's channel once the control lane is flushed. Queued data
+     * is dropped. If the client is not found or
      * already disconnected,
      * a warning is logged.
      *
@@ -304,15 +834,15 @@ class ServerSocketHandler(private val port: Int) {
      * @param uuid the UUID of the client to be kicked
      */
     fun kickClient(uuid: UUID) {
-        val clientSocket = clientMap.get(uuid)
-        if (clientSocket != null) {
-            sendToClient(uuid, "KICK")
-            clientMap.remove(uuid)
-            try {
-                clientSocket.close()
-            } catch (e: IOException) {
-                e.printStackTrace()
-            }
+        sessions.remove(uuid)
+        resumeTokens.remove(uuid)
+        sessionExpirations.remove(uuid)?.cancel(false)
+        val queue = clientMap.remove(uuid)
+        multicastMembers.remove(uuid)
+        inbound.complete(uuid)
+        if (queue != null) {
+            queue.offer("KICK", OutboundQueue.Lane.CONTROL)
+            queue.close()
             LOGGER.log(Level.INFO, "Client {0} has been kicked.", uuid)
         } else {
             LOGGER.log(Level.WARNING, "Client {0} not found or already disconnected.", uuid)
@@ -322,6 +852,9 @@ class ServerSocketHandler(private val port: Int) {
     companion object {
         private val LOGGER: Logger = Logger.getLogger(ServerSocketHandler::class.java.getName())
         private const val DELIMITER = ":"
+        private const val DRAIN_POLL_INTERVAL = 10L
+        private const val RESUME_TOKEN_BYTES = 24
+        private val RANDOM = SecureRandom()
     }
 }
 
@@ -332,6 +865,10 @@ class ServerSocketHandler(private val port: Int) {
  * This class manages the connection to a server, including retrying connections,
  * handling incoming messages, and sending messages to the server. It also supports
  * subscribing to incoming messages and handling kick events from the server.
+ * When the server shuts down gracefully and sends a `RECONNECT <delay>` hint, the client
+ * reconnects after that delay and sends the messages queued in the meantime.
+ * With [ReliabilityOptions], messages are sequenced and acknowledged, and a reconnection
+ * resumes the previous session so that nothing in flight is lost.
  *
  *
  * Usage example:
@@ -351,6 +888,12 @@ class ServerSocketHandler(private val port: Int) {
  *  * `serverPort` - The port number of the server to connect to.
  *  * `maxRetries` - The maximum number of connection attempts before giving up.
  *  * `retryTimeout` - The time to wait between connection attempts in milliseconds.
+ *  * `bufferPool` - The pool providing the direct buffers used to stage reads and writes.
+ *  * `reliability` - The settings of the reliability layer, or null to disable it.
+ *  * `tls` - The settings of the TLS layer, or null to connect in plaintext.
+ *  * `multicastInterface` - The interface used to join the server's multicast group, or null to receive GLOBAL messages over TCP.
+ *  * `messageLog` - The asynchronous, sampled log received messages are written to.
+ *  * `traceExporter` - Receives a span for each traced message delivered to this client; when set, sent messages start a new trace.
  *
  *
  *
@@ -370,7 +913,13 @@ class ClientSocketHandler(
     private val serverIp: String,
     private val serverPort: Int,
     private val maxRetries: Int = 3,
-    private val retryTimeout: Long = 1000L
+    private val retryTimeout: Long = 1000L,
+    private val bufferPool: BufferPool = BufferPool.DEFAULT,
+    reliability: ReliabilityOptions? = null,
+    private val tls: TlsOptions? = null,
+    private val multicastInterface: NetworkInterface? = null,
+    private val messageLog: MessageLog = MessageLog.DEFAULT,
+    private val traceExporter: TraceExporter? = null
 ) {
     /**
      * Retrieves the UUID of the client.
@@ -379,9 +928,24 @@ class ClientSocketHandler(
      */
     var uuid: UUID? = null
         private set
-    private var socket: Socket? = null
+    @Volatile
+    private var channel: MessageChannel? = null
+    @Volatile
+    private var outbound: OutboundQueue? = null
     private val subscribers: MutableList<(String?) -> Unit> = ArrayList()
+    private val interceptors: MutableList<(String) -> Boolean> = ArrayList()
     private val kickCallbacks: MutableList<() -> Unit> = ArrayList()
+    private val pendingWhileReconnecting = ArrayDeque<String>()
+    private var reconnecting = false
+    private val session: ReliableSession? = reliability?.let { ReliableSession(it) }
+    @Volatile
+    private var resumingFrom: UUID? = null
+    @Volatile
+    private var resumeToken: String? = null
+    @Volatile
+    private var multicastReceiver: MulticastReceiver? = null
+    @Volatile
+    private var readerThread: Thread? = null
 
     /**
      * Attempts to establish a connection, retrying up to a maximum number of times specified by `maxRetries`.
@@ -403,18 +967,49 @@ class ClientSocketHandler(
      * Attempts to establish a connection to the server using the specified server IP and port.
      * If the connection is successful, it reads the UUID from the server, logs the connection,
      * and starts a new thread to listen to the server.
+     * The same [MessageChannel] is kept for the listening thread, so nothing read after the UUID is lost.
+     * With reliability enabled, a reconnection asks the server to resume the previous session.
+     * With TLS enabled, the handshake runs while reading the UUID.
      *
      * @return true if the connection is successfully established, false otherwise.
      */
     private fun tryConnecting(): Boolean {
+        var opened: MessageChannel? = null
         try {
-            socket = Socket(serverIp, serverPort)
-            val reader = BufferedReader(InputStreamReader(socket!!.getInputStream()))
-            this.uuid = UUID.fromString(reader.readLine())
+            val socketChannel = SocketChannel.open(InetSocketAddress(serverIp, serverPort))
+            val channel = MessageChannel(
+                tls?.let { TlsChannel(socketChannel, it.clientEngine(serverIp, serverPort), bufferPool, it.stats) } ?: socketChannel,
+                bufferPool
+            )
+            opened = channel
+            this.channel = channel
+            val previous = this.uuid
+            this.uuid = UUID.fromString(channel.readMessage() ?: throw IOException("Connection closed by server"))
+            val outbound = OutboundQueue(channel, "ClientSocketHandler-writer-$uuid")
+            this.outbound = outbound
+            if (session != null) {
+                if (previous == null) {
+                    session.attach(outbound::offer, 0L)
+                    // Asks for the token needed to resume this session later.
+                    outbound.offer("${ReliableSession.RESUME} $uuid 0 -", OutboundQueue.Lane.CONTROL)
+                } else {
+                    // The session stays detached until the server answers RESUMED.
+                    resumingFrom = previous
+                    outbound.offer(
+                        "${ReliableSession.RESUME} $previous ${session.lastReceivedSeq} ${resumeToken ?: "-"}",
+                        OutboundQueue.Lane.CONTROL
+                    )
+                }
+            }
+            flushPendingMessages()
             LOGGER.info("Connected to server with UUID: " + this.uuid)
             Thread(Runnable { this.listenToServer() }).start()
             return true
         } catch (e: IOException) {
+            if (e is SSLException) {
+                LOGGER.log(Level.WARNING, "TLS handshake with $serverIp:$serverPort failed: ${e.message}")
+            }
+            opened?.close()
             return false
         }
     }
@@ -435,54 +1030,264 @@ class ClientSocketHandler(
             }
         } else {
             LOGGER.severe("Failed to connect after $maxRetries attempts.")
+            val dropped = synchronized(pendingWhileReconnecting) {
+                reconnecting = false
+                pendingWhileReconnecting.size.also { pendingWhileReconnecting.clear() }
+            }
+            if (dropped > 0) {
+                LOGGER.warning("$dropped messages dropped while reconnecting.")
+            }
+        }
+    }
+
+    /**
+     * Handles a `RECONNECT <delay>` hint sent by a server shutting down gracefully.
+     * The current connection is closed, and a new one is attempted after the delay.
+     * Messages not written yet and messages sent in the meantime are kept and sent once connected again,
+     * except with reliability enabled, where the resumed session retransmits what the server didn't get.
+     *
+     * @param delay the delay in milliseconds before reconnecting
+     */
+    private fun handleReconnectHint(delay: Long) {
+        synchronized(pendingWhileReconnecting) {
+            reconnecting = true
+        }
+        LOGGER.info("Server is going away, reconnecting in $delay ms.")
+        session?.detach()
+        multicastReceiver?.stop()
+        if (session != null) {
+            outbound?.closeNow()
+        } else {
+            val unsent = outbound?.closeNowKeepingData().orEmpty()
+            // Ahead of the messages sent since reconnecting was set, which came after them.
+            synchronized(pendingWhileReconnecting) {
+                unsent.asReversed().forEach { pendingWhileReconnecting.addFirst(it) }
+            }
+        }
+        Thread(Runnable {
+            try {
+                Thread.sleep(delay)
+                connect()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+        }, "ClientSocketHandler-reconnect").start()
+    }
+
+    /**
+     * Sends the messages queued while reconnecting on the new connection.
+     */
+    private fun flushPendingMessages() {
+        synchronized(pendingWhileReconnecting) {
+            while (pendingWhileReconnecting.isNotEmpty()) {
+                outbound!!.offer(pendingWhileReconnecting.removeFirst())
+            }
+            reconnecting = false
         }
     }
 
     /**
      * Listens for messages from the server. This method reads messages from the server
-     * using a BufferedReader and processes each message by passing it to the handleMessage method.
+     * using the connection's [MessageChannel] and processes each message by passing it to the handleMessage method.
      * If an IOException occurs while reading messages, an error message is logged.
      */
     private fun listenToServer() {
+        val channel = channel ?: return
+        readerThread = Thread.currentThread()
         try {
-            val reader = BufferedReader(InputStreamReader(socket!!.getInputStream()))
-            reader.lines().forEach { message: String? -> this.handleMessage(message) }
+            while (channel.isOpen) {
+                val message = channel.readMessage() ?: break
+                this.handleMessage(message)
+            }
+        } catch (e: ProtocolException) {
+            LOGGER.warning("Invalid frame from server, connection closed: ${e.message}")
+            outbound?.closeNow()
         } catch (e: IOException) {
-            LOGGER.severe("Error reading messages from server: " + e.message)
+            if (channel.isOpen) {
+                LOGGER.severe("Error reading messages from server: " + e.message)
+            }
+        }
+        if (this.channel === channel) {
+            session?.detach()
+            multicastReceiver?.stop()
+        }
+    }
+
+    /**
+     * Handles the frames of the reliability layer.
+     *
+     * @param message the message received from the server
+     * @return true if the message was a reliability frame
+     * @throws ProtocolException if a frame is out of sequence or malformed
+     */
+    private fun handleReliabilityFrame(session: ReliableSession, message: String): Boolean {
+        when {
+            message.startsWith(ReliableSession.SEQ + " ") -> {
+                val (seq, payload) = ReliableSession.parseData(message) ?: return true
+                if (session.onData(seq)) {
+                    dispatchMessage(payload)
+                }
+                session.acknowledge()
+            }
+            message == ReliableSession.ACK_REQUEST -> session.acknowledge(true)
+            message.startsWith(ReliableSession.ACK + " ") -> {
+                message.substring(ReliableSession.ACK.length + 1).toLongOrNull()?.let { session.onAck(it) }
+            }
+            message.startsWith(ReliableSession.RESUMED + " ") -> {
+                val parts = message.split(' ')
+                val resumed = parts.getOrNull(1)?.let { runCatching { UUID.fromString(it) }.getOrNull() }
+                    ?: throw ProtocolException("Malformed resume answer: $message")
+                resumeToken = parts.getOrNull(3)
+                // Answer to the token request of a new session.
+                if (resumingFrom == null) return true
+                if (resumed != resumingFrom) {
+                    LOGGER.warning("Session could not be resumed, messages in flight are sent again.")
+                    session.reset()
+                }
+                resumingFrom = null
+                this.uuid = resumed
+                session.attach(outbound!!::offer, parts.getOrNull(2)?.toLongOrNull() ?: 0L)
+            }
+            else -> return false
         }
+        return true
     }
 
     /**
      * Handles incoming messages from the server.
      * If the message is "KICK", it runs all kick callbacks, logs a warning,
-     * and attempts to close the socket. If an IOException occurs during socket
+     * and attempts to close the channel. If an IOException occurs during channel
      * closure, it logs a severe error.
+     * If the message is "RECONNECT", the client reconnects after the delay hinted by the server.
      * For other messages, it logs the message and notifies all subscribers.
      *
      * @param message the message received from the server
      */
     private fun handleMessage(message: String?) {
+        if (session != null && message != null && handleReliabilityFrame(session, message)) {
+            return
+        }
+        dispatchMessage(message)
+    }
+
+    /**
+     * Handles a message received from the server, once unwrapped from the reliability layer.
+     *
+     * @param message the message received from the server
+     */
+    private fun dispatchMessage(frame: String?) {
+        val traced = frame?.let { TraceContext.unwrap(it) }
+        if (traced != null && traceExporter != null) {
+            val context = traced.first
+            traceExporter.export(TraceSpan(
+                TraceSpan.Kind.DELIVERY, context.traceId, context.child().spanId, context.spanId, null, uuid,
+                context.sentAt, deliveredAt = TraceContext.nowMicros()
+            ))
+        }
+        val message = traced?.second ?: frame
+        if (message != null && message.startsWith(MulticastPublisher.MCAST + " ")) {
+            handleMulticastFrame(message)
+            return
+        }
+        if (message != null && message.startsWith("RECONNECT")) {
+            handleReconnectHint(message.substring("RECONNECT".length).trim().toLongOrNull() ?: retryTimeout)
+            return
+        }
         if ("KICK" == message) {
-            kickCallbacks.forEach { _ -> Runnable::run }
+            kickCallbacks.forEach { cb -> cb() }
             LOGGER.warning("Kicked from server.")
+            multicastReceiver?.close()
+            multicastReceiver = null
             try {
-                socket!!.close()
+                channel!!.close()
             } catch (e: IOException) {
                 LOGGER.severe("Error closing socket: ${e.message}")
             }
             return
         }
-        LOGGER.info(message)
+        if (message != null && interceptors.any { it(message) }) {
+            return
+        }
+        messageLog.log(LOGGER, "", null, message)
         subscribers.forEach { cb -> cb(message) }
     }
 
     /**
-     * Sends a message to the connected socket.
+     * Handles the multicast frames sent by the server over TCP:
+     * - `MCAST GROUP <address> <port>`: joins the group if a multicast interface was given, then sends `MCAST JOIN`.
+     * - `MCAST JOINED <seq>`: starts delivering the multicast frames from that sequence number.
+     * - `MCAST DATA <seq> <frame>` and `MCAST LOST <from> <to>`: answers to the retransmission requests.
+     *
+     * The GLOBAL messages sent by this client are not delivered back to it. Since anyone on the network can send
+     * datagrams to the group, only GLOBAL messages are delivered from it, straight to the subscribers.
+     *
+     * @param message the message received from the server
+     */
+    private fun handleMulticastFrame(message: String) {
+        val parts = message.split(' ', limit = 4)
+        when (parts.getOrNull(1)) {
+            "GROUP" -> {
+                val networkInterface = multicastInterface ?: return
+                if (multicastReceiver == null) {
+                    try {
+                        multicastReceiver = MulticastReceiver(
+                            InetAddress.getByName(parts[2]), parts[3].toInt(), networkInterface, bufferPool,
+                            deliver = { frame ->
+                                if (frame.startsWith("GLOBAL ") && !frame.startsWith("GLOBAL $uuid:")) {
+                                    messageLog.log(LOGGER, "", null, frame)
+                                    subscribers.forEach { cb -> cb(frame) }
+                                }
+                            },
+                            requestRetransmit = { from, to ->
+                                outbound?.offer("${MulticastPublisher.MCAST} NACK $from $to", OutboundQueue.Lane.CONTROL)
+                            }
+                        )
+                    } catch (e: IOException) {
+                        LOGGER.warning("Could not join multicast group ${parts[2]}:${parts[3]}: ${e.message}")
+                        return
+                    }
+                }
+                outbound?.offer("${MulticastPublisher.MCAST} JOIN", OutboundQueue.Lane.CONTROL)
+            }
+            "JOINED" -> parts.getOrNull(2)?.toLongOrNull()?.let { multicastReceiver?.start(it) }
+            "DATA" -> parts.getOrNull(2)?.toLongOrNull()?.let { seq ->
+                multicastReceiver?.onFrame(seq, message.substring(message.indexOf(' ', "MCAST DATA ".length) + 1))
+            }
+            "LOST" -> {
+                val from = parts.getOrNull(2)?.toLongOrNull() ?: return
+                val to = parts.getOrNull(3)?.toLongOrNull() ?: return
+                multicastReceiver?.onLost(from, to)
+            }
+        }
+    }
+
+    /**
+     * Sends a message to the connected server.
+     * The message is queued on the data lane and written by the connection's writer thread.
+     * While reconnecting after a `RECONNECT` hint, it is kept until the new connection is established.
+     * With reliability enabled, the message is sequenced and this method blocks while the send window is full,
+     * except on the thread reading from the server, e.g. in a [subscribe] callback, which must go on reading acks.
+     * With a trace exporter, the message starts a new trace.
      *
      * @param message the message to be sent
      */
     fun sendMessage(message: String?) {
-        createWriter().println(message)
+        val frame = if (traceExporter != null) TraceContext.newRoot().wrap(message.toString()) else message.toString()
+        if (session != null) {
+            if (!session.send(frame, wait = Thread.currentThread() !== readerThread)) {
+                LOGGER.warning("Send window stayed full, message not sent.")
+            }
+            return
+        }
+        synchronized(pendingWhileReconnecting) {
+            if (reconnecting) {
+                pendingWhileReconnecting.addLast(frame)
+                return
+            }
+        }
+        if (!outbound!!.offer(frame)) {
+            LOGGER.warning("Connection closed, message not sent.")
+        }
     }
 
     /**
@@ -514,41 +1319,36 @@ class ClientSocketHandler(
     }
 
     /**
-     * Registers a callback to be executed when the client is kicked.
+     * Registers a callback that sees the messages meant for the subscribers first, and consumes them by returning true:
+     * consumed messages are neither logged nor passed to the subscribers.
      *
-     * @param callback the Runnable to be executed upon being kicked
+     * @param interceptor the callback, invoked with the message string.
      */
-    fun onKick(callback: () -> Unit) {
-        kickCallbacks.add(callback)
+    internal fun intercept(interceptor: (String) -> Boolean) {
+        interceptors.add(interceptor)
     }
 
     /**
-     * Creates a PrintWriter for the socket's output stream.
-     * The PrintWriter is configured to automatically flush the output buffer.
+     * Registers a callback to be executed when the client is kicked.
      *
-     * @return a PrintWriter object for the socket's output stream
-     * @throws RuntimeException if an I/O error occurs when creating the writer
+     * @param callback the Runnable to be executed upon being kicked
      */
-    private fun createWriter(): PrintWriter {
-        try {
-            return PrintWriter(socket!!.getOutputStream(), true)
-        } catch (e: IOException) {
-            throw RuntimeException("Error creating writer: ${e.message}")
-        }
+    fun onKick(callback: () -> Unit) {
+        kickCallbacks.add(callback)
     }
 
     /**
      * Disconnects the client from the server by sending a "DISCONNECT" message
-     * and closing the socket. Logs an error message if an IOException occurs
-     * while closing the socket, and logs an info message upon successful disconnection.
+     * on the data lane, after the messages already sent, and closing the channel
+     * once both lanes are flushed. Logs an info message upon disconnection.
      */
     fun disconnect() {
-        sendMessage("DISCONNECT")
-        try {
-            socket!!.close()
-        } catch (e: IOException) {
-            LOGGER.severe("Error closing socket: ${e.message}")
-        }
+        val outbound = outbound!!
+        outbound.offer("DISCONNECT", OutboundQueue.Lane.DATA)
+        outbound.close(drainData = true)
+        outbound.awaitTermination(retryTimeout, TimeUnit.MILLISECONDS)
+        multicastReceiver?.close()
+        multicastReceiver = null
         LOGGER.info("Disconnected from server.")
     }
 
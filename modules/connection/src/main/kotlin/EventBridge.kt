@@ -0,0 +1,287 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import fr.valentinjdt.lib.event.Cancellable
+import fr.valentinjdt.lib.event.Event
+import fr.valentinjdt.lib.event.EventBus
+import fr.valentinjdt.lib.event.EventRegister
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.ObjectInputFilter
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import java.io.ObjectStreamClass
+import java.io.Serializable
+import java.util.Base64
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * An event that an [EventBridge] forwards to the other processes. Its fields must be serializable.
+ */
+interface BridgedEvent : Event, Serializable
+
+/**
+ * Forwards [BridgedEvent]s between the event buses of several processes, over the connections of a
+ * [ServerSocketHandler] and its [ClientSocketHandler]s.
+ *
+ * [runEvent] dispatches an event on the local bus, then queues it if it is a [BridgedEvent] that wasn't cancelled.
+ * The queued events are sent together, as one `EVENTS <base64>` message per flush, at most [flushDelay]
+ * milliseconds after the first of them or as soon as [maxBatchSize] are queued. A bridge on the server forwards
+ * the events of each client to the other clients, so every process of the star receives them once.
+ *
+ * Remote events are dispatched on the local bus as they arrive, on the thread reading the connection, and are
+ * never queued again by the bridge that received them. Their frames aren't passed to the subscribers of the
+ * connection, and an exception thrown by a handler is logged without stopping the dispatch of the frame. Each event carries the bridges it went through, so a
+ * bridge drops the events it already saw, even in topologies with cycles.
+ *
+ * Events are deserialized with [classLoader] and only if their classes pass [trusted] or are [BridgedEvent]s,
+ * enums, boxed primitives, strings, [UUID]s, `java.time` values or the usual collections of `java.util` and Kotlin.
+ * Frames with too many objects, too many bytes or arrays longer than [MAX_ARRAY_LENGTH] (or [maxBatchSize]) are dropped.
+ *
+ * @param bus the local bus.
+ * @param flushDelay the maximum time an event waits to be sent, in milliseconds.
+ * @param maxBatchSize the number of queued events that triggers a flush.
+ * @param classLoader the class loader of the remote event classes.
+ * @param trusted returns true for the other classes the fields of the events may hold.
+ */
+class EventBridge private constructor(
+    private val bus: EventBus,
+    private val flushDelay: Long,
+    private val maxBatchSize: Int,
+    private val classLoader: ClassLoader,
+    private val trusted: (Class<*>) -> Boolean
+) : AutoCloseable {
+
+    /** A forwarded event, with the bridges it went through, [origin] first. */
+    internal class Envelope(val origin: String, val visited: List<String>, val parent: Boolean, val event: BridgedEvent) : Serializable {
+        companion object {
+            private const val serialVersionUID = 1L
+        }
+    }
+
+    /** Identifies this bridge in the events it forwards. */
+    val nodeId: String = UUID.randomUUID().toString()
+
+    private val pending = ConcurrentLinkedQueue<Envelope>()
+    private val pendingCount = AtomicInteger()
+    private val flushScheduled = AtomicBoolean()
+    private val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { task ->
+        Thread(task, "EventBridge-flusher").apply { isDaemon = true }
+    }
+
+    /** Sends a frame to every peer except [except], set by [attach]. */
+    private lateinit var send: (frame: String, except: UUID?) -> Unit
+
+    @Volatile
+    private var closed = false
+
+    /**
+     * Dispatches an event on the local bus, then forwards it if it is a [BridgedEvent] that wasn't cancelled.
+     *
+     * @param parent true to also run the handlers of every superclass and interface of the event, here and remotely.
+     * @return the result of [EventBus.runEvent].
+     */
+    fun runEvent(event: Event, parent: Boolean = false): Boolean {
+        val result = bus.runEvent(event, parent)
+        if (result && event is BridgedEvent && !closed) {
+            enqueue(Envelope(nodeId, listOf(nodeId), parent, event))
+        }
+        return result
+    }
+
+    private fun enqueue(envelope: Envelope) {
+        pending.add(envelope)
+        try {
+            if (pendingCount.incrementAndGet() >= maxBatchSize) {
+                scheduler.execute(this::flush)
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                scheduler.schedule(this::flush, flushDelay, TimeUnit.MILLISECONDS)
+            }
+        } catch (e: RejectedExecutionException) {
+            // Closed since the check of runEvent, after its last flush.
+            LOGGER.log(Level.FINE, "Bridge closed, ${envelope.event::class.java.name} not forwarded")
+        }
+    }
+
+    /** Sends the queued events now. */
+    fun flush() {
+        flushScheduled.set(false)
+        // One flush at a time, so batches are sent in the order of their events.
+        synchronized(pending) {
+            while (true) {
+                val batch = ArrayList<Envelope>()
+                while (batch.size < maxBatchSize) {
+                    batch.add(pending.poll() ?: break)
+                }
+                if (batch.isEmpty()) return
+                pendingCount.addAndGet(-batch.size)
+                sendBatch(batch, null)
+            }
+        }
+    }
+
+    /** Sends the queued events and stops the flusher. Events dispatched afterwards aren't forwarded. */
+    override fun close() {
+        closed = true
+        scheduler.execute(this::flush)
+        scheduler.shutdown()
+        scheduler.awaitTermination(flushDelay + 1000L, TimeUnit.MILLISECONDS)
+    }
+
+    private fun sendBatch(batch: List<Envelope>, except: UUID?) {
+        val bytes = ByteArrayOutputStream()
+        try {
+            ObjectOutputStream(bytes).use { it.writeObject(ArrayList(batch)) }
+        } catch (e: IOException) {
+            LOGGER.log(Level.SEVERE, "Could not serialize ${batch.size} bridged events", e)
+            return
+        }
+        send("$PREFIX ${Base64.getEncoder().encodeToString(bytes.toByteArray())}", except)
+    }
+
+    /**
+     * Dispatches the events of a frame received from a peer, and on the server forwards them to the other clients.
+     *
+     * @param from the client that sent the frame, or null on the client side.
+     * @return false if the message isn't a frame of a bridge.
+     */
+    private fun receive(message: String?, from: UUID?, forward: Boolean): Boolean {
+        if (message == null || !message.startsWith("$PREFIX ")) return false
+        val batch = try {
+            decode(message.substring(PREFIX.length + 1))
+        } catch (e: Exception) {
+            LOGGER.log(Level.WARNING, "Dropped an invalid frame of bridged events from ${from ?: "the server"}", e)
+            return true
+        }
+        val forwarded = ArrayList<Envelope>()
+        for (envelope in batch) {
+            if (nodeId in envelope.visited) continue
+            val event = envelope.event
+            try {
+                bus.runEvent(event, envelope.parent)
+            } catch (e: Exception) {
+                LOGGER.log(Level.SEVERE, "Error dispatching ${event::class.java.name} from ${from ?: "the server"}", e)
+            }
+            if (forward && !(event is Cancellable && event.cancel)) {
+                forwarded += Envelope(envelope.origin, envelope.visited + nodeId, envelope.parent, envelope.event)
+            }
+        }
+        if (forwarded.isNotEmpty()) {
+            sendBatch(forwarded, from)
+        }
+        return true
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    internal fun decode(base64: String): List<Envelope> =
+        FilteredInputStream(ByteArrayInputStream(Base64.getDecoder().decode(base64))).use { it.readObject() as List<Envelope> }
+
+    /** Resolves classes with [classLoader] and rejects the classes that aren't trusted. */
+    private inner class FilteredInputStream(input: InputStream) : ObjectInputStream(input) {
+        init {
+            objectInputFilter = ObjectInputFilter { info ->
+                val type = info.serialClass()
+                when {
+                    info.depth() > MAX_DEPTH || info.references() > MAX_REFERENCES || info.streamBytes() > MAX_BYTES ||
+                        info.arrayLength() > maxOf(MAX_ARRAY_LENGTH, maxBatchSize.toLong()) -> ObjectInputFilter.Status.REJECTED
+                    type == null -> ObjectInputFilter.Status.UNDECIDED
+                    isTrusted(if (type.isArray) elementType(type) else type) -> ObjectInputFilter.Status.ALLOWED
+                    else -> ObjectInputFilter.Status.REJECTED
+                }
+            }
+        }
+
+        override fun resolveClass(desc: ObjectStreamClass): Class<*> = try {
+            Class.forName(desc.name, false, classLoader)
+        } catch (e: ClassNotFoundException) {
+            super.resolveClass(desc)
+        }
+
+        private fun elementType(type: Class<*>): Class<*> = if (type.isArray) elementType(type.componentType) else type
+
+        private fun isTrusted(type: Class<*>): Boolean =
+            type.isPrimitive || type == Envelope::class.java || BridgedEvent::class.java.isAssignableFrom(type) ||
+                type.isEnum || type.name in TRUSTED_CLASSES || TRUSTED_PREFIXES.any { type.name.startsWith(it) } || trusted(type)
+    }
+
+    companion object {
+        private val LOGGER: Logger = Logger.getLogger(EventBridge::class.java.getName())
+
+        /** The first word of the messages of a bridge. */
+        const val PREFIX = "EVENTS"
+
+        /** The maximum length of an array in a frame, unless the batch size of the bridge is higher. */
+        const val MAX_ARRAY_LENGTH = 10_000L
+
+        private const val MAX_DEPTH = 32L
+        private const val MAX_REFERENCES = 100_000L
+        private const val MAX_BYTES = 16L * 1024 * 1024
+
+        // Object and Map.Entry are the element types the collections check their arrays with. Collections$ holds the
+        // empty, singleton and unmodifiable collections, CollSer those of List.of and the like.
+        private val TRUSTED_CLASSES = setOf(
+            "java.lang.Object", "java.lang.String", "java.lang.Boolean", "java.lang.Character", "java.lang.Number", "java.lang.Byte",
+            "java.lang.Short", "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double", "java.lang.Enum",
+            "java.util.UUID", "java.util.ArrayList", "java.util.LinkedList", "java.util.ArrayDeque", "java.util.HashMap",
+            "java.util.LinkedHashMap", "java.util.TreeMap", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet",
+            "java.util.Arrays\$ArrayList", "java.util.CollSer", "java.util.Map\$Entry",
+            "kotlin.collections.EmptyList", "kotlin.collections.EmptySet", "kotlin.collections.EmptyMap"
+        )
+        private val TRUSTED_PREFIXES = listOf("java.util.Collections\$", "java.time.")
+
+        /**
+         * Attaches a bridge to a server, to exchange events with its clients.
+         * Must be called before [ServerSocketHandler.start], so that every client is known.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun attach(
+            server: ServerSocketHandler,
+            bus: EventBus = EventRegister,
+            flushDelay: Long = 5L,
+            maxBatchSize: Int = 256,
+            classLoader: ClassLoader = EventBridge::class.java.classLoader,
+            trusted: (Class<*>) -> Boolean = { false }
+        ): EventBridge {
+            val bridge = EventBridge(bus, flushDelay, maxBatchSize, classLoader, trusted)
+            val clients: MutableSet<UUID> = ConcurrentHashMap.newKeySet()
+            server.onClientConnect { clients.add(it) }
+            server.onClientDisconnect { clients.remove(it) }
+            bridge.send = { frame, except ->
+                clients.forEach { if (it != except) server.sendToClient(it, frame) }
+            }
+            server.intercept { uuid, message -> bridge.receive(message, uuid, true) }
+            return bridge
+        }
+
+        /**
+         * Attaches a bridge to a client, to exchange events with the server and, through it, the other clients.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun attach(
+            client: ClientSocketHandler,
+            bus: EventBus = EventRegister,
+            flushDelay: Long = 5L,
+            maxBatchSize: Int = 256,
+            classLoader: ClassLoader = EventBridge::class.java.classLoader,
+            trusted: (Class<*>) -> Boolean = { false }
+        ): EventBridge {
+            val bridge = EventBridge(bus, flushDelay, maxBatchSize, classLoader, trusted)
+            bridge.send = { frame, _ -> client.sendMessage(frame) }
+            client.intercept { message -> bridge.receive(message, null, false) }
+            return bridge
+        }
+    }
+}
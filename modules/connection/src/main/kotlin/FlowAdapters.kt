@@ -0,0 +1,183 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.util.ArrayDeque
+import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Flow
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * A message exchanged with a client of [ServerSocketHandler].
+ *
+ * @param uuid the UUID of the sender for inbound messages, of the recipient for outbound ones.
+ * @param message the message.
+ */
+data class ClientMessage(val uuid: UUID, val message: String)
+
+/**
+ * Publishes the messages received by a [ServerSocketHandler] to [Flow.Subscriber]s, for all clients or one of them.
+ *
+ * Demand drives the sockets: before reading the next message of a client, its handler thread waits in
+ * [awaitDemand] until every subscription interested in that client has requested at least one more message,
+ * which lets TCP flow control slow the client down. When several clients are read concurrently, a
+ * subscription may receive one message per reading client on top of its demand; those are kept and
+ * delivered on the next [Flow.Subscription.request], so the buffering is bounded by the number of clients.
+ */
+internal class InboundPublisher {
+
+    private val subscriptions = CopyOnWriteArrayList<MessageSubscription>()
+    private val lock = ReentrantLock()
+    private val demandAvailable = lock.newCondition()
+
+    /**
+     * Subscribes to the messages of one client, or of all clients if [uuid] is null.
+     */
+    fun subscribe(uuid: UUID?, subscriber: Flow.Subscriber<in ClientMessage>) {
+        val subscription = MessageSubscription(uuid, subscriber)
+        subscriptions.add(subscription)
+        subscriber.onSubscribe(subscription)
+    }
+
+    /**
+     * Blocks while a subscription interested in the client has no outstanding demand.
+     * Returns as soon as the channel is closed.
+     *
+     * @param uuid the client about to be read.
+     * @param channel the channel of the client.
+     */
+    fun awaitDemand(uuid: UUID, channel: FramedChannel) {
+        if (subscriptions.isEmpty()) return
+        lock.withLock {
+            while (channel.isOpen && subscriptions.any { it.matches(uuid) && !it.hasDemand() }) {
+                demandAvailable.await(DEMAND_POLL_INTERVAL, TimeUnit.MILLISECONDS)
+            }
+        }
+    }
+
+    /** Delivers a message to every interested subscription. */
+    fun publish(message: ClientMessage) {
+        if (subscriptions.isEmpty()) return
+        subscriptions.forEach { if (it.matches(message.uuid)) it.offer(message) }
+    }
+
+    /** Completes the subscriptions of one client, after its disconnection. */
+    fun complete(uuid: UUID) {
+        subscriptions.forEach { if (it.uuid == uuid) it.complete() }
+    }
+
+    /** Completes every subscription, after the server stopped. */
+    fun completeAll() {
+        subscriptions.forEach { it.complete() }
+    }
+
+    private fun signalDemand() = lock.withLock { demandAvailable.signalAll() }
+
+    private inner class MessageSubscription(
+        val uuid: UUID?,
+        private val subscriber: Flow.Subscriber<in ClientMessage>
+    ) : Flow.Subscription {
+        private val pending = ArrayDeque<ClientMessage>()
+        private val cancelled = AtomicBoolean()
+        private var demand = 0L
+        private var completed = false
+
+        fun matches(client: UUID) = uuid == null || uuid == client
+
+        fun hasDemand(): Boolean = synchronized(this) { cancelled.get() || demand > pending.size }
+
+        fun offer(message: ClientMessage) = synchronized(this) {
+            if (cancelled.get() || completed) return
+            pending.addLast(message)
+            drain()
+        }
+
+        fun complete() = synchronized(this) {
+            if (completed) return
+            completed = true
+            drain()
+        }
+
+        override fun request(n: Long) {
+            if (n <= 0) {
+                cancel()
+                subscriber.onError(IllegalArgumentException("Non-positive request: $n"))
+                return
+            }
+            synchronized(this) {
+                demand = if (Long.MAX_VALUE - demand < n) Long.MAX_VALUE else demand + n
+                drain()
+            }
+            signalDemand()
+        }
+
+        override fun cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                subscriptions.remove(this)
+                synchronized(this) { pending.clear() }
+                signalDemand()
+            }
+        }
+
+        /** Called with the monitor held, which also serializes the signals sent to the subscriber. */
+        private fun drain() {
+            while (demand > 0 && pending.isNotEmpty() && !cancelled.get()) {
+                if (demand != Long.MAX_VALUE) demand--
+                subscriber.onNext(pending.pollFirst())
+            }
+            if (completed && pending.isEmpty() && cancelled.compareAndSet(false, true)) {
+                subscriptions.remove(this)
+                subscriber.onComplete()
+            }
+        }
+    }
+
+    companion object {
+        private const val DEMAND_POLL_INTERVAL = 100L
+    }
+}
+
+/**
+ * A [Flow.Subscriber] sending each [ClientMessage] to its recipient through [ServerSocketHandler.sendToClient].
+ *
+ * At most [batchSize] messages are requested ahead. A message is only replaced by a new request once the
+ * recipient's outbound queue holds no more than [highWatermark] messages; otherwise the request is postponed
+ * until the queue drains, so a slow client slows the upstream publisher down.
+ *
+ * @param server the server sending the messages.
+ * @param batchSize the number of messages requested ahead.
+ * @param highWatermark the outbound queue length above which requests are postponed.
+ */
+internal class OutboundSubscriber(
+    private val server: ServerSocketHandler,
+    private val batchSize: Int,
+    private val highWatermark: Int
+) : Flow.Subscriber<ClientMessage> {
+
+    @Volatile
+    private var subscription: Flow.Subscription? = null
+
+    override fun onSubscribe(subscription: Flow.Subscription) {
+        if (this.subscription != null) {
+            subscription.cancel()
+            return
+        }
+        this.subscription = subscription
+        subscription.request(batchSize.toLong())
+    }
+
+    override fun onNext(item: ClientMessage) {
+        server.sendToClient(item.uuid, item.message)
+        server.whenOutboundBelow(item.uuid, highWatermark) { subscription?.request(1) }
+    }
+
+    override fun onError(throwable: Throwable) {
+        subscription = null
+    }
+
+    override fun onComplete() {
+        subscription = null
+    }
+}
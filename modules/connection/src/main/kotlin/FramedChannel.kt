@@ -0,0 +1,37 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+
+/**
+ * A channel exchanging whole text messages, whatever their framing on the wire.
+ *
+ * [ServerSocketHandler] and [OutboundQueue] only deal with this interface, so clients connected
+ * with the line protocol ([MessageChannel]) and through WebSocket ([WebSocketChannel]) share
+ * the same client table and routing.
+ */
+interface FramedChannel : AutoCloseable {
+
+    /** True while the channel hasn't been closed. */
+    val isOpen: Boolean
+
+    /**
+     * Blocks until a full message is received.
+     *
+     * @return the message, or null if the peer closed the connection.
+     * @throws IOException if an I/O error occurs or the channel is closed.
+     */
+    fun readMessage(): String?
+
+    /**
+     * Writes a message and blocks until it is fully sent.
+     *
+     * @param message the message to send; it should not contain line terminators.
+     * @throws IOException if an I/O error occurs.
+     */
+    fun writeMessage(message: String)
+
+    /**
+     * Closes the channel. Calling this method more than once has no effect.
+     */
+    override fun close()
+}
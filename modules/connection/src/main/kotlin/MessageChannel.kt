@@ -0,0 +1,187 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.channels.ByteChannel
+import java.nio.charset.CharsetDecoder
+import java.nio.charset.CharsetEncoder
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.StandardCharsets
+
+/**
+ * Reads and writes newline-delimited UTF-8 messages on a [ByteChannel] using pooled direct buffers.
+ *
+ * A single read buffer is borrowed from the [BufferPool] for the whole life of the channel, so bytes
+ * read past the end of a message are kept for the next [readMessage] call. Writes borrow a staging
+ * buffer for the duration of the call. Decoding and encoding reuse the same decoder, encoder and
+ * char buffer, so the only allocation per message is the returned [String].
+ *
+ * Reads and writes can happen concurrently from two different threads, but each of them is expected
+ * to be used by one thread at a time; [writeMessage] is synchronized for that reason.
+ *
+ * @param channel the underlying channel, in blocking mode.
+ * @param pool the pool providing the staging buffers.
+ */
+class MessageChannel(
+    private val channel: ByteChannel,
+    private val pool: BufferPool = BufferPool.DEFAULT
+) : FramedChannel {
+    private val decoder: CharsetDecoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    private val encoder: CharsetEncoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    private val readLock = Any()
+    private val writeLock = Any()
+
+    private var readBuffer: ByteBuffer? = pool.acquire(READ_BUFFER_SIZE).flip()
+    private var line: CharBuffer = CharBuffer.allocate(INITIAL_LINE_SIZE)
+
+    @Volatile
+    private var closed = false
+
+    /** True while the channel hasn't been closed. */
+    override val isOpen: Boolean
+        get() = !closed && channel.isOpen
+
+    /**
+     * Blocks until a full message is received.
+     *
+     * @return the message without its line terminator, or null if the end of stream is reached.
+     * @throws IOException if an I/O error occurs or the channel is closed.
+     */
+    override fun readMessage(): String? = synchronized(readLock) { readLine() }
+
+    /**
+     * Writes a message followed by a line terminator and blocks until it is fully sent.
+     *
+     * @param message the message to send; it should not contain line terminators.
+     * @throws IOException if an I/O error occurs.
+     */
+    override fun writeMessage(message: String) {
+        synchronized(writeLock) {
+            val buffer = pool.acquire(WRITE_BUFFER_SIZE)
+            try {
+                val chars = CharBuffer.wrap(message)
+                encoder.reset()
+                while (true) {
+                    val result = encoder.encode(chars, buffer, true)
+                    if (result.isOverflow) {
+                        drain(buffer)
+                        continue
+                    }
+                    if (encoder.flush(buffer).isOverflow) {
+                        drain(buffer)
+                        encoder.flush(buffer)
+                    }
+                    break
+                }
+                if (!buffer.hasRemaining()) drain(buffer)
+                buffer.put(NEWLINE)
+                drain(buffer)
+            } finally {
+                pool.release(buffer)
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying channel and gives the read buffer back to the pool.
+     * Calling this method more than once has no effect.
+     */
+    override fun close() {
+        if (closed) return
+        closed = true
+        try {
+            channel.close()
+        } finally {
+            // A blocked reader is woken up by the channel closing and leaves readMessage before the buffer is released.
+            synchronized(readLock) {
+                readBuffer?.let { pool.release(it) }
+                readBuffer = null
+            }
+        }
+    }
+
+    private fun readLine(): String? {
+        val buffer = readBuffer ?: throw IOException("Channel closed")
+
+        while (true) {
+            val newline = indexOf(buffer, NEWLINE)
+            if (newline >= 0) {
+                val limit = buffer.limit()
+                buffer.limit(newline)
+                decode(buffer, true)
+                buffer.limit(limit)
+                buffer.position(newline + 1)
+                return takeLine()
+            }
+
+            decode(buffer, false)
+            buffer.compact()
+            val read = try {
+                channel.read(buffer)
+            } finally {
+                buffer.flip()
+            }
+            if (read < 0) {
+                return if (line.position() > 0 || buffer.hasRemaining()) {
+                    decode(buffer, true)
+                    takeLine()
+                } else {
+                    null
+                }
+            }
+        }
+    }
+
+    private fun drain(buffer: ByteBuffer) {
+        buffer.flip()
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+        buffer.clear()
+    }
+
+    private fun decode(buffer: ByteBuffer, endOfInput: Boolean) {
+        while (true) {
+            val result = decoder.decode(buffer, line, endOfInput)
+            if (result.isOverflow) {
+                line = CharBuffer.allocate(line.capacity() * 2).put(line.flip())
+                continue
+            }
+            break
+        }
+        if (endOfInput) {
+            while (decoder.flush(line).isOverflow) {
+                line = CharBuffer.allocate(line.capacity() * 2).put(line.flip())
+            }
+        }
+    }
+
+    private fun takeLine(): String {
+        line.flip()
+        var length = line.remaining()
+        if (length > 0 && line.get(length - 1) == '\r') length--
+        val message = String(line.array(), line.arrayOffset(), length)
+        line.clear()
+        decoder.reset()
+        return message
+    }
+
+    private fun indexOf(buffer: ByteBuffer, value: Byte): Int {
+        for (i in buffer.position() until buffer.limit()) {
+            if (buffer.get(i) == value) return i
+        }
+        return -1
+    }
+
+    companion object {
+        private const val NEWLINE = '\n'.code.toByte()
+        private const val READ_BUFFER_SIZE = 8 * 1024
+        private const val WRITE_BUFFER_SIZE = 8 * 1024
+        private const val INITIAL_LINE_SIZE = 256
+    }
+}
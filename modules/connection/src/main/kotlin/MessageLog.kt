@@ -0,0 +1,228 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.time.Instant
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+import java.util.logging.Level
+import java.util.logging.LogRecord
+import java.util.logging.Logger
+
+/**
+ * Decides which per-message log entries are kept.
+ */
+fun interface LogSampler {
+
+    /**
+     * @param uuid the client the message comes from, or null on the client side.
+     * @return true to log the message.
+     */
+    fun sample(uuid: UUID?): Boolean
+
+    companion object {
+        /** Keeps every message. */
+        @JvmStatic
+        val ALL = LogSampler { true }
+
+        /**
+         * Keeps one message out of [n], across all clients.
+         *
+         * @param n the sampling period.
+         */
+        @JvmStatic
+        fun oneIn(n: Int): LogSampler {
+            require(n > 0) { "n must be positive" }
+            val counter = AtomicLong()
+            return LogSampler { counter.getAndIncrement() % n == 0L }
+        }
+
+        /**
+         * Keeps the first [n] messages of each client every second.
+         *
+         * @param n the number of messages kept per client and per second.
+         */
+        @JvmStatic
+        fun firstPerSecond(n: Int): LogSampler {
+            require(n > 0) { "n must be positive" }
+            // Each window packs the second in the high bits and the count in the low 20 bits.
+            val windows = ConcurrentHashMap<UUID?, AtomicLong>()
+            return LogSampler { uuid ->
+                val second = System.currentTimeMillis() / 1000L
+                if (windows.size > MAX_SAMPLED_CLIENTS) {
+                    windows.values.removeIf { it.get() ushr 20 < second }
+                }
+                val window = windows.computeIfAbsent(uuid) { AtomicLong() }
+                val updated = window.updateAndGet { current ->
+                    if (current ushr 20 != second) (second shl 20) or 1L else minOf(current + 1, (second shl 20) or 0xFFFFFL)
+                }
+                (updated and 0xFFFFFL) <= n
+            }
+        }
+
+        /**
+         * Parses a sampling specification: `all`, `1/<n>` for [oneIn], or `<n>/s` for [firstPerSecond].
+         *
+         * @param spec the specification.
+         * @return the sampler, or [ALL] if the specification is invalid.
+         */
+        @JvmStatic
+        fun parse(spec: String?): LogSampler {
+            val value = spec?.trim() ?: return ALL
+            return when {
+                value.startsWith("1/") -> value.substring(2).toIntOrNull()?.takeIf { it > 0 }?.let { oneIn(it) }
+                value.endsWith("/s") -> value.dropLast(2).toIntOrNull()?.takeIf { it > 0 }?.let { firstPerSecond(it) }
+                else -> null
+            } ?: ALL
+        }
+
+        private const val MAX_SAMPLED_CLIENTS = 10_000
+    }
+}
+
+/**
+ * Per-message logging kept off the I/O threads.
+ *
+ * [log] only checks the level, samples the message and stores its parts in a lock-free ring buffer; the
+ * text is formatted and handed to `java.util.logging` by a single background writer. When the ring is full,
+ * entries are dropped and counted instead of blocking the caller. The writer parks while the ring is empty
+ * and is only woken up by the next entry, so an idle log costs no CPU.
+ *
+ * @param capacity the number of entries the ring holds, rounded up to a power of two.
+ * @param sampler decides which messages are logged.
+ * @param level the level messages are logged at.
+ */
+class MessageLog(
+    capacity: Int = 8192,
+    private val sampler: LogSampler = LogSampler.ALL,
+    private val level: Level = Level.INFO
+) : AutoCloseable {
+
+    private class Entry(val logger: Logger, val prefix: String, val uuid: UUID?, val message: String?, val millis: Long)
+
+    private val slots = AtomicReferenceArray<Entry?>(Integer.highestOneBit(maxOf(capacity - 1, 1)) shl 1)
+    private val mask = slots.length() - 1
+    private val tail = AtomicLong()
+    private val dropped = AtomicLong()
+
+    @Volatile
+    private var head = 0L
+
+    @Volatile
+    private var closed = false
+
+    /** True while the writer is parked, or about to, on an empty ring. */
+    @Volatile
+    private var idle = false
+
+    private val writer = Thread(this::drainLoop, "MessageLog-writer").apply {
+        isDaemon = true
+        start()
+    }
+
+    /** Number of entries dropped because the ring was full. */
+    val droppedCount: Long
+        get() = dropped.get()
+
+    /**
+     * Logs a message, unless its level is disabled or the sampler discards it.
+     * The text `<prefix> <uuid>: <message>` (or `<message>` without a prefix) is only built by the writer.
+     *
+     * @param logger the logger of the calling class.
+     * @param prefix the description of the event, e.g. "Received from", or an empty string.
+     * @param uuid the client the message relates to, or null.
+     * @param message the message.
+     */
+    fun log(logger: Logger, prefix: String, uuid: UUID?, message: String?) {
+        if (closed || !logger.isLoggable(level) || !sampler.sample(uuid)) return
+        while (true) {
+            val slot = tail.get()
+            if (slot - head >= slots.length()) {
+                dropped.incrementAndGet()
+                return
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                // A volatile store, so the writer either sees the entry or is seen idle and unparked.
+                slots.set((slot and mask.toLong()).toInt(), Entry(logger, prefix, uuid, message, System.currentTimeMillis()))
+                if (idle) LockSupport.unpark(writer)
+                return
+            }
+        }
+    }
+
+    /**
+     * Waits until the entries logged so far are written.
+     *
+     * @param timeout the maximum time to wait, in milliseconds.
+     * @return true if every entry was written.
+     */
+    fun flush(timeout: Long = 1000L): Boolean {
+        val target = tail.get()
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)
+        while (head < target) {
+            if (System.nanoTime() > deadline) return false
+            LockSupport.unpark(writer)
+            Thread.onSpinWait()
+        }
+        return true
+    }
+
+    /** Writes the pending entries and stops the writer. */
+    override fun close() {
+        closed = true
+        LockSupport.unpark(writer)
+        writer.join(1000L)
+    }
+
+    private fun drainLoop() {
+        while (true) {
+            val drained = drain()
+            if (closed && drained == 0 && head == tail.get()) return
+            if (drained == 0) {
+                idle = true
+                // An entry published before idle was set isn't followed by an unpark.
+                if (slots.get((head and mask.toLong()).toInt()) == null && !closed) LockSupport.park(this)
+                idle = false
+            }
+        }
+    }
+
+    /** Writes the consecutive entries that are published. Only called by the writer thread. */
+    private fun drain(): Int {
+        var count = 0
+        while (true) {
+            val index = (head and mask.toLong()).toInt()
+            // A claimed slot is published a moment later, the next pass picks it up.
+            val entry = slots.get(index) ?: return count
+            slots.set(index, null)
+            head++
+            write(entry)
+            count++
+        }
+    }
+
+    private fun write(entry: Entry) {
+        val text = if (entry.prefix.isEmpty()) entry.message.toString() else "${entry.prefix} ${entry.uuid}: ${entry.message}"
+        val record = LogRecord(level, text)
+        record.loggerName = entry.logger.name
+        record.instant = Instant.ofEpochMilli(entry.millis)
+        record.sourceClassName = entry.logger.name
+        record.sourceMethodName = null
+        try {
+            entry.logger.log(record)
+        } catch (e: RuntimeException) {
+            // A failing handler must not stop the writer.
+        }
+    }
+
+    companion object {
+        /** System property with the sampling specification of [DEFAULT], see [LogSampler.parse]. */
+        const val SAMPLING_PROPERTY = "vallib.connection.logSampling"
+
+        /** The message log shared by the handlers created without one. */
+        @JvmStatic
+        val DEFAULT = MessageLog(sampler = LogSampler.parse(System.getProperty(SAMPLING_PROPERTY)))
+    }
+}
@@ -0,0 +1,142 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.NetworkInterface
+import java.net.StandardProtocolFamily
+import java.net.StandardSocketOptions
+import java.nio.channels.DatagramChannel
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Settings of the multicast channel [ServerSocketHandler] uses to send GLOBAL messages to a LAN.
+ *
+ * @param group the multicast group address.
+ * @param port the UDP port of the group.
+ * @param networkInterface the interface datagrams are sent from, or null for the system default.
+ * @param timeToLive the number of hops datagrams may travel, 1 to stay on the local network.
+ * @param loopback true to deliver datagrams to receivers on the sending host too.
+ * @param historySize the number of sent frames kept to answer retransmission requests.
+ * @param heartbeatInterval the interval, in milliseconds, of the heartbeats letting receivers detect a lost last frame.
+ */
+data class MulticastOptions(
+    val group: InetAddress,
+    val port: Int,
+    val networkInterface: NetworkInterface? = null,
+    val timeToLive: Int = 1,
+    val loopback: Boolean = true,
+    val historySize: Int = 4096,
+    val heartbeatInterval: Long = 1000L
+) {
+    init {
+        require(group.isMulticastAddress) { "$group is not a multicast address" }
+        require(historySize > 0) { "historySize must be positive" }
+    }
+
+    internal val family: StandardProtocolFamily
+        get() = if (group is Inet6Address) StandardProtocolFamily.INET6 else StandardProtocolFamily.INET
+}
+
+/**
+ * Sends numbered frames to a multicast group, once for every receiver.
+ *
+ * Each frame is sent as a `D <seq> <payload>` datagram and kept in a history ring of
+ * [MulticastOptions.historySize] frames, so receivers detecting a gap in the sequence can ask for
+ * the missing frames over their TCP connection. Once a frame was published, an `H <lastSeq>` heartbeat
+ * is sent every [MulticastOptions.heartbeatInterval] milliseconds so a receiver also notices when the
+ * last frame of a burst is lost.
+ *
+ * @param options the multicast settings.
+ * @param pool the pool providing the staging buffers.
+ */
+class MulticastPublisher(private val options: MulticastOptions, private val pool: BufferPool = BufferPool.DEFAULT) : AutoCloseable {
+
+    private val channel: DatagramChannel = DatagramChannel.open(options.family).apply {
+        options.networkInterface?.let { setOption(StandardSocketOptions.IP_MULTICAST_IF, it) }
+        setOption(StandardSocketOptions.IP_MULTICAST_TTL, options.timeToLive)
+        setOption(StandardSocketOptions.IP_MULTICAST_LOOP, options.loopback)
+    }
+    private val target = InetSocketAddress(options.group, options.port)
+    private val history = arrayOfNulls<String>(options.historySize)
+    private val heartbeats: ScheduledExecutorService =
+        Executors.newSingleThreadScheduledExecutor { Thread(it, "MulticastPublisher-heartbeat").apply { isDaemon = true } }
+
+    private var lastSeq = 0L
+
+    init {
+        heartbeats.scheduleAtFixedRate(this::heartbeat, options.heartbeatInterval, options.heartbeatInterval, TimeUnit.MILLISECONDS)
+    }
+
+    /** The sequence number the next published frame will get. */
+    val nextSeq: Long
+        @Synchronized get() = lastSeq + 1
+
+    /**
+     * Numbers a frame and sends it to the group.
+     *
+     * @param payload the frame to send.
+     * @return the sequence number of the frame, or -1 if it doesn't fit in a datagram and must be sent another way.
+     */
+    @Synchronized
+    fun publish(payload: String): Long {
+        val seq = lastSeq + 1
+        val datagram = "$DATA $seq $payload".toByteArray(StandardCharsets.UTF_8)
+        if (datagram.size > MAX_DATAGRAM_SIZE) return -1
+        lastSeq = seq
+        history[(seq % history.size).toInt()] = payload
+        send(datagram)
+        return seq
+    }
+
+    /**
+     * Returns a frame still in the history.
+     *
+     * @param seq the sequence number of the frame.
+     * @return the frame, or null if it was never sent or already evicted.
+     */
+    @Synchronized
+    fun retransmit(seq: Long): String? {
+        if (seq > lastSeq || seq <= lastSeq - history.size || seq <= 0) return null
+        return history[(seq % history.size).toInt()]
+    }
+
+    override fun close() {
+        heartbeats.shutdownNow()
+        channel.close()
+    }
+
+    private fun heartbeat() = synchronized(this) {
+        if (lastSeq > 0) send("$HEARTBEAT $lastSeq".toByteArray(StandardCharsets.UTF_8))
+    }
+
+    private fun send(datagram: ByteArray) {
+        val buffer = pool.acquire(datagram.size)
+        try {
+            channel.send(buffer.put(datagram).flip(), target)
+        } catch (e: IOException) {
+            // Receivers recover lost datagrams from the history.
+            LOGGER.log(Level.WARNING, "Error sending to multicast group $target: ${e.message}")
+        } finally {
+            pool.release(buffer)
+        }
+    }
+
+    companion object {
+        private val LOGGER: Logger = Logger.getLogger(MulticastPublisher::class.java.getName())
+
+        /** Prefix of the multicast messages exchanged over TCP. */
+        const val MCAST = "MCAST"
+        internal const val DATA = "D"
+        internal const val HEARTBEAT = "H"
+
+        /** The biggest UDP payload over IPv4. */
+        internal const val MAX_DATAGRAM_SIZE = 65_507
+    }
+}
@@ -0,0 +1,168 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.NetworkInterface
+import java.net.StandardProtocolFamily
+import java.net.StandardSocketOptions
+import java.nio.channels.DatagramChannel
+import java.nio.charset.StandardCharsets
+import java.util.TreeMap
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Receives the frames of a [MulticastPublisher] and delivers them in sequence order.
+ *
+ * Frames are only delivered once the receiver is synchronized with [start], which gives the first
+ * sequence number not already delivered over TCP. Frames received ahead of a gap are kept until the
+ * gap is filled, and the missing range is requested once through [requestRetransmit]; the answers are
+ * passed to [onFrame] like datagrams, and ranges the publisher no longer has are skipped with [onLost].
+ *
+ * @param group the multicast group address.
+ * @param port the UDP port of the group.
+ * @param networkInterface the interface used to join the group.
+ * @param pool the pool providing the receive buffer.
+ * @param deliver called with each frame, in order.
+ * @param requestRetransmit called with the first and last sequence numbers of a missing range.
+ */
+class MulticastReceiver(
+    group: InetAddress,
+    port: Int,
+    networkInterface: NetworkInterface,
+    private val pool: BufferPool = BufferPool.DEFAULT,
+    private val deliver: (String) -> Unit,
+    private val requestRetransmit: (Long, Long) -> Unit
+) : AutoCloseable {
+
+    private val channel: DatagramChannel =
+        DatagramChannel.open(if (group is Inet6Address) StandardProtocolFamily.INET6 else StandardProtocolFamily.INET)
+            .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+            .bind(InetSocketAddress(port))
+            .apply { join(group, networkInterface) }
+
+    private val lock = Any()
+    private val ahead = TreeMap<Long, String>()
+    private var expected = -1L
+    private var requestedUpTo = 0L
+
+    @Volatile
+    private var closed = false
+
+    init {
+        Thread(this::receiveLoop, "MulticastReceiver-$group:$port").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /**
+     * Starts delivering frames from a sequence number.
+     *
+     * @param from the first sequence number to deliver; earlier frames are ignored.
+     */
+    fun start(from: Long) = synchronized(lock) {
+        expected = from
+        requestedUpTo = from - 1
+        ahead.headMap(from).clear()
+        drain()
+    }
+
+    /** Stops delivering frames until the next [start], e.g. while the TCP connection is lost. */
+    fun stop() = synchronized(lock) {
+        expected = -1L
+        ahead.clear()
+    }
+
+    /**
+     * Handles a frame, received as a datagram or retransmitted over TCP.
+     *
+     * @param seq the sequence number of the frame.
+     * @param payload the frame.
+     */
+    fun onFrame(seq: Long, payload: String) = synchronized(lock) {
+        if (expected < 0 || seq < expected) return
+        ahead[seq] = payload
+        drain()
+        if (seq > expected) requestMissing(seq - 1)
+    }
+
+    /**
+     * Skips frames the publisher can't retransmit anymore.
+     *
+     * @param from the first lost sequence number.
+     * @param to the last lost sequence number.
+     */
+    fun onLost(from: Long, to: Long) = synchronized(lock) {
+        if (expected < 0 || to < expected) return
+        LOGGER.log(Level.WARNING, "Multicast frames $expected to $to are lost.")
+        ahead.headMap(to + 1).clear()
+        expected = to + 1
+        drain()
+    }
+
+    override fun close() {
+        closed = true
+        channel.close()
+    }
+
+    private fun onHeartbeat(lastSeq: Long) = synchronized(lock) {
+        if (expected in 1..lastSeq) requestMissing(lastSeq)
+    }
+
+    /**
+     * Requests the ranges of `expected..to` that were neither requested nor received yet.
+     * Called with the lock held.
+     */
+    private fun requestMissing(to: Long) {
+        var from = maxOf(expected, requestedUpTo + 1)
+        if (from > to) return
+        requestedUpTo = to
+        for (held in ahead.subMap(from, true, to, true).keys) {
+            if (held > from) requestRetransmit(from, held - 1)
+            from = held + 1
+        }
+        if (from <= to) requestRetransmit(from, to)
+    }
+
+    /** Delivers the frames following the last delivered one. Called with the lock held. */
+    private fun drain() {
+        while (true) {
+            deliver(ahead.remove(expected) ?: return)
+            expected++
+        }
+    }
+
+    private fun receiveLoop() {
+        val buffer = pool.acquire(MulticastPublisher.MAX_DATAGRAM_SIZE)
+        try {
+            while (!closed) {
+                buffer.clear()
+                channel.receive(buffer)
+                buffer.flip()
+                handleDatagram(StandardCharsets.UTF_8.decode(buffer).toString())
+            }
+        } catch (e: IOException) {
+            if (!closed) {
+                LOGGER.log(Level.SEVERE, "Error receiving multicast frames: ${e.message}")
+            }
+        } finally {
+            pool.release(buffer)
+        }
+    }
+
+    private fun handleDatagram(datagram: String) {
+        val parts = datagram.split(' ', limit = 3)
+        val seq = parts.getOrNull(1)?.toLongOrNull() ?: return
+        when (parts[0]) {
+            MulticastPublisher.DATA -> onFrame(seq, parts.getOrElse(2) { "" })
+            MulticastPublisher.HEARTBEAT -> onHeartbeat(seq)
+        }
+    }
+
+    companion object {
+        private val LOGGER: Logger = Logger.getLogger(MulticastReceiver::class.java.getName())
+    }
+}
@@ -0,0 +1,228 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import java.util.logging.Level
+import java.util.logging.Logger
+import kotlin.concurrent.withLock
+
+/**
+ * The outbound path of a connection, with one lane per [Lane] drained by a dedicated writer thread.
+ *
+ * The writer always takes the next [Lane.CONTROL] message before any [Lane.DATA] message, so a
+ * control frame such as `KICK` waits at most for the data message currently being written, never
+ * for the whole data backlog.
+ *
+ * [close] lets the writer flush the control lane (and optionally the data lane) before closing the
+ * channel, while [closeNow] closes it right away, and [closeNowKeepingData] also hands back the data
+ * lane. Data messages still queued when the channel is
+ * closed are counted in [droppedCount].
+ *
+ * @param channel the channel messages are written to.
+ * @param name the name of the writer thread.
+ */
+class OutboundQueue(val channel: FramedChannel, private val name: String) {
+
+    /** The lanes of the outbound path, in priority order. */
+    enum class Lane {
+        /** Protocol frames (KICK, DISCONNECT, PING, acks) that must not wait behind queued data. */
+        CONTROL,
+        /** Application messages. */
+        DATA
+    }
+
+    private val lock = ReentrantLock()
+    private val notEmpty = lock.newCondition()
+    private val terminated = lock.newCondition()
+    // Holds either a String or a Tracked message, so untracked messages need no wrapper.
+    private val control = ArrayDeque<Any>()
+    private val data = ArrayDeque<Any>()
+
+    private val drainListeners = ArrayList<Pair<Int, () -> Unit>>()
+
+    private var closing = false
+    private var drainData = false
+    private var isTerminated = false
+    private var dropped = 0
+
+    init {
+        Thread(this::writeLoop, name).apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    /** Number of messages waiting in both lanes. */
+    val pendingCount: Int
+        get() = lock.withLock { control.size + data.size }
+
+    /** Number of messages that were queued but never written because the queue was closed. */
+    val droppedCount: Int
+        get() = lock.withLock { dropped }
+
+    /** True once the writer thread has closed the channel. */
+    val isClosed: Boolean
+        get() = lock.withLock { isTerminated }
+
+    /**
+     * Queues a message on a lane.
+     *
+     * @param message the message to write.
+     * @param lane the lane of the message.
+     * @param onWritten called from the writer thread once the message is written, or null.
+     * @return false if the queue is closing and the message was not queued.
+     */
+    fun offer(message: String, lane: Lane = Lane.DATA, onWritten: (() -> Unit)? = null): Boolean = lock.withLock {
+        if (closing) {
+            // Control frames queued by close() callers are still accepted until the control lane is flushed.
+            if (lane == Lane.DATA || isTerminated) return false
+        }
+        val entry: Any = if (onWritten == null) message else Tracked(message, onWritten)
+        if (lane == Lane.CONTROL) control.addLast(entry) else data.addLast(entry)
+        notEmpty.signal()
+        true
+    }
+
+    /**
+     * Runs a callback once at most [count] messages are pending, right away if that is already the case.
+     * The callback also runs when the queue terminates, and is called from the writer thread otherwise.
+     *
+     * @param count the number of pending messages to wait for.
+     * @param callback the function to call.
+     */
+    fun whenPendingAtMost(count: Int, callback: () -> Unit) {
+        val ready = lock.withLock {
+            (isTerminated || control.size + data.size <= count).also {
+                if (!it) drainListeners.add(Pair(count, callback))
+            }
+        }
+        if (ready) callback()
+    }
+
+    /**
+     * Asks the writer to close the channel once the control lane is flushed.
+     * Control messages offered before this call are always written first.
+     *
+     * @param drainData true to also write the pending data messages before closing.
+     */
+    fun close(drainData: Boolean = false) = lock.withLock {
+        closing = true
+        this.drainData = this.drainData || drainData
+        notEmpty.signal()
+    }
+
+    /** Closes the channel immediately, dropping every pending message. */
+    fun closeNow() {
+        lock.withLock {
+            closing = true
+            dropped += control.size + data.size
+            control.clear()
+            data.clear()
+            notEmpty.signal()
+        }
+        closeChannel()
+    }
+
+    /**
+     * Closes the channel immediately like [closeNow], but hands back the pending data messages instead of
+     * dropping them, so they can be sent on another connection. Pending control messages are dropped, and
+     * the `onWritten` callbacks of the data messages handed back are never called.
+     *
+     * @return the pending data messages, in order.
+     */
+    fun closeNowKeepingData(): List<String> {
+        val pending = lock.withLock {
+            closing = true
+            dropped += control.size
+            control.clear()
+            data.map { if (it is Tracked) it.message else it as String }.also {
+                data.clear()
+                notEmpty.signal()
+            }
+        }
+        closeChannel()
+        return pending
+    }
+
+    /**
+     * Waits for the writer thread to close the channel.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of [timeout].
+     * @return true if the channel is closed, false if the timeout elapsed first.
+     */
+    fun awaitTermination(timeout: Long, unit: TimeUnit): Boolean {
+        var nanos = unit.toNanos(timeout)
+        lock.withLock {
+            while (!isTerminated) {
+                if (nanos <= 0) return false
+                nanos = terminated.awaitNanos(nanos)
+            }
+        }
+        return true
+    }
+
+    private fun writeLoop() {
+        try {
+            while (true) {
+                val entry = lock.withLock {
+                    while (control.isEmpty() && data.isEmpty() && !closing) {
+                        notEmpty.await()
+                    }
+                    control.pollFirst() ?: if (!closing || drainData) data.pollFirst() else null
+                } ?: break
+                if (entry is Tracked) {
+                    channel.writeMessage(entry.message)
+                    entry.onWritten()
+                } else {
+                    channel.writeMessage(entry as String)
+                }
+                notifyDrainListeners(false)
+            }
+        } catch (e: IOException) {
+            if (channel.isOpen) {
+                LOGGER.log(Level.WARNING, "Error writing to $name: ${e.message}")
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } finally {
+            lock.withLock {
+                closing = true
+                dropped += control.size + data.size
+                control.clear()
+                data.clear()
+            }
+            closeChannel()
+        }
+    }
+
+    private fun closeChannel() {
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            LOGGER.log(Level.SEVERE, "Error closing $name: ${e.message}")
+        }
+        lock.withLock {
+            isTerminated = true
+            terminated.signalAll()
+        }
+        notifyDrainListeners(true)
+    }
+
+    private fun notifyDrainListeners(all: Boolean) {
+        val ready = lock.withLock {
+            if (drainListeners.isEmpty()) return
+            val pending = control.size + data.size
+            drainListeners.filter { all || pending <= it.first }.also { drainListeners.removeAll(it) }
+        }
+        ready.forEach { it.second() }
+    }
+
+    private class Tracked(val message: String, val onWritten: () -> Unit)
+
+    companion object {
+        private val LOGGER: Logger = Logger.getLogger(OutboundQueue::class.java.getName())
+    }
+}
@@ -0,0 +1,266 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.net.ProtocolException
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Settings of the optional reliability layer of [ServerSocketHandler] and [ClientSocketHandler].
+ *
+ * @param windowBytes the maximum number of unacknowledged payload bytes a sender keeps in flight.
+ * @param ackEvery the number of received messages after which a cumulative ack is sent.
+ * @param sendTimeout the maximum time, in milliseconds, a send waits for the window to open.
+ * @param resumeTimeout the time, in milliseconds, a server keeps the session of a lost client for it to resume.
+ * @param backlogBytes the maximum number of payload bytes kept, on top of the window, for the senders that can't wait.
+ */
+data class ReliabilityOptions(
+    val windowBytes: Int = 256 * 1024,
+    val ackEvery: Int = 32,
+    val sendTimeout: Long = 30_000L,
+    val resumeTimeout: Long = 30_000L,
+    val backlogBytes: Int = windowBytes
+) {
+    init {
+        require(windowBytes > 0) { "windowBytes must be positive" }
+        require(backlogBytes >= 0) { "backlogBytes must not be negative" }
+        require(ackEvery > 0) { "ackEvery must be positive" }
+    }
+}
+
+/**
+ * One end of a reliable, sequenced message stream on top of the line protocol.
+ *
+ * Outgoing data messages are numbered and written as `SEQ <n> <payload>` frames. They are kept
+ * until the peer acknowledges them with a cumulative `ACK <n>` control frame, and the unacknowledged
+ * payload bytes are bounded by [ReliabilityOptions.windowBytes]: [send] blocks while the window is
+ * full, so a slow receiver slows the sender down instead of growing buffers on either end.
+ *
+ * Threads that must not block, such as the one reading the acks of the peer, send without waiting:
+ * while the window is full, their messages are numbered and kept in a backlog of at most
+ * [ReliabilityOptions.backlogBytes], written as acks open the window. The same goes for every send while the session is detached.
+ *
+ * When a sender runs out of window it sends an `ACKREQ` frame, asking the peer to ack right away.
+ *
+ * A session survives its connection: [detach] keeps the unacknowledged messages, and [attach] after a
+ * reconnection retransmits the ones the peer hasn't received, based on the last sequence number it reports.
+ *
+ * @param options the reliability settings.
+ */
+class ReliableSession(private val options: ReliabilityOptions = ReliabilityOptions()) {
+
+    private class Pending(var seq: Long, val message: String, val bytes: Int)
+
+    private val lock = ReentrantLock()
+    private val windowOpen = lock.newCondition()
+    private val unacked = ArrayDeque<Pending>()
+    private val backlog = ArrayDeque<Pending>()
+
+    private var output: ((String, OutboundQueue.Lane) -> Boolean)? = null
+    private var nextSeq = 1L
+    private var inFlightBytes = 0
+    private var backlogBytes = 0
+    private var lastReceived = 0L
+    private var lastAckSent = 0L
+    private var ackRequested = false
+
+    /** The sequence number of the last message received in order. */
+    val lastReceivedSeq: Long
+        get() = lock.withLock { lastReceived }
+
+    /** Number of payload bytes sent and not yet acknowledged. */
+    val inFlight: Int
+        get() = lock.withLock { inFlightBytes }
+
+    /** Number of messages sent and not yet acknowledged. */
+    val unackedCount: Int
+        get() = lock.withLock { unacked.size }
+
+    /** Number of messages waiting for the window to open before being written. */
+    val backlogCount: Int
+        get() = lock.withLock { backlog.size }
+
+    /** True while the session is bound to a connection. */
+    val isAttached: Boolean
+        get() = lock.withLock { output != null }
+
+    /**
+     * Numbers a message and writes it, waiting for the send window to open if needed.
+     * While detached, the message is only kept for retransmission.
+     *
+     * @param message the payload to send.
+     * @param wait false to never block: while the window is full, the message goes to the backlog instead.
+     * Always false while the session is detached.
+     * @return false if the window stayed full for [ReliabilityOptions.sendTimeout], or if the message
+     * couldn't wait and the backlog is full.
+     */
+    fun send(message: String, wait: Boolean = true): Boolean {
+        val bytes = utf8Length(message)
+        var nanos = TimeUnit.MILLISECONDS.toNanos(options.sendTimeout)
+        lock.withLock {
+            while (backlog.isNotEmpty() || !fits(bytes)) {
+                if (!wait || output == null) {
+                    if (backlogBytes > 0 && backlogBytes + bytes > options.backlogBytes) return false
+                    backlog.addLast(Pending(nextSeq++, message, bytes))
+                    backlogBytes += bytes
+                    requestAck()
+                    return true
+                }
+                requestAck()
+                if (nanos <= 0) return false
+                nanos = windowOpen.awaitNanos(nanos)
+            }
+            write(Pending(nextSeq++, message, bytes))
+        }
+        return true
+    }
+
+    /** A message bigger than the window is still sent once nothing else is in flight. */
+    private fun fits(bytes: Int) = inFlightBytes == 0 || inFlightBytes + bytes <= options.windowBytes
+
+    private fun requestAck() {
+        if (!ackRequested) {
+            ackRequested = output?.invoke(ACK_REQUEST, OutboundQueue.Lane.CONTROL) == true
+        }
+    }
+
+    private fun write(pending: Pending) {
+        unacked.addLast(pending)
+        inFlightBytes += pending.bytes
+        output?.invoke(frame(pending), OutboundQueue.Lane.DATA)
+    }
+
+    /** Writes the backlog, in order, as far as the window allows. */
+    private fun drainBacklog() {
+        while (backlog.isNotEmpty() && fits(backlog.peekFirst().bytes)) {
+            val pending = backlog.pollFirst()
+            backlogBytes -= pending.bytes
+            write(pending)
+        }
+    }
+
+    private fun release(seq: Long) {
+        while (unacked.isNotEmpty() && unacked.peekFirst().seq <= seq) {
+            inFlightBytes -= unacked.pollFirst().bytes
+        }
+        ackRequested = false
+    }
+
+    /**
+     * Handles a cumulative ack from the peer, releasing every message up to [seq] from the window.
+     *
+     * @param seq the last sequence number received by the peer.
+     */
+    fun onAck(seq: Long) = lock.withLock {
+        release(seq)
+        drainBacklog()
+        windowOpen.signalAll()
+    }
+
+    /**
+     * Handles an incoming data frame number.
+     *
+     * @param seq the sequence number of the received frame.
+     * @return true if the frame is the next expected one and must be delivered, false if it is a duplicate.
+     * @throws ProtocolException if frames are missing, in which case the connection must be closed.
+     */
+    fun onData(seq: Long): Boolean = lock.withLock {
+        if (seq <= lastReceived) return false
+        if (seq != lastReceived + 1) {
+            throw ProtocolException("Sequence gap: expected ${lastReceived + 1}, received $seq")
+        }
+        lastReceived = seq
+        true
+    }
+
+    /**
+     * Sends a cumulative ack once [ReliabilityOptions.ackEvery] messages were received since the last one,
+     * or right away if [force] is true. To call after the received messages were delivered.
+     *
+     * @param force true to ack even below the threshold, e.g. when the peer sent `ACKREQ`.
+     */
+    fun acknowledge(force: Boolean = false) = lock.withLock {
+        if (lastReceived > lastAckSent && (force || lastReceived - lastAckSent >= options.ackEvery)) {
+            if (output?.invoke("$ACK $lastReceived", OutboundQueue.Lane.CONTROL) == true) {
+                lastAckSent = lastReceived
+            }
+        }
+    }
+
+    /**
+     * Binds the session to a connection and retransmits the messages the peer hasn't received.
+     *
+     * @param output writes a frame on the new connection, returning false if it can't.
+     * @param peerLastReceived the last sequence number the peer reports having received.
+     */
+    fun attach(output: (String, OutboundQueue.Lane) -> Boolean, peerLastReceived: Long) = lock.withLock {
+        release(peerLastReceived)
+        // The resume handshake carries our last received number, which acts as an ack.
+        lastAckSent = lastReceived
+        this.output = output
+        unacked.forEach { output(frame(it), OutboundQueue.Lane.DATA) }
+        drainBacklog()
+        windowOpen.signalAll()
+    }
+
+    /** Unbinds the session from its connection, keeping the unacknowledged messages. */
+    fun detach() = lock.withLock {
+        output = null
+        ackRequested = false
+        // Senders waiting for the window go to the backlog rather than waiting for a connection.
+        windowOpen.signalAll()
+    }
+
+    /**
+     * Restarts both sequences, for a peer that lost the session state.
+     * Unacknowledged messages are renumbered from 1 so [attach] sends them again (at-least-once delivery).
+     */
+    fun reset() = lock.withLock {
+        var seq = 1L
+        unacked.forEach { it.seq = seq++ }
+        backlog.forEach { it.seq = seq++ }
+        nextSeq = seq
+        lastReceived = 0L
+        lastAckSent = 0L
+    }
+
+    private fun frame(pending: Pending) = "$SEQ ${pending.seq} ${pending.message}"
+
+    companion object {
+        const val SEQ = "SEQ"
+        const val ACK = "ACK"
+        const val ACK_REQUEST = "ACKREQ"
+        const val RESUME = "RESUME"
+        const val RESUMED = "RESUMED"
+
+        /**
+         * Splits a `SEQ <n> <payload>` frame.
+         *
+         * @return the sequence number and the payload, or null if the frame is malformed.
+         */
+        fun parseData(frame: String): Pair<Long, String>? {
+            val start = SEQ.length + 1
+            val space = frame.indexOf(' ', start)
+            if (space < 0) return null
+            val seq = frame.substring(start, space).toLongOrNull() ?: return null
+            return Pair(seq, frame.substring(space + 1))
+        }
+
+        private fun utf8Length(message: String): Int {
+            var length = 0
+            var i = 0
+            while (i < message.length) {
+                val c = message[i]
+                length += when {
+                    c.code < 0x80 -> 1
+                    c.code < 0x800 -> 2
+                    Character.isHighSurrogate(c) -> { i++; 4 }
+                    else -> 3
+                }
+                i++
+            }
+            return length
+        }
+    }
+}
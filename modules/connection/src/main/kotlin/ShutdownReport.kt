@@ -0,0 +1,14 @@
+package fr.valentinjdt.lib.tcp.connection
+
+/**
+ * Outcome of [ServerSocketHandler.shutdown].
+ *
+ * @param clients the number of clients connected when the shutdown started.
+ * @param droppedMessages the number of outbound messages that were never written.
+ * @param timedOut true if the deadline elapsed before every queue was drained and every handler thread ended.
+ */
+data class ShutdownReport(
+    val clients: Int,
+    val droppedMessages: Int,
+    val timedOut: Boolean
+)
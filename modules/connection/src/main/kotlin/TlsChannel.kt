@@ -0,0 +1,271 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.ByteChannel
+import java.nio.channels.ClosedChannelException
+import java.util.concurrent.locks.ReentrantLock
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.SSLEngineResult
+import javax.net.ssl.SSLEngineResult.HandshakeStatus
+import javax.net.ssl.SSLException
+import javax.net.ssl.SSLHandshakeException
+import kotlin.concurrent.withLock
+
+/**
+ * A [ByteChannel] encrypting the bytes of an underlying channel with an [SSLEngine].
+ *
+ * The handshake runs on the first [read] or [write], whichever thread comes first, and the other one
+ * waits for it to complete. Afterward, reads and writes can happen concurrently from two different threads,
+ * like on a socket. Records are staged in buffers borrowed from the [BufferPool] for the life of the channel.
+ *
+ * Each handshake is recorded in [stats], with its latency and whether the session was resumed: a resumed
+ * session keeps the creation time of the session it was resumed from, earlier than the handshake itself.
+ *
+ * @param channel the underlying channel, usually a [java.nio.channels.SocketChannel] in blocking mode.
+ * @param engine the engine, already set to client or server mode.
+ * @param pool the pool providing the staging buffers.
+ * @param stats the statistics the handshake is recorded in.
+ */
+class TlsChannel(
+    private val channel: ByteChannel,
+    private val engine: SSLEngine,
+    private val pool: BufferPool = BufferPool.DEFAULT,
+    private val stats: TlsStats? = null
+) : ByteChannel {
+    private val readLock = ReentrantLock()
+    private val writeLock = ReentrantLock()
+
+    // netIn and netOut hold encrypted records, appIn decrypted bytes not yet read. All of them stay in write mode.
+    private var netIn: ByteBuffer? = pool.acquire(engine.session.packetBufferSize)
+    private var netOut: ByteBuffer? = pool.acquire(engine.session.packetBufferSize)
+    private var appIn: ByteBuffer? = pool.acquire(engine.session.applicationBufferSize)
+
+    @Volatile
+    private var handshakeDone = false
+
+    @Volatile
+    private var closed = false
+
+    override fun isOpen(): Boolean = !closed && channel.isOpen
+
+    /**
+     * Reads decrypted bytes, blocking until at least one is available.
+     *
+     * @return the number of bytes read, or -1 once the peer closed the connection.
+     * @throws IOException if an I/O error occurs or the TLS layer fails.
+     */
+    override fun read(dst: ByteBuffer): Int {
+        ensureHandshake()
+        readLock.withLock {
+            while (true) {
+                val app = appIn ?: throw ClosedChannelException()
+                if (app.position() > 0) {
+                    return transfer(app, dst)
+                }
+                if (engine.isInboundDone) return -1
+                if (!unwrap()) return -1
+            }
+        }
+    }
+
+    /**
+     * Encrypts and writes all the remaining bytes of [src].
+     *
+     * @return the number of bytes written.
+     * @throws IOException if an I/O error occurs or the TLS layer fails.
+     */
+    override fun write(src: ByteBuffer): Int {
+        ensureHandshake()
+        writeLock.withLock {
+            val written = src.remaining()
+            while (src.hasRemaining()) {
+                val result = wrap(src)
+                if (result.status == SSLEngineResult.Status.CLOSED) throw ClosedChannelException()
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    throw SSLException("Renegotiation is not supported")
+                }
+            }
+            return written
+        }
+    }
+
+    /**
+     * Sends a `close_notify` alert if no write is in progress, then closes the underlying channel
+     * and gives the buffers back to the pool. Calling this method more than once has no effect.
+     */
+    override fun close() {
+        if (closed) return
+        closed = true
+        try {
+            if (handshakeDone && writeLock.tryLock()) {
+                try {
+                    engine.closeOutbound()
+                    wrap(EMPTY)
+                } catch (e: IOException) {
+                    // The peer may already be gone, the alert is only a courtesy.
+                } finally {
+                    writeLock.unlock()
+                }
+            }
+        } finally {
+            channel.close()
+            // Blocked readers and writers are woken up by the channel closing and release their lock.
+            readLock.withLock {
+                netIn = netIn?.let { pool.release(it); null }
+                appIn = appIn?.let { pool.release(it); null }
+            }
+            writeLock.withLock {
+                netOut = netOut?.let { pool.release(it); null }
+            }
+        }
+    }
+
+    /**
+     * Runs the handshake unless it is already done. Both locks are held, so the other
+     * direction waits for the handshake instead of using the engine concurrently.
+     */
+    private fun ensureHandshake() {
+        if (handshakeDone) return
+        readLock.withLock {
+            writeLock.withLock {
+                if (!handshakeDone) {
+                    handshake()
+                    handshakeDone = true
+                }
+            }
+        }
+    }
+
+    private fun handshake() {
+        val startMillis = System.currentTimeMillis()
+        val start = System.nanoTime()
+        try {
+            engine.beginHandshake()
+            var status = engine.handshakeStatus
+            while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+                status = when (status) {
+                    HandshakeStatus.NEED_WRAP -> {
+                        if (wrap(EMPTY).status == SSLEngineResult.Status.CLOSED) {
+                            throw SSLHandshakeException("Handshake aborted by the engine")
+                        }
+                        engine.handshakeStatus
+                    }
+                    HandshakeStatus.NEED_TASK -> {
+                        runDelegatedTasks()
+                        engine.handshakeStatus
+                    }
+                    else -> {
+                        if (!unwrap()) throw SSLHandshakeException("Connection closed during handshake")
+                        engine.handshakeStatus
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            stats?.recordFailure()
+            throw e
+        }
+        stats?.recordHandshake(System.nanoTime() - start, engine.session.creationTime < startMillis)
+    }
+
+    /**
+     * Decrypts one record into [appIn], reading from the channel when a full record isn't buffered yet.
+     * Called with the read lock held.
+     *
+     * @return false if the connection was closed.
+     */
+    private fun unwrap(): Boolean {
+        while (true) {
+            val net = netIn ?: throw ClosedChannelException()
+            net.flip()
+            val result = try {
+                engine.unwrap(net, appIn ?: throw ClosedChannelException())
+            } finally {
+                net.compact()
+            }
+            when (result.status) {
+                SSLEngineResult.Status.OK -> {
+                    afterUnwrap(result.handshakeStatus)
+                    return true
+                }
+                SSLEngineResult.Status.BUFFER_UNDERFLOW -> {
+                    val bigger = ensureCapacity(net, engine.session.packetBufferSize)
+                    netIn = bigger
+                    if (channel.read(bigger) < 0) {
+                        engine.closeInbound()
+                        return false
+                    }
+                }
+                SSLEngineResult.Status.BUFFER_OVERFLOW -> {
+                    val app = appIn ?: throw ClosedChannelException()
+                    appIn = ensureCapacity(app, app.position() + engine.session.applicationBufferSize)
+                }
+                SSLEngineResult.Status.CLOSED -> {
+                    afterUnwrap(result.handshakeStatus)
+                    return false
+                }
+            }
+        }
+    }
+
+    /** Answers what the engine needs after a post-handshake message, such as a key update or a `close_notify`. */
+    private fun afterUnwrap(status: HandshakeStatus) {
+        if (!handshakeDone) return
+        var next = status
+        while (next == HandshakeStatus.NEED_TASK || next == HandshakeStatus.NEED_WRAP) {
+            if (next == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks()
+            } else {
+                writeLock.withLock { wrap(EMPTY) }
+            }
+            next = engine.handshakeStatus
+        }
+    }
+
+    /** Encrypts bytes of [src] into one record and writes it. Called with the write lock held. */
+    private fun wrap(src: ByteBuffer): SSLEngineResult {
+        while (true) {
+            val net = netOut ?: throw ClosedChannelException()
+            net.clear()
+            val result = engine.wrap(src, net)
+            if (result.status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = ensureCapacity(net, engine.session.packetBufferSize * 2)
+                continue
+            }
+            net.flip()
+            while (net.hasRemaining()) {
+                channel.write(net)
+            }
+            return result
+        }
+    }
+
+    private fun runDelegatedTasks() {
+        while (true) {
+            (engine.delegatedTask ?: return).run()
+        }
+    }
+
+    /** Returns [buffer], or a bigger one with the same content if it can't hold [capacity] bytes. */
+    private fun ensureCapacity(buffer: ByteBuffer, capacity: Int): ByteBuffer {
+        if (buffer.capacity() >= capacity) return buffer
+        val bigger = pool.acquire(capacity).put(buffer.flip())
+        pool.release(buffer)
+        return bigger
+    }
+
+    private fun transfer(from: ByteBuffer, to: ByteBuffer): Int {
+        from.flip()
+        val count = minOf(from.remaining(), to.remaining())
+        val limit = from.limit()
+        from.limit(from.position() + count)
+        to.put(from)
+        from.limit(limit)
+        from.compact()
+        return count
+    }
+
+    companion object {
+        private val EMPTY: ByteBuffer = ByteBuffer.allocate(0)
+    }
+}
@@ -0,0 +1,132 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.FileInputStream
+import java.nio.file.Path
+import java.security.KeyStore
+import java.util.concurrent.atomic.AtomicLong
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.TrustManagerFactory
+
+/**
+ * Settings of the TLS layer of [ServerSocketHandler] and [ClientSocketHandler].
+ *
+ * The session caches of [context] are sized here so that a reconnection storm resumes sessions instead of
+ * running full handshakes. With TLS 1.3, the JDK also issues stateless session tickets by default
+ * (`jdk.tls.server.enableSessionTicketExtension`), which lets a server resume sessions it no longer caches.
+ * Client engines are created for the server's host and port, which is what the client cache is keyed by.
+ *
+ * @param context the SSL context providing the certificates and the session caches.
+ * @param sessionCacheSize the maximum number of sessions cached by each side of [context].
+ * @param sessionTimeout the lifetime of cached sessions, in seconds.
+ * @param needClientAuth true for the server to require a client certificate.
+ * @param protocols the enabled protocols, or null for the JDK defaults.
+ */
+class TlsOptions(
+    val context: SSLContext,
+    sessionCacheSize: Int = 10_000,
+    sessionTimeout: Int = 24 * 60 * 60,
+    private val needClientAuth: Boolean = false,
+    private val protocols: Array<String>? = null
+) {
+    /** The handshakes of every channel created with these options. */
+    val stats = TlsStats()
+
+    init {
+        listOf(context.serverSessionContext, context.clientSessionContext).forEach {
+            it.sessionCacheSize = sessionCacheSize
+            it.sessionTimeout = sessionTimeout
+        }
+    }
+
+    /** Creates an engine for an accepted connection. */
+    fun serverEngine(): SSLEngine = context.createSSLEngine().apply {
+        useClientMode = false
+        needClientAuth = this@TlsOptions.needClientAuth
+        protocols?.let { enabledProtocols = it }
+    }
+
+    /**
+     * Creates an engine for a connection to a server.
+     *
+     * @param host the host of the server, checked against its certificate.
+     * @param port the port of the server.
+     */
+    fun clientEngine(host: String, port: Int): SSLEngine = context.createSSLEngine(host, port).apply {
+        useClientMode = true
+        sslParameters = sslParameters.apply { endpointIdentificationAlgorithm = "HTTPS" }
+        protocols?.let { enabledProtocols = it }
+    }
+
+    companion object {
+        /**
+         * Creates options from a key store holding both the certificate of this end and the trusted certificates.
+         *
+         * @param path the path of the key store.
+         * @param password the password of the key store and its keys.
+         * @param type the type of the key store.
+         * @return options using a new TLS context.
+         */
+        @JvmStatic
+        fun fromKeyStore(path: Path, password: CharArray, type: String = "PKCS12"): TlsOptions {
+            val keyStore = KeyStore.getInstance(type)
+            FileInputStream(path.toFile()).use { keyStore.load(it, password) }
+            val keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
+                .apply { init(keyStore, password) }.keyManagers
+            val trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+                .apply { init(keyStore) }.trustManagers
+            return TlsOptions(SSLContext.getInstance("TLS").apply { init(keyManagers, trustManagers, null) })
+        }
+    }
+}
+
+/**
+ * Handshake statistics of the channels created with the same [TlsOptions].
+ */
+class TlsStats {
+    private val handshakes = AtomicLong()
+    private val resumed = AtomicLong()
+    private val failures = AtomicLong()
+    private val totalNanos = AtomicLong()
+    private val maxNanos = AtomicLong()
+
+    /** Number of completed handshakes. */
+    val handshakeCount: Long
+        get() = handshakes.get()
+
+    /** Number of completed handshakes that resumed a previous session. */
+    val resumedCount: Long
+        get() = resumed.get()
+
+    /** Number of handshakes that failed. */
+    val failureCount: Long
+        get() = failures.get()
+
+    /** Share of the completed handshakes that resumed a session, between 0 and 1. */
+    val resumptionRate: Double
+        get() = handshakeCount.let { if (it == 0L) 0.0 else resumedCount.toDouble() / it }
+
+    /** Average duration of the completed handshakes, in nanoseconds. */
+    val averageHandshakeNanos: Long
+        get() = handshakeCount.let { if (it == 0L) 0L else totalNanos.get() / it }
+
+    /** Duration of the longest completed handshake, in nanoseconds. */
+    val maxHandshakeNanos: Long
+        get() = maxNanos.get()
+
+    internal fun recordHandshake(nanos: Long, wasResumed: Boolean) {
+        handshakes.incrementAndGet()
+        if (wasResumed) resumed.incrementAndGet()
+        totalNanos.addAndGet(nanos)
+        maxNanos.accumulateAndGet(nanos, ::maxOf)
+    }
+
+    internal fun recordFailure() {
+        failures.incrementAndGet()
+    }
+
+    override fun toString(): String =
+        "TlsStats(handshakes=$handshakeCount, resumed=$resumedCount, failures=$failureCount, " +
+            "averageHandshakeNanos=$averageHandshakeNanos, maxHandshakeNanos=$maxHandshakeNanos)"
+}
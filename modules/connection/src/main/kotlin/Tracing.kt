@@ -0,0 +1,143 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.time.Instant
+import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * The trace context a message optionally carries, as a `TRACE <traceId> <spanId> <sentAt> ` prefix.
+ *
+ * @param traceId the 128 bits identifier of the trace, in hexadecimal.
+ * @param spanId the 64 bits identifier of the span that sent the message, in hexadecimal.
+ * @param sentAt the time the message was first sent, in microseconds since the epoch.
+ */
+data class TraceContext(val traceId: String, val spanId: String, val sentAt: Long) {
+
+    /** Returns a context for the next hop of the same message, with a new span id. */
+    fun child(): TraceContext = copy(spanId = newId(1))
+
+    /** Prefixes a message with this context. */
+    fun wrap(message: String): String = "$PREFIX $traceId $spanId $sentAt $message"
+
+    companion object {
+        /** The first word of a traced frame. */
+        const val PREFIX = "TRACE"
+
+        /** Starts a new trace for a message sent now. */
+        @JvmStatic
+        fun newRoot(): TraceContext = TraceContext(newId(2), newId(1), nowMicros())
+
+        /**
+         * Splits a traced frame.
+         *
+         * @return the context and the message, or null if the frame isn't traced or is malformed.
+         */
+        @JvmStatic
+        fun unwrap(frame: String): Pair<TraceContext, String>? {
+            if (!frame.startsWith("$PREFIX ")) return null
+            val parts = frame.split(' ', limit = 5)
+            if (parts.size < 5) return null
+            val sentAt = parts[3].toLongOrNull() ?: return null
+            return Pair(TraceContext(parts[1], parts[2], sentAt), parts[4])
+        }
+
+        /** The current time, in microseconds since the epoch. */
+        @JvmStatic
+        fun nowMicros(): Long = Instant.now().let { it.epochSecond * 1_000_000L + it.nano / 1_000 }
+
+        private fun newId(longs: Int): String {
+            val random = ThreadLocalRandom.current()
+            return (1..longs).joinToString("") { java.lang.Long.toHexString(random.nextLong()).padStart(16, '0') }
+        }
+    }
+}
+
+/**
+ * The timings of one hop of a traced message. All times are in microseconds since the epoch, -1 when unknown.
+ *
+ * A [Kind.RELAY] span is recorded by [ServerSocketHandler] for each client a message is relayed to (or once,
+ * without [target], for a message handed to its subscribers). A [Kind.DELIVERY] span is recorded by
+ * [ClientSocketHandler] when a traced message reaches it. Latencies between hosts depend on their clock sync.
+ *
+ * @param kind where the span was recorded.
+ * @param traceId the identifier of the trace.
+ * @param spanId the identifier of this hop.
+ * @param parentSpanId the identifier of the previous hop.
+ * @param sender the client that sent the message, if known.
+ * @param target the client the message is relayed or delivered to, if any.
+ * @param sentAt the time the message was first sent.
+ * @param receivedAt the time the server read the message.
+ * @param routedAt the time the server resolved where to send it.
+ * @param enqueuedAt the time the server queued it for the target.
+ * @param flushedAt the time the server wrote it to the target's socket.
+ * @param deliveredAt the time the target client read it.
+ */
+data class TraceSpan(
+    val kind: Kind,
+    val traceId: String,
+    val spanId: String,
+    val parentSpanId: String,
+    val sender: UUID?,
+    val target: UUID?,
+    val sentAt: Long,
+    val receivedAt: Long = -1,
+    val routedAt: Long = -1,
+    val enqueuedAt: Long = -1,
+    val flushedAt: Long = -1,
+    val deliveredAt: Long = -1
+) {
+    /** Where a span was recorded. */
+    enum class Kind { RELAY, DELIVERY }
+
+    /** From the sender to the server reading the message. */
+    val inboundLatency: Long
+        get() = between(sentAt, receivedAt)
+
+    /** From the server reading the message to deciding its target. */
+    val routingLatency: Long
+        get() = between(receivedAt, routedAt)
+
+    /** From the server deciding the target to queuing the message. */
+    val enqueueLatency: Long
+        get() = between(routedAt, enqueuedAt)
+
+    /** Time spent in the target's outbound queue. */
+    val queueLatency: Long
+        get() = between(enqueuedAt, flushedAt)
+
+    /** From the server reading the message to writing it to the target. */
+    val serverLatency: Long
+        get() = between(receivedAt, flushedAt)
+
+    /** From the sender to the target client reading the message. */
+    val endToEndLatency: Long
+        get() = between(sentAt, deliveredAt)
+
+    private fun between(from: Long, to: Long) = if (from < 0 || to < 0) -1 else to - from
+}
+
+/**
+ * Receives the spans of traced messages. Called from I/O threads, so implementations should return quickly.
+ */
+fun interface TraceExporter {
+    fun export(span: TraceSpan)
+}
+
+/**
+ * Keeps the exported spans in memory, for tests and diagnostics.
+ */
+class InMemoryTraceExporter : TraceExporter {
+    private val exported = CopyOnWriteArrayList<TraceSpan>()
+
+    /** The spans exported so far, in export order. */
+    val spans: List<TraceSpan>
+        get() = exported.toList()
+
+    override fun export(span: TraceSpan) {
+        exported.add(span)
+    }
+
+    /** Forgets the exported spans. */
+    fun clear() = exported.clear()
+}
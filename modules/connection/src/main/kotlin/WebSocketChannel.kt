@@ -0,0 +1,442 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.ByteChannel
+import java.nio.charset.CharacterCodingException
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import kotlin.concurrent.withLock
+
+/**
+ * The server end of a WebSocket connection (RFC 6455), exchanging one protocol message per WebSocket message.
+ *
+ * [handshake] answers the HTTP upgrade request and negotiates the `permessage-deflate` extension (RFC 7692).
+ * Afterward, [readMessage] reassembles fragmented messages, unmasks and inflates them, and answers pings and
+ * close frames; [writeMessage] sends unmasked text frames, deflated when they are big enough to benefit from it.
+ *
+ * Messages are checked before being handed to the line protocol: invalid UTF-8, line terminators or messages
+ * bigger than [maxMessageSize] close the connection with the matching status code.
+ *
+ * @param channel the underlying channel, in blocking mode.
+ * @param pool the pool providing the staging buffers.
+ * @param maxMessageSize the maximum size, in bytes, of a received message once inflated.
+ */
+class WebSocketChannel(
+    private val channel: ByteChannel,
+    private val pool: BufferPool = BufferPool.DEFAULT,
+    private val maxMessageSize: Int = 1024 * 1024
+) : FramedChannel {
+    private val readLock = ReentrantLock()
+    private val writeLock = ReentrantLock()
+    private val decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT)
+
+    private var readBuffer: ByteBuffer? = pool.acquire(READ_BUFFER_SIZE).flip()
+    private var payload = ByteArray(INITIAL_MESSAGE_SIZE)
+    private val mask = ByteArray(4)
+
+    private var inflater: Inflater? = null
+    private var deflater: Deflater? = null
+    private var resetDeflater = false
+
+    @Volatile
+    private var closed = false
+
+    @Volatile
+    private var closeSent = false
+
+    override val isOpen: Boolean
+        get() = !closed && channel.isOpen
+
+    /** True if the `permessage-deflate` extension was negotiated. */
+    val isDeflateEnabled: Boolean
+        get() = inflater != null
+
+    /**
+     * Reads the HTTP upgrade request and answers it.
+     *
+     * Browsers send the `Origin` of the page opening the connection: when [allowedOrigins] is set, requests
+     * from other origins are rejected. Requests without an `Origin`, which don't come from a browser, are accepted.
+     *
+     * @param path the path the WebSocket endpoint is served on.
+     * @param allowDeflate true to accept a `permessage-deflate` offer.
+     * @param allowedOrigins the origins browsers may connect from, e.g. `https://example.com`, or null to accept any.
+     * @return true if the connection was upgraded, false if the request was rejected with an HTTP error.
+     * @throws IOException if an I/O error occurs.
+     */
+    fun handshake(path: String, allowDeflate: Boolean, allowedOrigins: Set<String>? = null): Boolean = readLock.withLock {
+        val request = readHttpRequest() ?: return reject("400 Bad Request")
+        val lines = request.split("\r\n")
+        val requestLine = lines[0].split(' ')
+        if (requestLine.size != 3 || requestLine[0] != "GET") return reject("400 Bad Request")
+        if (requestLine[1].substringBefore('?') != path) return reject("404 Not Found")
+
+        val headers = HashMap<String, String>()
+        lines.drop(1).forEach { line ->
+            val colon = line.indexOf(':')
+            if (colon > 0) {
+                headers.merge(line.substring(0, colon).trim().lowercase(), line.substring(colon + 1).trim()) { a, b -> "$a, $b" }
+            }
+        }
+        val key = headers["sec-websocket-key"]
+        if (!headers["upgrade"].equals("websocket", ignoreCase = true)
+            || headers["connection"]?.split(',')?.none { it.trim().equals("upgrade", ignoreCase = true) } != false
+            || key == null
+        ) {
+            return reject("400 Bad Request")
+        }
+        if (headers["sec-websocket-version"] != "13") return reject("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n")
+        val origin = headers["origin"]
+        if (origin != null && allowedOrigins != null && allowedOrigins.none { it.equals(origin, ignoreCase = true) }) {
+            return reject("403 Forbidden")
+        }
+
+        val accept = Base64.getEncoder().encodeToString(
+            MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).toByteArray(StandardCharsets.ISO_8859_1))
+        )
+        val extension = if (allowDeflate) negotiateDeflate(headers["sec-websocket-extensions"]) else null
+        writeRaw(
+            "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: $accept\r\n" +
+                (extension?.let { "Sec-WebSocket-Extensions: $it\r\n" } ?: "") + "\r\n"
+        )
+        true
+    }
+
+    override fun readMessage(): String? = readLock.withLock { readFrames() }
+
+    override fun writeMessage(message: String) {
+        var bytes = message.toByteArray(StandardCharsets.UTF_8)
+        var length = bytes.size
+        var rsv1 = false
+        writeLock.withLock {
+            val deflater = deflater
+            if (deflater != null && length >= DEFLATE_THRESHOLD) {
+                val compressed = deflate(deflater, bytes)
+                bytes = compressed.first
+                length = compressed.second
+                rsv1 = true
+            }
+            writeFrame(OPCODE_TEXT, bytes, length, rsv1)
+        }
+    }
+
+    /**
+     * Sends a close frame unless a write is in progress, then closes the underlying channel
+     * and gives the read buffer back to the pool. Calling this method more than once has no effect.
+     */
+    override fun close() {
+        if (closed) return
+        closed = true
+        try {
+            if (writeLock.tryLock()) {
+                try {
+                    sendClose(CLOSE_NORMAL)
+                } catch (e: IOException) {
+                    // The peer may already be gone.
+                } finally {
+                    writeLock.unlock()
+                }
+            }
+        } finally {
+            channel.close()
+            // A blocked reader is woken up by the channel closing and leaves readMessage before the buffer is released.
+            readLock.withLock {
+                readBuffer = readBuffer?.let { pool.release(it); null }
+                inflater?.end()
+            }
+            writeLock.withLock { deflater?.end() }
+        }
+    }
+
+    /** Reads frames until a whole data message is received. Called with the read lock held. */
+    private fun readFrames(): String? {
+        var length = 0
+        var opcode = -1
+        var compressed = false
+        while (true) {
+            if (!fill(2)) return null
+            val buffer = readBuffer!!
+            val b0 = buffer.get().toInt()
+            val b1 = buffer.get().toInt()
+            val fin = b0 and 0x80 != 0
+            val rsv1 = b0 and 0x40 != 0
+            val frameOpcode = b0 and 0x0F
+            var frameLength = (b1 and 0x7F).toLong()
+            if (b0 and 0x30 != 0 || (rsv1 && inflater == null)) {
+                return fail(CLOSE_PROTOCOL_ERROR, "Unexpected reserved bits")
+            }
+            if (b1 and 0x80 == 0) return fail(CLOSE_PROTOCOL_ERROR, "Unmasked client frame")
+            if (frameLength == 126L) {
+                if (!fill(2)) return null
+                frameLength = (readBuffer!!.getShort().toInt() and 0xFFFF).toLong()
+            } else if (frameLength == 127L) {
+                if (!fill(8)) return null
+                frameLength = readBuffer!!.getLong()
+            }
+            if (!fill(4)) return null
+            readBuffer!!.get(mask)
+
+            if (frameOpcode >= OPCODE_CLOSE) {
+                if (!fin || rsv1 || frameLength > 125) return fail(CLOSE_PROTOCOL_ERROR, "Invalid control frame")
+                val control = ByteArray(frameLength.toInt())
+                if (!readPayload(control, 0, control.size)) return null
+                when (frameOpcode) {
+                    OPCODE_CLOSE -> {
+                        writeLock.withLock { sendClose(if (control.size >= 2) ((control[0].toInt() and 0xFF) shl 8) or (control[1].toInt() and 0xFF) else CLOSE_NORMAL) }
+                        return null
+                    }
+                    OPCODE_PING -> writeLock.withLock { writeFrame(OPCODE_PONG, control, control.size, false) }
+                    OPCODE_PONG -> {}
+                    else -> return fail(CLOSE_PROTOCOL_ERROR, "Unknown opcode $frameOpcode")
+                }
+                continue
+            }
+
+            if (frameOpcode == OPCODE_CONTINUATION) {
+                if (opcode < 0) return fail(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame")
+                if (rsv1) return fail(CLOSE_PROTOCOL_ERROR, "Reserved bit on a continuation frame")
+            } else if (frameOpcode == OPCODE_TEXT || frameOpcode == OPCODE_BINARY) {
+                if (opcode >= 0) return fail(CLOSE_PROTOCOL_ERROR, "Expected a continuation frame")
+                opcode = frameOpcode
+                compressed = rsv1
+            } else {
+                return fail(CLOSE_PROTOCOL_ERROR, "Unknown opcode $frameOpcode")
+            }
+
+            if (frameLength < 0 || frameLength > maxMessageSize - length) return fail(CLOSE_TOO_BIG, "Message too big")
+            ensurePayloadCapacity(length + frameLength.toInt())
+            if (!readPayload(payload, length, frameLength.toInt())) return null
+            length += frameLength.toInt()
+            if (fin) break
+        }
+
+        if (compressed) {
+            length = inflate(length) ?: return fail(CLOSE_TOO_BIG, "Message too big")
+        }
+        val message = try {
+            decoder.reset().decode(ByteBuffer.wrap(payload, 0, length)).toString()
+        } catch (e: CharacterCodingException) {
+            return fail(CLOSE_INVALID_DATA, "Invalid UTF-8")
+        }
+        // A line terminator would let a browser inject frames into the line protocol of other clients.
+        if (message.indexOf('\n') >= 0 || message.indexOf('\r') >= 0) {
+            return fail(CLOSE_INVALID_DATA, "Line terminators are not allowed")
+        }
+        return message
+    }
+
+    /** Inflates the first [length] bytes of [payload] in place. Returns null if the result is too big. */
+    private fun inflate(length: Int): Int? {
+        val inflater = inflater!!
+        ensurePayloadCapacity(length + DEFLATE_TAIL.size)
+        DEFLATE_TAIL.copyInto(payload, length)
+        inflater.setInput(payload, 0, length + DEFLATE_TAIL.size)
+        var output = ByteArray(maxOf(INITIAL_MESSAGE_SIZE, length * 4).coerceAtMost(maxMessageSize + 1))
+        var size = 0
+        try {
+            while (true) {
+                size += inflater.inflate(output, size, output.size - size)
+                if (size > maxMessageSize) return null
+                if (inflater.needsInput() || inflater.finished()) break
+                if (size == output.size) output = output.copyOf(minOf(output.size * 2, maxMessageSize + 1))
+            }
+        } catch (e: DataFormatException) {
+            throw IOException("Invalid deflate data", e)
+        }
+        if (inflater.finished()) inflater.reset()
+        payload = output
+        return size
+    }
+
+    /** Deflates a message with a sync flush and strips the trailing empty block, as RFC 7692 requires. */
+    private fun deflate(deflater: Deflater, bytes: ByteArray): Pair<ByteArray, Int> {
+        deflater.setInput(bytes)
+        var output = ByteArray(bytes.size / 2 + 64)
+        var size = 0
+        while (true) {
+            size += deflater.deflate(output, size, output.size - size, Deflater.SYNC_FLUSH)
+            if (size < output.size) break
+            output = output.copyOf(output.size * 2)
+        }
+        if (resetDeflater) deflater.reset()
+        return Pair(output, size - DEFLATE_TAIL.size)
+    }
+
+    /**
+     * Accepts the first `permessage-deflate` offer this implementation can honor.
+     * [Deflater] always uses a 32 KiB window, so offers restricting the server window are declined.
+     *
+     * @return the accepted extension for the response, or null.
+     */
+    private fun negotiateDeflate(header: String?): String? {
+        header ?: return null
+        for (offer in header.split(',')) {
+            val params = offer.split(';').map { it.trim() }
+            if (params[0] != PERMESSAGE_DEFLATE) continue
+            val names = params.drop(1).map { it.substringBefore('=').trim() }
+            val serverWindow = params.firstOrNull { it.startsWith("server_max_window_bits") }?.substringAfter('=', "15")?.trim('"', ' ')
+            if (serverWindow != null && serverWindow != "15") continue
+
+            inflater = Inflater(true)
+            deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+            resetDeflater = "server_no_context_takeover" in names
+            return if (resetDeflater) "$PERMESSAGE_DEFLATE; server_no_context_takeover" else PERMESSAGE_DEFLATE
+        }
+        return null
+    }
+
+    private fun reject(status: String, extraHeaders: String = ""): Boolean {
+        writeRaw("HTTP/1.1 $status\r\n${extraHeaders}Connection: close\r\nContent-Length: 0\r\n\r\n")
+        closeSent = true
+        close()
+        return false
+    }
+
+    /** Closes the connection with a status code after a protocol violation. */
+    private fun fail(code: Int, reason: String): String? {
+        writeLock.withLock { sendClose(code) }
+        close()
+        throw IOException("WebSocket protocol error: $reason")
+    }
+
+    private fun sendClose(code: Int) {
+        if (closeSent) return
+        closeSent = true
+        writeFrame(OPCODE_CLOSE, byteArrayOf((code shr 8).toByte(), code.toByte()), 2, false)
+    }
+
+    /** Writes a frame. Called with the write lock held. */
+    private fun writeFrame(opcode: Int, bytes: ByteArray, length: Int, rsv1: Boolean) {
+        val buffer = pool.acquire(WRITE_BUFFER_SIZE)
+        try {
+            buffer.put((0x80 or (if (rsv1) 0x40 else 0) or opcode).toByte())
+            when {
+                length < 126 -> buffer.put(length.toByte())
+                length <= 0xFFFF -> buffer.put(126.toByte()).putShort(length.toShort())
+                else -> buffer.put(127.toByte()).putLong(length.toLong())
+            }
+            var offset = 0
+            while (true) {
+                val count = minOf(buffer.remaining(), length - offset)
+                buffer.put(bytes, offset, count)
+                offset += count
+                drain(buffer)
+                if (offset == length) break
+            }
+        } finally {
+            pool.release(buffer)
+        }
+    }
+
+    private fun writeRaw(text: String) = writeLock.withLock {
+        val bytes = text.toByteArray(StandardCharsets.ISO_8859_1)
+        val buffer = pool.acquire(bytes.size)
+        try {
+            drain(buffer.put(bytes))
+        } finally {
+            pool.release(buffer)
+        }
+    }
+
+    private fun drain(buffer: ByteBuffer) {
+        buffer.flip()
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+        buffer.clear()
+    }
+
+    /** Reads the request line and headers, up to the empty line. Returns null if the peer closed or sent too much. */
+    private fun readHttpRequest(): String? {
+        val buffer = readBuffer ?: return null
+        while (true) {
+            for (i in buffer.position() until buffer.limit() - 3) {
+                if (buffer.get(i) == CR && buffer.get(i + 1) == LF && buffer.get(i + 2) == CR && buffer.get(i + 3) == LF) {
+                    val bytes = ByteArray(i - buffer.position())
+                    buffer.get(bytes)
+                    buffer.position(buffer.position() + 4)
+                    return String(bytes, StandardCharsets.ISO_8859_1)
+                }
+            }
+            if (buffer.remaining() == buffer.capacity()) return null
+            if (!readMore(buffer)) return null
+        }
+    }
+
+    /** Ensures at least [count] bytes are buffered. Returns false at the end of stream. */
+    private fun fill(count: Int): Boolean {
+        val buffer = readBuffer ?: throw IOException("Channel closed")
+        while (buffer.remaining() < count) {
+            if (!readMore(buffer)) return false
+        }
+        return true
+    }
+
+    /** Reads [length] unmasked payload bytes into [target] at [offset]. Returns false at the end of stream. */
+    private fun readPayload(target: ByteArray, offset: Int, length: Int): Boolean {
+        val buffer = readBuffer ?: throw IOException("Channel closed")
+        var read = 0
+        while (read < length) {
+            if (!buffer.hasRemaining() && !readMore(buffer)) return false
+            val count = minOf(buffer.remaining(), length - read)
+            buffer.get(target, offset + read, count)
+            for (i in 0 until count) {
+                target[offset + read + i] = (target[offset + read + i].toInt() xor mask[(read + i) and 3].toInt()).toByte()
+            }
+            read += count
+        }
+        return true
+    }
+
+    private fun readMore(buffer: ByteBuffer): Boolean {
+        buffer.compact()
+        val read = try {
+            channel.read(buffer)
+        } finally {
+            buffer.flip()
+        }
+        return read >= 0
+    }
+
+    private fun ensurePayloadCapacity(capacity: Int) {
+        if (payload.size < capacity) {
+            payload = payload.copyOf(maxOf(capacity, payload.size * 2))
+        }
+    }
+
+    companion object {
+        private const val WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11"
+        private const val PERMESSAGE_DEFLATE = "permessage-deflate"
+        private val DEFLATE_TAIL = byteArrayOf(0x00, 0x00, 0xFF.toByte(), 0xFF.toByte())
+
+        private const val OPCODE_CONTINUATION = 0x0
+        private const val OPCODE_TEXT = 0x1
+        private const val OPCODE_BINARY = 0x2
+        private const val OPCODE_CLOSE = 0x8
+        private const val OPCODE_PING = 0x9
+        private const val OPCODE_PONG = 0xA
+
+        private const val CLOSE_NORMAL = 1000
+        private const val CLOSE_PROTOCOL_ERROR = 1002
+        private const val CLOSE_INVALID_DATA = 1007
+        private const val CLOSE_TOO_BIG = 1009
+
+        private const val CR = '\r'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+        private const val READ_BUFFER_SIZE = 8 * 1024
+        private const val WRITE_BUFFER_SIZE = 8 * 1024
+        private const val INITIAL_MESSAGE_SIZE = 256
+
+        /** Messages smaller than this are sent uncompressed even when deflate was negotiated. */
+        private const val DEFLATE_THRESHOLD = 128
+    }
+}
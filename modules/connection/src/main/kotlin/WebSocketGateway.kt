@@ -0,0 +1,136 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Accepts WebSocket connections and hands them to a [ServerSocketHandler], so browser clients are peers of
+ * the line protocol clients: they get a UUID, can be addressed with `TO`, receive `GLOBAL` messages and
+ * notify the same subscribers and callbacks.
+ *
+ * Each WebSocket text message carries one message of the line protocol. The HTTP upgrade runs on a pool of
+ * at most [maxHandshakes] threads, then the connection is served by the server's own handler threads.
+ * Connections accepted while every handshake thread is busy are closed, and a handshake that doesn't
+ * complete within [handshakeTimeout] is aborted, so idle connections can't hold the threads.
+ *
+ * @param server the server whose client table and routing are shared.
+ * @param port the port to listen on.
+ * @param path the path of the WebSocket endpoint.
+ * @param deflate true to accept the `permessage-deflate` extension.
+ * @param tls the settings of the TLS layer, or null to serve plain `ws://`.
+ * @param bufferPool the pool providing the direct buffers used to stage reads and writes.
+ * @param maxMessageSize the maximum size, in bytes, of a message received from a browser.
+ * @param allowedOrigins the origins of the pages allowed to connect, e.g. `https://example.com`, or null to allow any.
+ * Without it, any website a user visits can connect as a peer.
+ * @param maxHandshakes the maximum number of concurrent handshakes.
+ * @param handshakeTimeout the time, in milliseconds, a connection has to complete its handshake.
+ */
+class WebSocketGateway(
+    private val server: ServerSocketHandler,
+    private val port: Int,
+    private val path: String = "/",
+    private val deflate: Boolean = true,
+    private val tls: TlsOptions? = null,
+    private val bufferPool: BufferPool = BufferPool.DEFAULT,
+    private val maxMessageSize: Int = 1024 * 1024,
+    private val allowedOrigins: Set<String>? = null,
+    maxHandshakes: Int = 64,
+    private val handshakeTimeout: Long = 10_000L
+) {
+    private val handshakes = AtomicInteger()
+    private val handshakePool = ThreadPoolExecutor(maxHandshakes, maxHandshakes, 60L, TimeUnit.SECONDS, SynchronousQueue()) { task ->
+        Thread(task, "WebSocketGateway-handshake-${handshakes.incrementAndGet()}").apply { isDaemon = true }
+    }.apply { allowCoreThreadTimeOut(true) }
+    private val deadlines: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { task ->
+        Thread(task, "WebSocketGateway-deadlines").apply { isDaemon = true }
+    }
+
+    @Volatile
+    private var serverChannel: ServerSocketChannel? = null
+
+    @Volatile
+    private var isRunning = true
+
+    /**
+     * Starts listening for WebSocket connections.
+     * The method returns once [stop] closes the server socket.
+     *
+     * @throws IOException if an I/O error occurs when opening the socket.
+     */
+    fun start() {
+        try {
+            val channel = ServerSocketChannel.open().bind(InetSocketAddress(port))
+            serverChannel = channel
+            LOGGER.info("WebSocket gateway started on port $port")
+
+            while (isRunning) {
+                val socketChannel = channel.accept()
+                try {
+                    handshakePool.execute { upgrade(socketChannel) }
+                } catch (e: RejectedExecutionException) {
+                    LOGGER.warning("Too many WebSocket handshakes in progress, connection closed.")
+                    socketChannel.close()
+                }
+            }
+        } catch (e: ClosedChannelException) {
+            if (isRunning) {
+                LOGGER.log(Level.SEVERE, "Gateway error", e)
+            }
+        } catch (e: IOException) {
+            LOGGER.log(Level.SEVERE, "Gateway error", e)
+        }
+    }
+
+    /**
+     * Stops accepting WebSocket connections. Connected clients are left to the server,
+     * which disconnects them on [ServerSocketHandler.stop] or [ServerSocketHandler.shutdown].
+     */
+    fun stop() {
+        isRunning = false
+        handshakePool.shutdown()
+        deadlines.shutdown()
+        try {
+            serverChannel?.close()
+        } catch (e: IOException) {
+            LOGGER.log(Level.SEVERE, "Gateway error", e)
+        }
+        LOGGER.info("WebSocket gateway stopped.")
+    }
+
+    private fun upgrade(socketChannel: SocketChannel) {
+        val channel = WebSocketChannel(
+            tls?.let { TlsChannel(socketChannel, it.serverEngine(), bufferPool, it.stats) } ?: socketChannel,
+            bufferPool,
+            maxMessageSize
+        )
+        // Closing the socket ends a read blocked in the handshake.
+        val deadline = deadlines.schedule({ socketChannel.close() }, handshakeTimeout, TimeUnit.MILLISECONDS)
+        try {
+            val upgraded = channel.handshake(path, deflate, allowedOrigins)
+            if (deadline.cancel(false) && upgraded) {
+                server.acceptClient(channel)
+            } else {
+                channel.close()
+            }
+        } catch (e: IOException) {
+            LOGGER.log(Level.WARNING, "WebSocket handshake failed: ${e.message}")
+            channel.close()
+        }
+    }
+
+    companion object {
+        private val LOGGER: Logger = Logger.getLogger(WebSocketGateway::class.java.getName())
+    }
+}
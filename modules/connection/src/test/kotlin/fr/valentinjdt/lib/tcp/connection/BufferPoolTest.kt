@@ -0,0 +1,74 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class BufferPoolTest {
+
+    @Test
+    fun `test acquire rounds up to the size class`() {
+        val pool = BufferPool(intArrayOf(16, 64))
+
+        val small = pool.acquire(10)
+        val medium = pool.acquire(17)
+
+        assertTrue(small.isDirect)
+        assertEquals(16, small.capacity())
+        assertEquals(64, medium.capacity())
+        assertEquals(2, pool.outstandingCount)
+    }
+
+    @Test
+    fun `test released buffer is reused`() {
+        val pool = BufferPool(intArrayOf(16))
+
+        val buffer = pool.acquire()
+        buffer.put(1)
+        pool.release(buffer)
+        val reused = pool.acquire()
+
+        assertSame(buffer, reused)
+        assertEquals(0, reused.position())
+        assertEquals(16, reused.limit())
+    }
+
+    @Test
+    fun `test oversized buffer is not pooled`() {
+        val pool = BufferPool(intArrayOf(16))
+
+        val buffer = pool.acquire(100)
+        pool.release(buffer)
+
+        assertEquals(100, buffer.capacity())
+        assertEquals(0, pool.outstandingCount)
+        assertEquals(16, pool.acquire().capacity())
+    }
+
+    @Test
+    fun `test leak detection reports unreleased buffer`() {
+        val pool = BufferPool(intArrayOf(16), leakDetection = true)
+
+        pool.acquire()
+
+        repeat(50) {
+            if (pool.leakCount > 0) return@repeat
+            System.gc()
+            Thread.sleep(20)
+        }
+        assertEquals(1, pool.leakCount)
+        assertEquals(0, pool.outstandingCount)
+    }
+
+    @Test
+    fun `test leak detection ignores released buffer`() {
+        val pool = BufferPool(intArrayOf(16), leakDetection = true)
+
+        pool.release(pool.acquire())
+        pool.release(pool.acquire())
+
+        assertEquals(0, pool.leakCount)
+        assertEquals(0, pool.outstandingCount)
+    }
+}
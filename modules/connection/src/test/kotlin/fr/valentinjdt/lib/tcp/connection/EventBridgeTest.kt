@@ -0,0 +1,210 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import fr.valentinjdt.lib.event.Cancellable
+import fr.valentinjdt.lib.event.EventBus
+import fr.valentinjdt.lib.event.EventHandler
+import fr.valentinjdt.lib.event.EventPriority
+import fr.valentinjdt.lib.event.Listener
+import java.io.ByteArrayOutputStream
+import java.io.InvalidClassException
+import java.io.ObjectOutputStream
+import java.net.ServerSocket
+import java.time.Instant
+import java.util.Base64
+import java.util.PriorityQueue
+import java.util.UUID
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+
+class EventBridgeTest {
+
+    class ChatEvent(val text: String) : BridgedEvent
+
+    class VetoableEvent(val text: String) : BridgedEvent, Cancellable {
+        override var cancel = false
+    }
+
+    class StatusEvent(
+        val id: UUID,
+        val at: Instant,
+        val tags: List<String>,
+        val single: List<Int>,
+        val none: List<String>,
+        val counts: Map<String, Long>,
+        val flags: Set<Boolean>
+    ) : BridgedEvent
+
+    class RecordingListener(private val name: String, private val received: LinkedBlockingQueue<String>) : Listener() {
+
+        @EventHandler
+        fun onChat(event: ChatEvent) {
+            received.add("$name:${event.text}")
+        }
+
+        @EventHandler
+        fun onStatus(event: StatusEvent) {
+            received.add("$name:${event.id}:${event.at}:${event.tags}:${event.single}:${event.none}:${event.counts}:${event.flags}")
+        }
+
+        @EventHandler(ignoreCancelled = false)
+        fun onVetoable(event: VetoableEvent) {
+            if (event.text == "veto") event.cancel = true
+            received.add("$name:${event.text}")
+        }
+    }
+
+    class FailingListener : Listener() {
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        fun onChat(event: ChatEvent) {
+            if (event.text == "boom") throw IllegalStateException("boom")
+        }
+    }
+
+    private fun freePort(): Int = ServerSocket(0).use { it.localPort }
+
+    private fun serialize(value: Any): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        ObjectOutputStream(bytes).use { it.writeObject(value) }
+        return bytes.toByteArray()
+    }
+
+    private fun base64(bytes: ByteArray) = Base64.getEncoder().encodeToString(bytes)
+
+    private fun bus(name: String, received: LinkedBlockingQueue<String>) =
+        EventBus().apply { registerListener(RecordingListener(name, received)) }
+
+    @Test
+    fun `test events are forwarded once to every process`() {
+        val port = freePort()
+        val received = LinkedBlockingQueue<String>()
+        val server = ServerSocketHandler(port)
+        val serverBridge = EventBridge.attach(server, bus("server", received))
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+
+        val first = ClientSocketHandler("127.0.0.1", port)
+        val firstBridge = EventBridge.attach(first, bus("first", received))
+        first.connect()
+        val second = ClientSocketHandler("127.0.0.1", port)
+        val secondBridge = EventBridge.attach(second, bus("second", received))
+        second.connect()
+        Thread.sleep(200)
+
+        // Dispatched locally, then on the server and, through it, on the other client
+        firstBridge.runEvent(ChatEvent("hello"))
+        val deliveries = List(3) { received.poll(5, TimeUnit.SECONDS) }
+        assertEquals(setOf("first:hello", "server:hello", "second:hello"), deliveries.toSet())
+
+        // The events of the server reach the clients, in order
+        repeat(100) { serverBridge.runEvent(ChatEvent("batch-$it")) }
+        val batch = List(300) { received.poll(5, TimeUnit.SECONDS) }
+        assertEquals(List(100) { "first:batch-$it" }, batch.filter { it!!.startsWith("first:") })
+        assertEquals(List(100) { "second:batch-$it" }, batch.filter { it!!.startsWith("second:") })
+
+        // A cancelled event stays local
+        secondBridge.runEvent(VetoableEvent("veto"))
+        assertEquals("second:veto", received.poll(5, TimeUnit.SECONDS))
+
+        // No event comes back to its origin
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS))
+
+        firstBridge.close()
+        secondBridge.close()
+        serverBridge.close()
+        first.disconnect()
+        second.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test bridge frames are consumed and handler failures are contained`() {
+        val port = freePort()
+        val received = LinkedBlockingQueue<String>()
+        val messages = LinkedBlockingQueue<String>()
+        val server = ServerSocketHandler(port)
+        val serverBus = bus("server", received).apply { registerListener(FailingListener()) }
+        val serverBridge = EventBridge.attach(server, serverBus)
+        server.subscribe { _, message -> messages.add("server:$message") }
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+
+        val client = ClientSocketHandler("127.0.0.1", port)
+        val clientBridge = EventBridge.attach(client, bus("client", received))
+        client.subscribe { message -> messages.add("client:$message") }
+        client.connect()
+        Thread.sleep(200)
+
+        // The failing handler neither stops the rest of the frame nor the connection
+        clientBridge.runEvent(ChatEvent("boom"))
+        clientBridge.runEvent(ChatEvent("after"))
+        val deliveries = List(4) { received.poll(5, TimeUnit.SECONDS) }
+        assertEquals(setOf("client:boom", "client:after", "server:boom", "server:after"), deliveries.toSet())
+        serverBridge.runEvent(ChatEvent("reply"))
+        assertEquals(setOf("server:reply", "client:reply"), List(2) { received.poll(5, TimeUnit.SECONDS) }.toSet())
+        client.sendMessage("plain")
+        assertEquals("server:plain", messages.poll(5, TimeUnit.SECONDS))
+
+        // Only the plain message reached the subscribers, never the frames of the bridges
+        assertNull(messages.poll(300, TimeUnit.MILLISECONDS))
+
+        clientBridge.close()
+        serverBridge.close()
+        client.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test events holding collections and java time values are forwarded`() {
+        val port = freePort()
+        val received = LinkedBlockingQueue<String>()
+        val server = ServerSocketHandler(port)
+        val serverBridge = EventBridge.attach(server, bus("server", received))
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+
+        val client = ClientSocketHandler("127.0.0.1", port)
+        val clientBridge = EventBridge.attach(client, bus("client", received))
+        client.connect()
+        Thread.sleep(200)
+
+        val event = StatusEvent(
+            UUID.randomUUID(), Instant.now(), listOf("a", "b"), listOf(1), emptyList(),
+            mapOf("x" to 1L, "y" to 2L), setOf(true)
+        )
+        val expected = "${event.id}:${event.at}:${event.tags}:${event.single}:${event.none}:${event.counts}:${event.flags}"
+        clientBridge.runEvent(event)
+        assertEquals(setOf("client:$expected", "server:$expected"), List(2) { received.poll(5, TimeUnit.SECONDS) }.toSet())
+
+        clientBridge.close()
+        serverBridge.close()
+        client.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test frames with huge arrays or untrusted classes are rejected`() {
+        val server = ServerSocketHandler(freePort())
+        val bridge = EventBridge.attach(server, bus("server", LinkedBlockingQueue()))
+
+        // An array declaring Int.MAX_VALUE elements is rejected before being allocated
+        val bytes = serialize(arrayOfNulls<String>(1))
+        // The stream ends with the length of the array and its only element, TC_NULL
+        bytes[bytes.size - 5] = 0x7F
+        bytes.fill(0xFF.toByte(), bytes.size - 4, bytes.size - 1)
+        assertFailsWith<InvalidClassException> { bridge.decode(base64(bytes)) }
+
+        // Same for a real array above the limit
+        val tooLong = arrayOfNulls<String>(EventBridge.MAX_ARRAY_LENGTH.toInt() + 1)
+        assertFailsWith<InvalidClassException> { bridge.decode(base64(serialize(tooLong))) }
+
+        // Classes of java.util outside the usual collections aren't trusted
+        assertFailsWith<InvalidClassException> { bridge.decode(base64(serialize(PriorityQueue(listOf("a"))))) }
+
+        bridge.close()
+    }
+}
@@ -0,0 +1,84 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+class MessageChannelTest {
+
+    private lateinit var server: ServerSocketChannel
+    private lateinit var clientSide: SocketChannel
+    private lateinit var serverSide: SocketChannel
+    private val pool = BufferPool(intArrayOf(16, 8 * 1024), leakDetection = true)
+
+    @BeforeTest
+    fun setup() {
+        server = ServerSocketChannel.open().bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        clientSide = SocketChannel.open(server.localAddress)
+        serverSide = server.accept()
+    }
+
+    @AfterTest
+    fun tearDown() {
+        clientSide.close()
+        serverSide.close()
+        server.close()
+    }
+
+    @Test
+    fun `test messages are split on line terminators`() {
+        val reader = MessageChannel(serverSide, pool)
+        clientSide.write(ByteBuffer.wrap("first\nsecond\r\nthi".toByteArray()))
+        clientSide.write(ByteBuffer.wrap("rd\n".toByteArray()))
+
+        assertEquals("first", reader.readMessage())
+        assertEquals("second", reader.readMessage())
+        assertEquals("third", reader.readMessage())
+    }
+
+    @Test
+    fun `test write and read round trip`() {
+        val writer = MessageChannel(clientSide, pool)
+        val reader = MessageChannel(serverSide, pool)
+        val long = "é".repeat(20_000)
+
+        writer.writeMessage("hello")
+        writer.writeMessage(long)
+        writer.writeMessage("")
+
+        assertEquals("hello", reader.readMessage())
+        assertEquals(long, reader.readMessage())
+        assertEquals("", reader.readMessage())
+    }
+
+    @Test
+    fun `test end of stream`() {
+        val reader = MessageChannel(serverSide, pool)
+        clientSide.write(ByteBuffer.wrap("last".toByteArray()))
+        clientSide.close()
+
+        assertEquals("last", reader.readMessage())
+        assertNull(reader.readMessage())
+    }
+
+    @Test
+    fun `test buffers are released on close`() {
+        val writer = MessageChannel(clientSide, pool)
+        val reader = MessageChannel(serverSide, pool)
+
+        writer.writeMessage("hello")
+        reader.readMessage()
+        writer.close()
+        reader.close()
+
+        assertEquals(0, pool.outstandingCount)
+        assertEquals(0, pool.leakCount)
+    }
+}
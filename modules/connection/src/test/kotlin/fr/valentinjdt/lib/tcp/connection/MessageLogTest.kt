@@ -0,0 +1,105 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.util.UUID
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.logging.Handler
+import java.util.logging.LogRecord
+import java.util.logging.Logger
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class MessageLogTest {
+
+    private val records = CopyOnWriteArrayList<LogRecord>()
+
+    private fun capturingLogger(onPublish: () -> Unit = {}): Logger =
+        Logger.getAnonymousLogger().apply {
+            useParentHandlers = false
+            addHandler(object : Handler() {
+                override fun publish(record: LogRecord) {
+                    onPublish()
+                    records.add(record)
+                }
+                override fun flush() {}
+                override fun close() {}
+            })
+        }
+
+    @Test
+    fun `test entries are formatted by the writer`() {
+        val logger = capturingLogger()
+        val uuid = UUID.randomUUID()
+        MessageLog().use { log ->
+            log.log(logger, "Received from", uuid, "hello")
+            log.log(logger, "", null, "world")
+            assertTrue(log.flush())
+        }
+        assertEquals(listOf("Received from $uuid: hello", "world"), records.map { it.message })
+    }
+
+    @Test
+    fun `test idle writer parks until the next entry`() {
+        val written = CountDownLatch(1)
+        val logger = capturingLogger { written.countDown() }
+        MessageLog().use { log ->
+            Thread.sleep(100)
+            val writer = Thread.getAllStackTraces().keys.filter { it.name == "MessageLog-writer" }
+            assertTrue(writer.isNotEmpty())
+            // Parked without a timeout, not polling
+            writer.forEach { assertEquals(Thread.State.WAITING, it.state) }
+
+            log.log(logger, "", null, "wake up")
+            assertTrue(written.await(5, TimeUnit.SECONDS))
+        }
+        assertEquals(listOf("wake up"), records.map { it.message })
+    }
+
+    @Test
+    fun `test one in n sampling`() {
+        val logger = capturingLogger()
+        MessageLog(sampler = LogSampler.oneIn(10)).use { log ->
+            repeat(100) { log.log(logger, "", null, "message-$it") }
+            assertTrue(log.flush())
+        }
+        assertEquals((0 until 100 step 10).map { "message-$it" }, records.map { it.message })
+    }
+
+    @Test
+    fun `test first n per client per second sampling`() {
+        val logger = capturingLogger()
+        val first = UUID.randomUUID()
+        val second = UUID.randomUUID()
+        MessageLog(sampler = LogSampler.parse("3/s")).use { log ->
+            repeat(10) {
+                log.log(logger, "Received from", first, "message-$it")
+                log.log(logger, "Received from", second, "message-$it")
+            }
+            assertTrue(log.flush())
+        }
+        // Both clients may straddle a second boundary, which opens a new window.
+        assertTrue(records.size in 6..12)
+        assertEquals(listOf(first, second).map { uuid -> "Received from $uuid: message-0" }, records.take(2).map { it.message })
+    }
+
+    @Test
+    fun `test entries are dropped instead of blocking when the ring is full`() {
+        val blocked = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val logger = capturingLogger {
+            blocked.countDown()
+            release.await(5, TimeUnit.SECONDS)
+        }
+        MessageLog(capacity = 4).use { log ->
+            log.log(logger, "", null, "first")
+            assertTrue(blocked.await(5, TimeUnit.SECONDS))
+            repeat(10) { log.log(logger, "", null, "message-$it") }
+            assertEquals(6, log.droppedCount)
+            release.countDown()
+            assertTrue(log.flush())
+        }
+        assertEquals(listOf("first", "message-0", "message-1", "message-2", "message-3"), records.map { it.message })
+    }
+}
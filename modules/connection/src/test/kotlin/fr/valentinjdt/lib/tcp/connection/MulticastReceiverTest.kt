@@ -0,0 +1,66 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.net.InetAddress
+import java.net.NetworkInterface
+import java.net.ServerSocket
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class MulticastReceiverTest {
+
+    private val delivered = ArrayList<String>()
+    private val requested = ArrayList<Pair<Long, Long>>()
+    private lateinit var receiver: MulticastReceiver
+
+    @BeforeTest
+    fun setUp() {
+        receiver = MulticastReceiver(
+            InetAddress.getByName("239.255.42.1"),
+            ServerSocket(0).use { it.localPort },
+            NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()),
+            deliver = { delivered.add(it) },
+            requestRetransmit = { from, to -> requested.add(Pair(from, to)) }
+        )
+    }
+
+    @AfterTest
+    fun tearDown() {
+        receiver.close()
+    }
+
+    @Test
+    fun `test frames are ignored until started`() {
+        receiver.onFrame(1, "one")
+        receiver.start(2)
+        receiver.onFrame(1, "one")
+        receiver.onFrame(2, "two")
+        assertEquals(listOf("two"), delivered)
+        assertEquals(emptyList(), requested)
+    }
+
+    @Test
+    fun `test a gap is requested once and delivered in order`() {
+        receiver.start(1)
+        receiver.onFrame(1, "one")
+        receiver.onFrame(4, "four")
+        receiver.onFrame(5, "five")
+        assertEquals(listOf("one"), delivered)
+        assertEquals(listOf(Pair(2L, 3L)), requested)
+
+        receiver.onFrame(3, "three")
+        receiver.onFrame(2, "two")
+        receiver.onFrame(2, "two")
+        assertEquals(listOf("one", "two", "three", "four", "five"), delivered)
+    }
+
+    @Test
+    fun `test lost frames are skipped`() {
+        receiver.start(1)
+        receiver.onFrame(3, "three")
+        receiver.onLost(1, 2)
+        receiver.onFrame(4, "four")
+        assertEquals(listOf("three", "four"), delivered)
+    }
+}
@@ -0,0 +1,107 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.nio.ByteBuffer
+import java.nio.channels.ByteChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class OutboundQueueTest {
+
+    /** A channel recording written bytes, whose first write blocks until [release] is called. */
+    private class BlockingChannel : ByteChannel {
+        private val firstWrite = CountDownLatch(1)
+        val writing = CountDownLatch(1)
+        val written = StringBuilder()
+        private var open = true
+
+        fun release() = firstWrite.countDown()
+
+        fun messages(): List<String> = synchronized(written) { written.lines().filter { it.isNotEmpty() } }
+
+        override fun write(src: ByteBuffer): Int {
+            writing.countDown()
+            firstWrite.await()
+            val bytes = ByteArray(src.remaining())
+            src.get(bytes)
+            synchronized(written) { written.append(String(bytes)) }
+            return bytes.size
+        }
+
+        override fun read(dst: ByteBuffer): Int = -1
+        override fun isOpen(): Boolean = open
+        override fun close() {
+            open = false
+        }
+    }
+
+    @Test
+    fun `test control lane is written before queued data`() {
+        val channel = BlockingChannel()
+        val queue = OutboundQueue(MessageChannel(channel), "test-writer")
+
+        queue.offer("data-1")
+        channel.writing.await()
+        queue.offer("data-2")
+        queue.offer("data-3")
+        queue.offer("KICK", OutboundQueue.Lane.CONTROL)
+        channel.release()
+        queue.close(drainData = true)
+
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS))
+        assertEquals(listOf("data-1", "KICK", "data-2", "data-3"), channel.messages())
+        assertEquals(0, queue.droppedCount)
+    }
+
+    @Test
+    fun `test close flushes the control lane and drops data`() {
+        val channel = BlockingChannel()
+        val queue = OutboundQueue(MessageChannel(channel), "test-writer")
+
+        queue.offer("data-1")
+        channel.writing.await()
+        queue.offer("data-2")
+        queue.offer("KICK", OutboundQueue.Lane.CONTROL)
+        queue.close()
+        channel.release()
+
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS))
+        assertEquals(listOf("data-1", "KICK"), channel.messages())
+        assertEquals(1, queue.droppedCount)
+        assertFalse(channel.isOpen)
+    }
+
+    @Test
+    fun `test close now can hand back the pending data`() {
+        val channel = BlockingChannel()
+        val queue = OutboundQueue(MessageChannel(channel), "test-writer")
+
+        queue.offer("data-1")
+        channel.writing.await()
+        queue.offer("data-2")
+        queue.offer("data-3") {}
+        queue.offer("PING", OutboundQueue.Lane.CONTROL)
+
+        assertEquals(listOf("data-2", "data-3"), queue.closeNowKeepingData())
+        assertTrue(queue.isClosed)
+        assertEquals(1, queue.droppedCount)
+        assertFalse(queue.offer("data-4"))
+        channel.release()
+    }
+
+    @Test
+    fun `test data is refused once closing`() {
+        val channel = BlockingChannel()
+        channel.release()
+        val queue = OutboundQueue(MessageChannel(channel), "test-writer")
+
+        queue.close()
+
+        assertFalse(queue.offer("data"))
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS))
+        assertTrue(queue.isClosed)
+    }
+}
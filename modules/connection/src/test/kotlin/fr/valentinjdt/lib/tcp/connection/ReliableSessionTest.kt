@@ -0,0 +1,170 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.net.ProtocolException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class ReliableSessionTest {
+
+    private val frames = CopyOnWriteArrayList<String>()
+    private val output: (String, OutboundQueue.Lane) -> Boolean = { frame, _ -> frames.add(frame) }
+
+    @Test
+    fun `test messages are sequenced`() {
+        val session = ReliableSession()
+        session.attach(output, 0L)
+
+        session.send("a")
+        session.send("b")
+
+        assertEquals(listOf("SEQ 1 a", "SEQ 2 b"), frames)
+        assertEquals(2, session.unackedCount)
+        assertEquals(2, session.inFlight)
+    }
+
+    @Test
+    fun `test cumulative ack releases the window`() {
+        val session = ReliableSession()
+        session.attach(output, 0L)
+        repeat(3) { session.send("m$it") }
+
+        session.onAck(2)
+
+        assertEquals(1, session.unackedCount)
+        assertEquals(2, session.inFlight)
+    }
+
+    @Test
+    fun `test send blocks while the window is full`() {
+        val session = ReliableSession(ReliabilityOptions(windowBytes = 4, sendTimeout = 5_000))
+        session.attach(output, 0L)
+        session.send("1234")
+        val sent = CountDownLatch(1)
+
+        Thread {
+            session.send("5678")
+            sent.countDown()
+        }.start()
+
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS))
+        assertTrue(frames.contains(ReliableSession.ACK_REQUEST))
+        session.onAck(1)
+        assertTrue(sent.await(5, TimeUnit.SECONDS))
+        assertEquals("SEQ 2 5678", frames.last())
+    }
+
+    @Test
+    fun `test send gives up after the timeout`() {
+        val session = ReliableSession(ReliabilityOptions(windowBytes = 4, sendTimeout = 50))
+        session.attach(output, 0L)
+        session.send("1234")
+
+        assertFalse(session.send("5678"))
+        assertEquals(1, session.unackedCount)
+    }
+
+    @Test
+    fun `test send without waiting keeps the message in the backlog`() {
+        val session = ReliableSession(ReliabilityOptions(windowBytes = 4, sendTimeout = 5_000, backlogBytes = 8))
+        session.attach(output, 0L)
+        session.send("1234")
+
+        assertTrue(session.send("5678", wait = false))
+        assertTrue(session.send("9abc", wait = false))
+        assertFalse(session.send("defg", wait = false))
+        assertEquals(2, session.backlogCount)
+        assertEquals(listOf("SEQ 1 1234", ReliableSession.ACK_REQUEST), frames)
+
+        session.onAck(1)
+        assertEquals("SEQ 2 5678", frames.last())
+        session.onAck(2)
+        assertEquals("SEQ 3 9abc", frames.last())
+        assertEquals(0, session.backlogCount)
+    }
+
+    @Test
+    fun `test send never waits while detached`() {
+        val session = ReliableSession(ReliabilityOptions(windowBytes = 4, sendTimeout = 5_000))
+        session.attach(output, 0L)
+        session.send("1234")
+        session.detach()
+        frames.clear()
+
+        assertTrue(session.send("5678"))
+        assertFalse(session.send("9abc"))
+
+        session.attach(output, 1L)
+        assertEquals(listOf("SEQ 2 5678"), frames)
+    }
+
+    @Test
+    fun `test duplicates are dropped and gaps rejected`() {
+        val session = ReliableSession()
+
+        assertTrue(session.onData(1))
+        assertFalse(session.onData(1))
+        assertTrue(session.onData(2))
+        assertFailsWith<ProtocolException> { session.onData(4) }
+        assertEquals(2, session.lastReceivedSeq)
+    }
+
+    @Test
+    fun `test acknowledge waits for the threshold unless forced`() {
+        val session = ReliableSession(ReliabilityOptions(ackEvery = 2))
+        session.attach(output, 0L)
+
+        session.onData(1)
+        session.acknowledge()
+        assertTrue(frames.isEmpty())
+
+        session.onData(2)
+        session.acknowledge()
+        session.onData(3)
+        session.acknowledge(true)
+        assertEquals(listOf("ACK 2", "ACK 3"), frames)
+    }
+
+    @Test
+    fun `test attach retransmits what the peer missed`() {
+        val session = ReliableSession()
+        session.attach(output, 0L)
+        repeat(3) { session.send("m$it") }
+        session.detach()
+        session.send("m3")
+        frames.clear()
+
+        session.attach(output, 1L)
+
+        assertEquals(listOf("SEQ 2 m1", "SEQ 3 m2", "SEQ 4 m3"), frames)
+    }
+
+    @Test
+    fun `test reset renumbers unacked messages`() {
+        val session = ReliableSession()
+        session.attach(output, 0L)
+        repeat(3) { session.send("m$it") }
+        session.onAck(1)
+        session.onData(1)
+        session.detach()
+        frames.clear()
+
+        session.reset()
+        session.attach(output, 0L)
+
+        assertEquals(listOf("SEQ 1 m1", "SEQ 2 m2"), frames)
+        assertEquals(0, session.lastReceivedSeq)
+    }
+
+    @Test
+    fun `test parse data frame`() {
+        assertEquals(Pair(12L, "hello world"), ReliableSession.parseData("SEQ 12 hello world"))
+        assertEquals(null, ReliableSession.parseData("SEQ x hello"))
+        assertEquals(null, ReliableSession.parseData("SEQ 12"))
+    }
+}
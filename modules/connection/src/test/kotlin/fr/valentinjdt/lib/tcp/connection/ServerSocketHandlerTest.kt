@@ -0,0 +1,345 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.net.DatagramPacket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.MulticastSocket
+import java.net.NetworkInterface
+import java.net.ServerSocket
+import java.nio.channels.SocketChannel
+import java.util.concurrent.Flow
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.SubmissionPublisher
+import java.util.concurrent.TimeUnit
+import javax.net.ssl.SSLContext
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class ServerSocketHandlerTest {
+
+    private fun freePort(): Int = ServerSocket(0).use { it.localPort }
+
+    private fun startServer(
+        port: Int,
+        received: LinkedBlockingQueue<String>,
+        name: String,
+        reliability: ReliabilityOptions? = null
+    ): ServerSocketHandler {
+        val server = ServerSocketHandler(port, reliability = reliability)
+        server.subscribe { _, message -> received.add("$name:$message") }
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+        return server
+    }
+
+    @Test
+    fun `test shutdown drains and client reconnects to the next server`() {
+        val port = freePort()
+        val received = LinkedBlockingQueue<String>()
+        val server = startServer(port, received, "first")
+        val client = ClientSocketHandler("127.0.0.1", port)
+        client.connect()
+
+        client.sendMessage("before")
+        assertEquals("first:before", received.poll(5, TimeUnit.SECONDS))
+
+        val report = server.shutdown(2, TimeUnit.SECONDS, reconnectDelay = 300)
+        assertEquals(1, report.clients)
+        assertEquals(0, report.droppedMessages)
+        assertFalse(report.timedOut)
+
+        client.sendMessage("during")
+        val next = startServer(port, received, "second")
+        assertEquals("second:during", received.poll(5, TimeUnit.SECONDS))
+
+        client.disconnect()
+        next.stop()
+    }
+
+    @Test
+    fun `test messages sent right before disconnecting are delivered`() {
+        val port = freePort()
+        val received = LinkedBlockingQueue<String>()
+        val server = startServer(port, received, "server")
+        val client = ClientSocketHandler("127.0.0.1", port)
+        client.connect()
+
+        repeat(1000) { client.sendMessage("message-$it") }
+        client.disconnect()
+        repeat(1000) { assertEquals("server:message-$it", received.poll(5, TimeUnit.SECONDS)) }
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS))
+
+        server.stop()
+    }
+
+    @Test
+    fun `test commands are parsed before the first space or delimiter`() {
+        val port = freePort()
+        val received = LinkedBlockingQueue<String>()
+        val server = startServer(port, received, "server")
+        val sender = ClientSocketHandler("127.0.0.1", port)
+        val recipient = ClientSocketHandler("127.0.0.1", port)
+        val delivered = LinkedBlockingQueue<String>()
+        recipient.subscribe { message -> delivered.add(message!!) }
+        sender.connect()
+        recipient.connect()
+
+        sender.sendMessageToClient(recipient.uuid, "time: 12:00")
+        assertEquals("FROM ${sender.uuid}: time: 12:00", delivered.poll(5, TimeUnit.SECONDS))
+
+        sender.sendBroadcastMessage("hello")
+        assertEquals("GLOBAL ${sender.uuid}: hello", delivered.poll(5, TimeUnit.SECONDS))
+
+        // Neither TO nor GLOBAL, despite their prefix
+        sender.sendMessage("TOKEN: abc")
+        sender.sendMessage("GLOBALS: def")
+        assertEquals("server:TOKEN: abc", received.poll(5, TimeUnit.SECONDS))
+        assertEquals("server:GLOBALS: def", received.poll(5, TimeUnit.SECONDS))
+        assertNull(delivered.poll(200, TimeUnit.MILLISECONDS))
+
+        sender.disconnect()
+        recipient.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test reliable stream with a small window is delivered in order`() {
+        val port = freePort()
+        val options = ReliabilityOptions(windowBytes = 64, ackEvery = 4)
+        val received = LinkedBlockingQueue<String>()
+        val server = startServer(port, received, "server", options)
+        val client = ClientSocketHandler("127.0.0.1", port, reliability = options)
+        val echoed = LinkedBlockingQueue<String>()
+        client.subscribe { message -> echoed.add(message!!) }
+        client.connect()
+
+        repeat(500) { client.sendMessage("message-$it") }
+        repeat(500) { assertEquals("server:message-$it", received.poll(5, TimeUnit.SECONDS)) }
+
+        repeat(500) { server.sendToClient(client.uuid, "reply-$it") }
+        repeat(500) { assertEquals("reply-$it", echoed.poll(5, TimeUnit.SECONDS)) }
+
+        client.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test subscribers can reply while the send window is full`() {
+        val port = freePort()
+        val options = ReliabilityOptions(windowBytes = 64, ackEvery = 4, backlogBytes = 64 * 1024)
+        val received = LinkedBlockingQueue<String>()
+        val server = ServerSocketHandler(port, reliability = options)
+        // Replies from the reader threads, which also read the acks that open the window
+        server.subscribe { uuid, message ->
+            if (message.startsWith("message-")) server.sendToClient(uuid, message.replace("message", "ping"))
+            else received.add(message)
+        }
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+        val client = ClientSocketHandler("127.0.0.1", port, reliability = options)
+        client.subscribe { message -> client.sendMessage(message!!.replace("ping", "pong")) }
+        client.connect()
+
+        val start = System.nanoTime()
+        repeat(500) { client.sendMessage("message-$it") }
+        repeat(500) { assertEquals("pong-$it", received.poll(5, TimeUnit.SECONDS)) }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10))
+
+        client.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test sessions can only be resumed with their token`() {
+        val port = freePort()
+        val server = startServer(port, LinkedBlockingQueue(), "server", ReliabilityOptions())
+        val connect = { MessageChannel(SocketChannel.open(InetSocketAddress("127.0.0.1", port))) }
+
+        // The victim gets its token, then loses its connection
+        val victim = connect()
+        val victimUUID = victim.readMessage()!!
+        victim.writeMessage("RESUME $victimUUID 0 -")
+        val token = victim.readMessage()!!.split(' ').let {
+            assertEquals(listOf("RESUMED", victimUUID, "0"), it.take(3))
+            it[3]
+        }
+        victim.close()
+        Thread.sleep(200)
+
+        // Another client knows the UUID, but not the token
+        val attacker = connect()
+        val attackerUUID = attacker.readMessage()!!
+        attacker.writeMessage("RESUME $victimUUID 0 ${token.reversed()}")
+        assertEquals(listOf("RESUMED", attackerUUID, "0"), attacker.readMessage()!!.split(' ').take(3))
+        attacker.writeMessage("RESUME $victimUUID 0")
+        assertEquals(listOf("RESUMED", attackerUUID, "0"), attacker.readMessage()!!.split(' ').take(3))
+
+        // The victim resumes its session, with a new token
+        val resumed = connect()
+        resumed.readMessage()
+        resumed.writeMessage("RESUME $victimUUID 0 $token")
+        val answer = resumed.readMessage()!!.split(' ')
+        assertEquals(listOf("RESUMED", victimUUID, "0"), answer.take(3))
+        assertTrue(answer[3] != token)
+
+        attacker.close()
+        resumed.close()
+        server.stop()
+    }
+
+    @Test
+    fun `test inbound publisher only reads what was requested`() {
+        val port = freePort()
+        val server = startServer(port, LinkedBlockingQueue(), "server")
+        val client = ClientSocketHandler("127.0.0.1", port)
+        client.connect()
+
+        val received = LinkedBlockingQueue<String>()
+        val completed = LinkedBlockingQueue<Boolean>()
+        lateinit var subscription: Flow.Subscription
+        server.inboundPublisher(client.uuid!!).subscribe(object : Flow.Subscriber<ClientMessage> {
+            override fun onSubscribe(s: Flow.Subscription) {
+                subscription = s
+                s.request(2)
+            }
+            override fun onNext(item: ClientMessage) { received.add(item.message) }
+            override fun onError(throwable: Throwable) {}
+            override fun onComplete() { completed.add(true) }
+        })
+
+        repeat(5) { client.sendMessage("message-$it") }
+        assertEquals("message-0", received.poll(5, TimeUnit.SECONDS))
+        assertEquals("message-1", received.poll(5, TimeUnit.SECONDS))
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS))
+
+        subscription.request(3)
+        repeat(3) { assertEquals("message-${it + 2}", received.poll(5, TimeUnit.SECONDS)) }
+
+        server.kickClient(client.uuid!!)
+        assertTrue(completed.poll(5, TimeUnit.SECONDS) == true)
+        server.stop()
+    }
+
+    @Test
+    fun `test outbound subscriber sends to the recipients`() {
+        val port = freePort()
+        val server = startServer(port, LinkedBlockingQueue(), "server")
+        val client = ClientSocketHandler("127.0.0.1", port)
+        val received = LinkedBlockingQueue<String>()
+        client.subscribe { message -> received.add(message!!) }
+        client.connect()
+
+        SubmissionPublisher<ClientMessage>().use { publisher ->
+            publisher.subscribe(server.outboundSubscriber(batchSize = 4, highWatermark = 2))
+            repeat(200) { publisher.submit(ClientMessage(client.uuid!!, "message-$it")) }
+            repeat(200) { assertEquals("message-$it", received.poll(5, TimeUnit.SECONDS)) }
+        }
+
+        client.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test global messages are delivered through multicast`() {
+        val port = freePort()
+        val loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress())
+        val options = MulticastOptions(InetAddress.getByName("239.255.42.2"), freePort(), loopback, heartbeatInterval = 100)
+        val server = ServerSocketHandler(port, multicast = options)
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+
+        val sender = ClientSocketHandler("127.0.0.1", port, multicastInterface = loopback)
+        val ownMessages = LinkedBlockingQueue<String>()
+        sender.subscribe { message -> ownMessages.add(message!!) }
+        sender.connect()
+        val receiver = ClientSocketHandler("127.0.0.1", port, multicastInterface = loopback)
+        val received = LinkedBlockingQueue<String>()
+        receiver.subscribe { message -> received.add(message!!) }
+        receiver.connect()
+        Thread.sleep(200)
+
+        repeat(200) { sender.sendBroadcastMessage("message-$it") }
+        repeat(200) { assertEquals("GLOBAL ${sender.uuid}: message-$it", received.poll(5, TimeUnit.SECONDS)) }
+        assertNull(ownMessages.poll(200, TimeUnit.MILLISECONDS))
+
+        // Anyone can send to the group: control frames coming from it are ignored
+        var kicked = false
+        receiver.onKick { kicked = true }
+        MulticastSocket().use { socket ->
+            socket.networkInterface = loopback
+            listOf("D 201 KICK", "D 202 RECONNECT 0", "D 203 MCAST LOST 1 1000").forEach {
+                val bytes = it.toByteArray()
+                socket.send(DatagramPacket(bytes, bytes.size, options.group, options.port))
+            }
+        }
+        Thread.sleep(200)
+        server.sendToClient(receiver.uuid, "still connected")
+        assertEquals("still connected", received.poll(5, TimeUnit.SECONDS))
+        assertFalse(kicked)
+
+        sender.disconnect()
+        receiver.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test multicast can't be combined with TLS`() {
+        val options = MulticastOptions(InetAddress.getByName("239.255.42.2"), freePort())
+        val tls = TlsOptions(SSLContext.getDefault())
+        assertFailsWith<IllegalArgumentException> { ServerSocketHandler(freePort(), tls = tls, multicast = options) }
+    }
+
+    @Test
+    fun `test relayed messages carry their trace and report the hop latencies`() {
+        val port = freePort()
+        val serverSpans = InMemoryTraceExporter()
+        val server = ServerSocketHandler(port, traceExporter = serverSpans)
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+
+        val senderSpans = InMemoryTraceExporter()
+        val sender = ClientSocketHandler("127.0.0.1", port, traceExporter = senderSpans)
+        sender.connect()
+        val receiverSpans = InMemoryTraceExporter()
+        val receiver = ClientSocketHandler("127.0.0.1", port, traceExporter = receiverSpans)
+        val received = LinkedBlockingQueue<String>()
+        receiver.subscribe { message -> received.add(message!!) }
+        receiver.connect()
+
+        sender.sendMessageToClient(receiver.uuid, "hello")
+        assertEquals("FROM ${sender.uuid}: hello", received.poll(5, TimeUnit.SECONDS))
+
+        // The server exports its span once the write returns, which may be after the delivery.
+        val deadline = System.currentTimeMillis() + 5000
+        while (serverSpans.spans.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(10)
+        val delivery = receiverSpans.spans.single()
+        val relay = serverSpans.spans.single()
+        assertEquals(TraceSpan.Kind.RELAY, relay.kind)
+        assertEquals(sender.uuid, relay.sender)
+        assertEquals(receiver.uuid, relay.target)
+        assertEquals(relay.traceId, delivery.traceId)
+        assertEquals(relay.spanId, delivery.parentSpanId)
+        assertTrue(relay.inboundLatency >= 0 && relay.routingLatency >= 0 && relay.queueLatency >= 0)
+        assertTrue(relay.serverLatency >= relay.queueLatency)
+        assertTrue(delivery.endToEndLatency >= relay.serverLatency)
+        assertTrue(senderSpans.spans.isEmpty())
+
+        sender.disconnect()
+        receiver.disconnect()
+        server.stop()
+    }
+
+    @Test
+    fun `test trace context round trip`() {
+        val context = TraceContext.newRoot()
+        assertEquals(32, context.traceId.length)
+        assertEquals(16, context.spanId.length)
+        assertEquals(Pair(context, "TO x: a b"), TraceContext.unwrap(context.wrap("TO x: a b")))
+        assertNull(TraceContext.unwrap("TRACE broken"))
+        assertNull(TraceContext.unwrap("hello"))
+    }
+}
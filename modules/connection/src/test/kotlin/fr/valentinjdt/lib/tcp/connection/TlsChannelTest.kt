@@ -0,0 +1,70 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.File
+import java.net.ServerSocket
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TlsChannelTest {
+
+    private val password = "changeit".toCharArray()
+
+    private fun freePort(): Int = ServerSocket(0).use { it.localPort }
+
+    /** Generates a self-signed certificate for the loopback address with the JDK's keytool. */
+    private fun selfSignedKeyStore(): Path {
+        val directory = Files.createTempDirectory("tls-test")
+        val keyStore = directory.resolve("keystore.p12")
+        val keytool = File(System.getProperty("java.home"), "bin/keytool").path
+        val process = ProcessBuilder(
+            keytool, "-genkeypair", "-alias", "test", "-keyalg", "EC", "-groupname", "secp256r1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+            "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+            "-storepass", String(password), "-keypass", String(password)
+        ).redirectErrorStream(true).start()
+        process.inputStream.readAllBytes()
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS) && process.exitValue() == 0, "keytool failed")
+        keyStore.toFile().deleteOnExit()
+        directory.toFile().deleteOnExit()
+        return keyStore
+    }
+
+    @Test
+    fun `test messages are exchanged and reconnections resume the session`() {
+        val keyStore = selfSignedKeyStore()
+        val serverTls = TlsOptions.fromKeyStore(keyStore, password)
+        val clientTls = TlsOptions.fromKeyStore(keyStore, password)
+        val port = freePort()
+
+        val received = LinkedBlockingQueue<String>()
+        val server = ServerSocketHandler(port, tls = serverTls)
+        server.subscribe { _, message -> received.add(message) }
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+
+        repeat(3) { round ->
+            val echoed = LinkedBlockingQueue<String>()
+            val client = ClientSocketHandler("127.0.0.1", port, tls = clientTls)
+            client.subscribe { message -> echoed.add(message!!) }
+            client.connect()
+
+            client.sendMessage("hello-$round")
+            assertEquals("hello-$round", received.poll(5, TimeUnit.SECONDS))
+            server.sendToClient(client.uuid, "x".repeat(40_000))
+            assertEquals(40_000, echoed.poll(5, TimeUnit.SECONDS)?.length)
+            client.disconnect()
+        }
+
+        assertEquals(3, clientTls.stats.handshakeCount)
+        assertEquals(2, clientTls.stats.resumedCount)
+        assertEquals(3, serverTls.stats.handshakeCount)
+        assertEquals(2, serverTls.stats.resumedCount)
+        assertTrue(serverTls.stats.averageHandshakeNanos > 0)
+        server.stop()
+    }
+}
@@ -0,0 +1,134 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.io.ByteArrayOutputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import kotlin.test.AfterTest
+import kotlin.test.BeforeTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class WebSocketChannelTest {
+
+    private lateinit var server: ServerSocketChannel
+    private lateinit var browser: SocketChannel
+    private lateinit var channel: WebSocketChannel
+
+    @BeforeTest
+    fun setup() {
+        server = ServerSocketChannel.open().bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+        browser = SocketChannel.open(server.localAddress)
+        channel = WebSocketChannel(server.accept())
+    }
+
+    @AfterTest
+    fun tearDown() {
+        channel.close()
+        browser.close()
+        server.close()
+    }
+
+    private fun upgrade(extensions: String? = null): String {
+        send(
+            ("GET /chat HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: keep-alive, Upgrade\r\n" +
+                "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n" +
+                (extensions?.let { "Sec-WebSocket-Extensions: $it\r\n" } ?: "") + "\r\n").toByteArray()
+        )
+        assertTrue(channel.handshake("/chat", true))
+        val response = StringBuilder()
+        while (!response.endsWith("\r\n\r\n")) response.append(readBytes(1)[0].toInt().toChar())
+        return response.toString()
+    }
+
+    private fun send(bytes: ByteArray) {
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) browser.write(buffer)
+    }
+
+    private fun readBytes(count: Int): ByteArray {
+        val buffer = ByteBuffer.allocate(count)
+        while (buffer.hasRemaining()) check(browser.read(buffer) >= 0)
+        return buffer.array()
+    }
+
+    /** Sends a masked client frame. */
+    private fun sendFrame(opcode: Int, payload: ByteArray, fin: Boolean = true, rsv1: Boolean = false) {
+        val frame = ByteArrayOutputStream()
+        frame.write((if (fin) 0x80 else 0) or (if (rsv1) 0x40 else 0) or opcode)
+        when {
+            payload.size < 126 -> frame.write(0x80 or payload.size)
+            else -> frame.write(byteArrayOf((0x80 or 126).toByte(), (payload.size shr 8).toByte(), payload.size.toByte()))
+        }
+        val mask = byteArrayOf(0x12, 0x34, 0x56, 0x78)
+        frame.write(mask)
+        frame.write(ByteArray(payload.size) { (payload[it].toInt() xor mask[it and 3].toInt()).toByte() })
+        send(frame.toByteArray())
+    }
+
+    /** Reads a server frame, returning its first byte and payload. */
+    private fun readFrame(): Pair<Int, ByteArray> {
+        val header = readBytes(2)
+        var length = header[1].toInt() and 0x7F
+        if (length == 126) length = readBytes(2).let { ((it[0].toInt() and 0xFF) shl 8) or (it[1].toInt() and 0xFF) }
+        return Pair(header[0].toInt() and 0xFF, readBytes(length))
+    }
+
+    @Test
+    fun `test upgrade answers the accept key of the RFC example`() {
+        val response = upgrade()
+        assertTrue(response.startsWith("HTTP/1.1 101"))
+        assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"))
+    }
+
+    @Test
+    fun `test fragmented masked messages and pings`() {
+        upgrade()
+        sendFrame(0x1, "hel".toByteArray(), fin = false)
+        sendFrame(0x9, "ping".toByteArray())
+        sendFrame(0x0, "lo é".toByteArray())
+        assertEquals("hello é", channel.readMessage())
+        assertEquals(Pair(0x8A, "ping".toByteArray().toList()), readFrame().let { Pair(it.first, it.second.toList()) })
+
+        sendFrame(0x8, byteArrayOf(0x03, 0xE8.toByte()))
+        assertNull(channel.readMessage())
+    }
+
+    @Test
+    fun `test permessage deflate in both directions`() {
+        val response = upgrade("permessage-deflate; client_max_window_bits")
+        assertTrue(response.contains("Sec-WebSocket-Extensions: permessage-deflate\r\n"))
+
+        val message = "GLOBAL: " + "compressible ".repeat(100)
+        val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+        deflater.setInput(message.toByteArray())
+        val compressed = ByteArray(4096)
+        val size = deflater.deflate(compressed, 0, compressed.size, Deflater.SYNC_FLUSH)
+        sendFrame(0x1, compressed.copyOf(size - 4), rsv1 = true)
+        assertEquals(message, channel.readMessage())
+
+        channel.writeMessage(message)
+        val (first, payload) = readFrame()
+        assertEquals(0xC1, first)
+        assertTrue(payload.size < message.length)
+        val inflater = Inflater(true)
+        inflater.setInput(payload + byteArrayOf(0, 0, 0xFF.toByte(), 0xFF.toByte()))
+        val inflated = ByteArray(4096)
+        assertEquals(message, String(inflated, 0, inflater.inflate(inflated)))
+    }
+
+    @Test
+    fun `test line terminators are rejected`() {
+        upgrade()
+        sendFrame(0x1, "hello\nKICK".toByteArray())
+        assertFailsWith<java.io.IOException> { channel.readMessage() }
+        assertEquals(0x88, readFrame().first)
+    }
+}
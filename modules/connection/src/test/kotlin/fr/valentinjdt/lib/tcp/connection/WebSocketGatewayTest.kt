@@ -0,0 +1,123 @@
+package fr.valentinjdt.lib.tcp.connection
+
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.WebSocket
+import java.util.UUID
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class WebSocketGatewayTest {
+
+    private fun freePort(): Int = ServerSocket(0).use { it.localPort }
+
+    private fun startGateway(gateway: WebSocketGateway, server: ServerSocketHandler) {
+        Thread { server.start() }.apply { isDaemon = true }.start()
+        Thread { gateway.start() }.apply { isDaemon = true }.start()
+        Thread.sleep(200)
+    }
+
+    /** Sends an upgrade request and returns the status line of the answer. */
+    private fun upgradeStatus(port: Int, origin: String?): String = Socket("127.0.0.1", port).use { socket ->
+        socket.soTimeout = 5000
+        socket.getOutputStream().write((
+            "GET /ws HTTP/1.1\r\nHost: 127.0.0.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n" +
+                (origin?.let { "Origin: $it\r\n" } ?: "") + "\r\n"
+            ).toByteArray())
+        socket.getInputStream().bufferedReader().readLine()
+    }
+
+    /** Returns the time, in milliseconds, the gateway takes to close a connection that sends nothing. */
+    private fun closedAfter(port: Int): Long = Socket("127.0.0.1", port).use { socket ->
+        socket.soTimeout = 5000
+        val start = System.nanoTime()
+        assertEquals(-1, socket.getInputStream().read())
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }
+
+    @Test
+    fun `test browser and socket clients address each other`() {
+        val port = freePort()
+        val webPort = freePort()
+        val server = ServerSocketHandler(port)
+        val gateway = WebSocketGateway(server, webPort, "/ws")
+        startGateway(gateway, server)
+
+        val client = ClientSocketHandler("127.0.0.1", port)
+        val clientReceived = LinkedBlockingQueue<String>()
+        client.subscribe { message -> clientReceived.add(message!!) }
+        client.connect()
+
+        val browserReceived = LinkedBlockingQueue<String>()
+        val webSocket = HttpClient.newHttpClient().newWebSocketBuilder()
+            .buildAsync(URI("ws://127.0.0.1:$webPort/ws"), object : WebSocket.Listener {
+                override fun onText(webSocket: WebSocket, data: CharSequence, last: Boolean): CompletionStage<*>? {
+                    browserReceived.add(data.toString())
+                    webSocket.request(1)
+                    return null
+                }
+            }).get(5, TimeUnit.SECONDS)
+        val browserUUID = UUID.fromString(browserReceived.poll(5, TimeUnit.SECONDS))
+
+        client.sendMessageToClient(browserUUID, "hello browser")
+        assertEquals("FROM ${client.uuid}: hello browser", browserReceived.poll(5, TimeUnit.SECONDS))
+
+        webSocket.sendText("TO ${client.uuid}: hello client", true).get(5, TimeUnit.SECONDS)
+        assertEquals("FROM $browserUUID: hello client", clientReceived.poll(5, TimeUnit.SECONDS))
+
+        webSocket.sendText("GLOBAL: hello everyone", true).get(5, TimeUnit.SECONDS)
+        assertEquals("GLOBAL $browserUUID: hello everyone", clientReceived.poll(5, TimeUnit.SECONDS))
+
+        webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").get(5, TimeUnit.SECONDS)
+        client.disconnect()
+        gateway.stop()
+        server.stop()
+    }
+
+    @Test
+    fun `test only allowed origins can connect`() {
+        val server = ServerSocketHandler(freePort())
+        val webPort = freePort()
+        val gateway = WebSocketGateway(server, webPort, "/ws", allowedOrigins = setOf("https://example.com"))
+        startGateway(gateway, server)
+
+        assertEquals("HTTP/1.1 101 Switching Protocols", upgradeStatus(webPort, "https://example.com"))
+        assertEquals("HTTP/1.1 403 Forbidden", upgradeStatus(webPort, "https://evil.example"))
+        // Clients that aren't browsers don't send an origin
+        assertEquals("HTTP/1.1 101 Switching Protocols", upgradeStatus(webPort, null))
+
+        gateway.stop()
+        server.stop()
+    }
+
+    @Test
+    fun `test idle handshakes are bounded`() {
+        val server = ServerSocketHandler(freePort())
+        val webPort = freePort()
+        val gateway = WebSocketGateway(server, webPort, "/ws", maxHandshakes = 1, handshakeTimeout = 300)
+        startGateway(gateway, server)
+
+        Socket("127.0.0.1", webPort).use { idle ->
+            Thread.sleep(100)
+            // The only handshake thread is taken: the next connection is closed right away
+            val rejected = closedAfter(webPort)
+            assertTrue(rejected < 250, "closed after $rejected ms")
+            idle.soTimeout = 5000
+            assertEquals(-1, idle.getInputStream().read())
+        }
+        // An idle connection is closed once the handshake deadline passed
+        Thread.sleep(100)
+        val closed = closedAfter(webPort)
+        assertTrue(closed >= 250, "closed after $closed ms")
+
+        gateway.stop()
+        server.stop()
+    }
+}
@@ -0,0 +1,10 @@
+dependencies {
+    implementation("com.google.devtools.ksp:symbol-processing-api:2.1.10-1.0.31")
+    testImplementation(kotlin("test"))
+    testImplementation(project(":event"))
+    testImplementation("dev.zacsweers.kctfork:ksp:0.7.0")
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
@@ -0,0 +1,145 @@
+package fr.valentinjdt.lib.event.processor
+
+import com.google.devtools.ksp.getDeclaredFunctions
+import com.google.devtools.ksp.processing.CodeGenerator
+import com.google.devtools.ksp.processing.Dependencies
+import com.google.devtools.ksp.processing.KSPLogger
+import com.google.devtools.ksp.processing.Resolver
+import com.google.devtools.ksp.processing.SymbolProcessor
+import com.google.devtools.ksp.processing.SymbolProcessorEnvironment
+import com.google.devtools.ksp.processing.SymbolProcessorProvider
+import com.google.devtools.ksp.symbol.ClassKind
+import com.google.devtools.ksp.symbol.KSAnnotated
+import com.google.devtools.ksp.symbol.KSClassDeclaration
+import com.google.devtools.ksp.symbol.KSDeclaration
+import com.google.devtools.ksp.symbol.KSFunctionDeclaration
+import com.google.devtools.ksp.symbol.KSType
+import com.google.devtools.ksp.symbol.Modifier
+import com.google.devtools.ksp.validate
+
+/**
+ * Generates a `GeneratedDispatcher` for each `Listener` subclass declaring `@EventHandler` functions,
+ * so `EventRegister` calls its handlers directly instead of discovering them by reflection.
+ *
+ * Apply it with KSP in the project declaring the listeners:
+ * ```
+ * plugins { id("com.google.devtools.ksp") version "2.1.10-1.0.31" }
+ * dependencies { ksp("com.github.ValentinJDT.ValLib:event-processor:<version>") }
+ * ```
+ *
+ * Classes that can't be called directly from generated code (private or local classes, private or protected
+ * handlers, handlers of type parameters, local or generic event types) are skipped with a warning and keep the
+ * reflective path.
+ */
+class EventDispatcherProcessor(
+    private val codeGenerator: CodeGenerator,
+    private val logger: KSPLogger
+) : SymbolProcessor {
+
+    override fun process(resolver: Resolver): List<KSAnnotated> {
+        val symbols = resolver.getSymbolsWithAnnotation(EVENT_HANDLER)
+        val deferred = symbols.filterNot { it.validate() }.toList()
+
+        symbols.filter { it.validate() }
+            .filterIsInstance<KSFunctionDeclaration>()
+            .mapNotNull { it.parentDeclaration as? KSClassDeclaration }
+            .distinct()
+            .filter { isListener(it) }
+            .forEach { generate(it) }
+
+        return deferred
+    }
+
+    private fun isListener(declaration: KSClassDeclaration): Boolean =
+        declaration.superTypes.any { reference ->
+            val type = reference.resolve().declaration as? KSClassDeclaration ?: return@any false
+            type.qualifiedName?.asString() == LISTENER || isListener(type)
+        }
+
+    private fun generate(listener: KSClassDeclaration) {
+        val listenerName = listener.qualifiedName?.asString()
+        if (listenerName == null || listener.classKind != ClassKind.CLASS || Modifier.PRIVATE in listener.modifiers) {
+            logger.warn("No dispatcher generated, the class isn't accessible.", listener)
+            return
+        }
+
+        val handlers = listener.getDeclaredFunctions()
+            .filter { function -> function.annotations.any { isEventHandler(it.annotationType.resolve().declaration.qualifiedName?.asString()) } }
+            .filter { it.parameters.size == 1 }
+            .toList()
+        if (handlers.any { Modifier.PRIVATE in it.modifiers || Modifier.PROTECTED in it.modifiers }) {
+            logger.warn("No dispatcher generated, some handlers are private or protected.", listener)
+            return
+        }
+        val eventTypes = handlers.map { eventTypeName(it.parameters[0].type.resolve()) }
+        if (null in eventTypes) {
+            logger.warn("No dispatcher generated, some handlers take a type parameter, a local or a generic event type.", listener)
+            return
+        }
+
+        val packageName = listener.packageName.asString()
+        val dispatcherName = simpleNames(listener).joinToString("_") + DISPATCHER_SUFFIX
+        val entries = handlers.zip(eventTypes) { function, eventType ->
+            val arguments = function.annotations
+                .first { isEventHandler(it.annotationType.resolve().declaration.qualifiedName?.asString()) }
+                .arguments.associate { it.name?.asString() to it.value }
+            val async = arguments["async"] == true
+            val priority = enumEntryName(arguments["priority"]) ?: "NORMAL"
+            val ignoreCancelled = arguments["ignoreCancelled"] != false
+            "            GeneratedDispatcher.Handler($eventType::class.java, $async, EventPriority.$priority, $ignoreCancelled, \"${function.simpleName.asString()}\") { listener, event ->\n" +
+                "                (listener as $listenerName).${function.simpleName.asString()}(event as $eventType)\n" +
+                "            }"
+        }
+
+        codeGenerator.createNewFile(Dependencies(false, listener.containingFile!!), packageName, dispatcherName).bufferedWriter().use { out ->
+            if (packageName.isNotEmpty()) out.write("package $packageName\n\n")
+            out.write("import fr.valentinjdt.lib.event.EventPriority\n")
+            out.write("import fr.valentinjdt.lib.event.GeneratedDispatcher\n\n")
+            out.write("/** Generated by EventDispatcherProcessor for [$listenerName]. */\n")
+            out.write("class $dispatcherName : GeneratedDispatcher {\n\n")
+            out.write("    override fun handlers(): Array<GeneratedDispatcher.Handler> =\n")
+            out.write("        arrayOf(\n")
+            out.write(entries.joinToString(",\n"))
+            out.write("\n        )\n")
+            out.write("}\n")
+        }
+    }
+
+    private fun isEventHandler(name: String?) = name == EVENT_HANDLER
+
+    /**
+     * The name the generated code casts events to, or null if there is none: type parameters and local
+     * classes can't be named, and generic classes would need their type arguments in the cast.
+     */
+    private fun eventTypeName(type: KSType): String? {
+        val declaration = type.declaration as? KSClassDeclaration ?: return null
+        if (declaration.typeParameters.isNotEmpty()) return null
+        return declaration.qualifiedName?.asString()
+    }
+
+    /** Enum arguments are a [KSType] of the entry with KSP1, the entry declaration with KSP2. */
+    private fun enumEntryName(value: Any?): String? = when (value) {
+        is KSType -> value.declaration.simpleName.asString()
+        is KSDeclaration -> value.simpleName.asString()
+        else -> null
+    }
+
+    private fun simpleNames(declaration: KSClassDeclaration): List<String> {
+        val parent = declaration.parentDeclaration as? KSClassDeclaration ?: return listOf(declaration.simpleName.asString())
+        return simpleNames(parent) + declaration.simpleName.asString()
+    }
+
+    companion object {
+        const val EVENT_HANDLER = "fr.valentinjdt.lib.event.EventHandler"
+        const val LISTENER = "fr.valentinjdt.lib.event.Listener"
+
+        /** Must match `GeneratedDispatcher.SUFFIX`. */
+        const val DISPATCHER_SUFFIX = "_EventDispatcher"
+    }
+}
+
+class EventDispatcherProcessorProvider : SymbolProcessorProvider {
+
+    override fun create(environment: SymbolProcessorEnvironment): SymbolProcessor =
+        EventDispatcherProcessor(environment.codeGenerator, environment.logger)
+}
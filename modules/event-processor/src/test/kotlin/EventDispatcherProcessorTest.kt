@@ -0,0 +1,165 @@
+package fr.valentinjdt.lib.event.processor
+
+import com.google.devtools.ksp.processing.SymbolProcessorProvider
+import com.tschuchort.compiletesting.KotlinCompilation
+import com.tschuchort.compiletesting.SourceFile
+import com.tschuchort.compiletesting.kspWithCompilation
+import com.tschuchort.compiletesting.symbolProcessorProviders
+import fr.valentinjdt.lib.event.Event
+import fr.valentinjdt.lib.event.EventBus
+import fr.valentinjdt.lib.event.EventPriority
+import fr.valentinjdt.lib.event.GeneratedDispatcher
+import kotlin.test.*
+
+class EventDispatcherProcessorTest {
+
+    /** Compile des sources avec le processeur, le code généré compris. */
+    private fun compile(source: String) = KotlinCompilation().apply {
+        sources = listOf(SourceFile.kotlin("Listeners.kt", source))
+        inheritClassPath = true
+        symbolProcessorProviders = mutableListOf<SymbolProcessorProvider>(EventDispatcherProcessorProvider())
+        kspWithCompilation = true
+    }.compile()
+
+    @Test
+    fun testGeneratedDispatcherMatchesHandlers() {
+        val result = compile(
+            """
+            package sample
+
+            import fr.valentinjdt.lib.event.*
+
+            class ConfigEvent(val key: String) : Event
+
+            class SampleListener : Listener() {
+                val calls = mutableListOf<String>()
+
+                @EventHandler
+                fun onConfig(event: ConfigEvent) {
+                    calls += "config:" + event.key
+                }
+
+                @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = false)
+                fun onConfigFirst(event: ConfigEvent) {
+                    calls += "first:" + event.key
+                }
+
+                @EventHandler(async = true)
+                fun onConfigAsync(event: ConfigEvent) {
+                }
+
+                fun notAHandler(event: ConfigEvent) {
+                    calls += "not a handler"
+                }
+
+                class Nested : Listener() {
+                    @EventHandler
+                    fun onConfig(event: ConfigEvent) {
+                    }
+                }
+            }
+            """
+        )
+        assertEquals(KotlinCompilation.ExitCode.OK, result.exitCode, result.messages)
+
+        // Le dispatcher généré est trouvé par son nom, avec les gestionnaires dans l'ordre de déclaration
+        val listenerClass = result.classLoader.loadClass("sample.SampleListener")
+        val dispatcher = assertNotNull(GeneratedDispatcher.find(listenerClass), "Le dispatcher devrait avoir été généré")
+        assertEquals("sample.SampleListener_EventDispatcher", dispatcher::class.java.name)
+        val eventClass = result.classLoader.loadClass("sample.ConfigEvent")
+        val handlers = dispatcher.handlers()
+        assertEquals(listOf("onConfig", "onConfigFirst", "onConfigAsync"), handlers.map { it.methodName })
+        assertTrue(handlers.all { it.eventType == eventClass })
+        assertEquals(listOf(EventPriority.NORMAL, EventPriority.HIGH, EventPriority.NORMAL), handlers.map { it.priority })
+        assertEquals(listOf(true, false, true), handlers.map { it.ignoreCancelled })
+        assertEquals(listOf(false, false, true), handlers.map { it.async })
+
+        // Les classes imbriquées ont leur propre dispatcher
+        val nested = GeneratedDispatcher.find(result.classLoader.loadClass("sample.SampleListener\$Nested"))
+        assertEquals("sample.SampleListener_Nested_EventDispatcher", nested?.let { it::class.java.name })
+
+        // Le bus appelle les gestionnaires générés, par priorité
+        val listener = listenerClass.getDeclaredConstructor().newInstance() as fr.valentinjdt.lib.event.Listener
+        val bus = EventBus()
+        bus.registerListener(listener)
+        assertTrue(bus.runEvent(eventClass.getConstructor(String::class.java).newInstance("port") as Event))
+        assertEquals(listOf("first:port", "config:port"), listenerClass.getMethod("getCalls").invoke(listener))
+    }
+
+    @Test
+    fun testInaccessibleHandlersKeepTheReflectivePath() {
+        val result = compile(
+            """
+            package sample
+
+            import fr.valentinjdt.lib.event.*
+
+            class PingEvent : Event
+
+            class PrivateHandlerListener : Listener() {
+                @EventHandler
+                private fun onPing(event: PingEvent) {
+                }
+            }
+            """
+        )
+        assertEquals(KotlinCompilation.ExitCode.OK, result.exitCode, result.messages)
+
+        // Aucun dispatcher n'est généré, avec un avertissement
+        assertTrue(result.messages.contains("some handlers are private or protected"), result.messages)
+        assertNull(GeneratedDispatcher.find(result.classLoader.loadClass("sample.PrivateHandlerListener")))
+    }
+
+    @Test
+    fun testUnnamedEventTypesKeepTheReflectivePath() {
+        val result = compile(
+            """
+            package sample
+
+            import fr.valentinjdt.lib.event.*
+
+            class BoxEvent<T>(val value: T) : Event
+
+            class GenericEventListener : Listener() {
+                @EventHandler
+                fun onBox(event: BoxEvent<String>) {
+                }
+            }
+
+            class TypeParameterListener : Listener() {
+                @EventHandler
+                fun <T : Event> onAny(event: T) {
+                }
+            }
+            """
+        )
+        assertEquals(KotlinCompilation.ExitCode.OK, result.exitCode, result.messages)
+
+        // Le cast généré ne compilerait pas : aucun dispatcher, avec un avertissement
+        assertTrue(result.messages.contains("some handlers take a type parameter"), result.messages)
+        assertNull(GeneratedDispatcher.find(result.classLoader.loadClass("sample.GenericEventListener")))
+        assertNull(GeneratedDispatcher.find(result.classLoader.loadClass("sample.TypeParameterListener")))
+    }
+
+    @Test
+    fun testDispatcherInUnnamedPackage() {
+        val result = compile(
+            """
+            import fr.valentinjdt.lib.event.*
+
+            class RootEvent : Event
+
+            class RootListener : Listener() {
+                @EventHandler
+                fun onRoot(event: RootEvent) {
+                }
+            }
+            """
+        )
+        assertEquals(KotlinCompilation.ExitCode.OK, result.exitCode, result.messages)
+
+        // Sans package, le nom du dispatcher ne commence pas par un point
+        val dispatcher = GeneratedDispatcher.find(result.classLoader.loadClass("RootListener"))
+        assertEquals("RootListener_EventDispatcher", dispatcher?.let { it::class.java.name })
+    }
+}
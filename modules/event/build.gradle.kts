@@ -1,7 +1,19 @@
+plugins {
+    id("me.champeau.jmh") version "0.7.2"
+}
+
 dependencies {
     testImplementation(kotlin("test"))
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+jmh {
+    warmupIterations = 3
+    iterations = 5
+    fork = 1
+    // Reports the bytes allocated per operation, see PooledEventBenchmark.
+    profilers = listOf("gc")
+}
@@ -0,0 +1,82 @@
+package fr.valentinjdt.lib.event
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.lang.reflect.Method
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the dispatch of one event to a listener with 4 handlers, one of them matching:
+ * - `reflectiveScan`: scans the declared methods and calls [Method.invoke] on each dispatch, as `Listener` used to.
+ * - `cachedMethod`: calls [Method.invoke] on a cached method.
+ * - `compiledInvoker`: calls the [EventInvoker] compiled from the same method.
+ * - `execute`: [Listener.execute], i.e. the handler lookup plus the compiled invokers.
+ *
+ * Run with `./gradlew :event:jmh`.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class ListenerDispatchBenchmark {
+
+    class BenchEvent : Event
+    class OtherEvent : Event
+
+    class BenchListener : Listener() {
+        var count = 0L
+
+        @EventHandler
+        fun onBench(event: BenchEvent) {
+            count++
+        }
+
+        @EventHandler
+        fun onOther1(event: OtherEvent) {
+        }
+
+        @EventHandler
+        fun onOther2(event: OtherEvent) {
+        }
+
+        @EventHandler
+        fun onOther3(event: OtherEvent) {
+        }
+    }
+
+    private val listener = BenchListener()
+    private val event = BenchEvent()
+    private val method: Method = BenchListener::class.java.getDeclaredMethod("onBench", BenchEvent::class.java)
+    private val invoker: EventInvoker = EventInvoker.compile(method)
+
+    @Benchmark
+    fun reflectiveScan(): Long {
+        for(function in listener::class.java.declaredMethods.filter { it.isAnnotationPresent(EventHandler::class.java) }) {
+            for(parameter in function.parameters.filter { it.type === event::class.java }) {
+                function.invoke(listener, event)
+            }
+        }
+        return listener.count
+    }
+
+    @Benchmark
+    fun cachedMethod(): Long {
+        method.invoke(listener, event)
+        return listener.count
+    }
+
+    @Benchmark
+    fun compiledInvoker(): Long {
+        invoker.invoke(listener, event)
+        return listener.count
+    }
+
+    @Benchmark
+    fun execute(): Long {
+        listener.execute(event)
+        return listener.count
+    }
+}
@@ -0,0 +1,61 @@
+package fr.valentinjdt.lib.event
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the dispatch of a new event with the dispatch of a pooled one, on a bus with one listener.
+ * The `gc.alloc.rate.norm` column of the `gc` profiler gives the bytes allocated per dispatch, 0 for `pooled`.
+ *
+ * Run with `./gradlew :event:jmh`.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class PooledEventBenchmark {
+
+    class MessageEvent(var id: Long = 0, var message: String? = null) : PooledEvent, Cancellable {
+        override var cancel = false
+
+        override fun reset() {
+            id = 0
+            message = null
+            cancel = false
+        }
+    }
+
+    class MessageListener : Listener() {
+        var length = 0L
+
+        @EventHandler
+        fun onMessage(event: MessageEvent) {
+            length += event.message!!.length
+        }
+    }
+
+    private val bus = EventBus()
+    private val pool = EventPool(::MessageEvent)
+    private var id = 0L
+
+    @Setup
+    fun setUp() = bus.registerListener(MessageListener())
+
+    @Benchmark
+    fun allocating(): Boolean = bus.runEvent(MessageEvent(id++, MESSAGE))
+
+    @Benchmark
+    fun pooled(): Boolean = bus.runEvent(pool) {
+        it.id = id++
+        it.message = MESSAGE
+    }
+
+    companion object {
+        private const val MESSAGE = "TO 123e4567-e89b-12d3-a456-426614174000:hello"
+    }
+}
@@ -0,0 +1,118 @@
+package fr.valentinjdt.lib.event
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Threads
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures how many events per second reach a listener with 2 handlers:
+ * - `ringBuffer`: published on a [RingBufferEventBus], handled by a consumer thread. Producers wait for the
+ *   consumer once the ring is full, so the score is the sustained rate, not the cost of publishing.
+ * - `ringBufferContended`: the same with 4 publishing threads, for [RingBufferEventBus.ProducerType.MULTI].
+ * - `eventRegister`: a new event dispatched with [EventRegister.runEvent] on the calling thread.
+ *
+ * Run with `./gradlew :event:jmh`.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class RingBufferEventBusBenchmark {
+
+    class MessageEvent(var id: Long = 0, var message: String = "") : Event
+
+    class MessageListener : Listener() {
+        var count = 0L
+        var length = 0L
+
+        @EventHandler
+        fun onMessage(event: MessageEvent) {
+            count++
+        }
+
+        @EventHandler
+        fun onMessageLength(event: MessageEvent) {
+            length += event.message.length
+        }
+    }
+
+    @State(Scope.Benchmark)
+    open class Bus {
+
+        @Param("SINGLE", "MULTI")
+        lateinit var producerType: String
+
+        @Param("busySpin", "yielding", "blocking")
+        lateinit var waitStrategy: String
+
+        lateinit var bus: RingBufferEventBus<MessageEvent>
+
+        @Setup(Level.Trial)
+        fun setUp() {
+            val strategy = when(waitStrategy) {
+                "busySpin" -> WaitStrategy.busySpin()
+                "yielding" -> WaitStrategy.yielding()
+                else -> WaitStrategy.blocking()
+            }
+            bus = RingBufferEventBus(
+                bufferSize = 8192,
+                factory = { MessageEvent() },
+                producerType = RingBufferEventBus.ProducerType.valueOf(producerType),
+                waitStrategy = strategy
+            )
+            bus.registerListener(MessageListener())
+            bus.start()
+        }
+
+        @TearDown(Level.Trial)
+        fun tearDown() {
+            bus.shutdown()
+        }
+    }
+
+    @State(Scope.Benchmark)
+    open class Register {
+        private val listener = MessageListener()
+
+        @Setup(Level.Trial)
+        fun setUp() = EventRegister.registerListener(listener)
+
+        @TearDown(Level.Trial)
+        fun tearDown() = EventRegister.removeListener(listener)
+    }
+
+    @State(Scope.Thread)
+    open class Producer {
+        var id = 0L
+    }
+
+    @Benchmark
+    fun ringBuffer(bus: Bus, producer: Producer) {
+        val id = producer.id++
+        bus.bus.publish { it.id = id; it.message = MESSAGE }
+    }
+
+    @Benchmark
+    @Threads(4)
+    fun ringBufferContended(bus: Bus, producer: Producer) {
+        // A single producer sequencer isn't safe with several threads.
+        if(bus.producerType == "SINGLE") return
+        val id = producer.id++
+        bus.bus.publish { it.id = id; it.message = MESSAGE }
+    }
+
+    @Benchmark
+    fun eventRegister(register: Register, producer: Producer): Boolean =
+        EventRegister.runEvent(MessageEvent(producer.id++, MESSAGE))
+
+    companion object {
+        private const val MESSAGE = "TO 123e4567-e89b-12d3-a456-426614174000:hello"
+    }
+}
@@ -0,0 +1,64 @@
+package fr.valentinjdt.lib.event
+
+/**
+ * How an [EventBus] coalesces a bursty event type, set with [EventBus.coalesce].
+ *
+ * The events of the type are held back, grouped by key, and dispatched by a shared scheduler thread: one event per
+ * key and per bus they were dispatched on, once the window is over. A burst of equivalent events, which share a key,
+ * therefore runs the handlers once.
+ *
+ * @param E the event type.
+ */
+class CoalescingPolicy<E : Event> private constructor(
+    /** The time events are held back, in milliseconds. */
+    val windowMillis: Long,
+    /** True if the window restarts with each event, false if it starts with the first event held back. */
+    val debounce: Boolean,
+    private val key: (E) -> Any?,
+    private val combine: (E, E) -> E
+) {
+
+    init {
+        require(windowMillis >= 0) { "windowMillis must not be negative" }
+    }
+
+    internal fun keyOf(event: E): Any? = key(event)
+
+    /** Combines the event held back for a key with a newer one. */
+    internal fun merge(pending: E, event: E): E = combine(pending, event)
+
+    companion object {
+
+        /**
+         * Dispatches, [windowMillis] after the first event of a burst, the latest event of each key.
+         *
+         * @param key groups the equivalent events, all of them by default.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun <E : Event> keepLatest(windowMillis: Long, key: (E) -> Any? = { null }): CoalescingPolicy<E> =
+            CoalescingPolicy(windowMillis, false, key) { _, latest -> latest }
+
+        /**
+         * Dispatches, [windowMillis] after the first event of a burst, the events of each key merged into one.
+         *
+         * @param key groups the equivalent events, all of them by default.
+         * @param merge combines the event held back with a newer one, e.g. by joining their changes.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun <E : Event> merge(windowMillis: Long, key: (E) -> Any? = { null }, merge: (E, E) -> E): CoalescingPolicy<E> =
+            CoalescingPolicy(windowMillis, false, key, merge)
+
+        /**
+         * Dispatches the latest event of each key once no event of the type came for [windowMillis]. A steady
+         * stream of events is held back until it stops.
+         *
+         * @param key groups the equivalent events, all of them by default.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun <E : Event> debounce(windowMillis: Long, key: (E) -> Any? = { null }): CoalescingPolicy<E> =
+            CoalescingPolicy(windowMillis, true, key) { _, latest -> latest }
+    }
+}
@@ -0,0 +1,205 @@
+package fr.valentinjdt.lib.event
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Dispatch statistics of an [EventBus], enabled by setting [EventBus.metrics].
+ *
+ * Dispatches and cancellations are counted for each event type, invocations for each handler. Latencies are only
+ * measured on one dispatch out of [sampleRate], which saves reading the clock around every handler: the latencies
+ * of a snapshot describe the sampled dispatches, and [Stats.sampled] tells how many there were. Percentiles come
+ * from a log-linear histogram, with an error under 12.5%. Handlers running on [EventBus.executor] aren't measured.
+ *
+ * Event types and handlers are held weakly: the statistics of those of an unloaded class loader, e.g. a plugin's,
+ * are dropped once its classes are collected, rather than keeping them reachable.
+ *
+ * @param sampleRate measures the latencies of one dispatch out of [sampleRate], 1 to measure every dispatch.
+ * @param slowHandlerThresholdNanos the time budget of a handler, in nanoseconds.
+ * @param onSlowHandler called, on the dispatching thread, for each measured invocation over the budget.
+ */
+class DispatchMetrics(
+    val sampleRate: Int = 1,
+    val slowHandlerThresholdNanos: Long = Long.MAX_VALUE,
+    private val onSlowHandler: SlowHandlerHook? = null
+) {
+
+    init {
+        require(sampleRate > 0) { "sampleRate must be positive" }
+    }
+
+    /** Reports the handlers over the time budget of [DispatchMetrics]. */
+    fun interface SlowHandlerHook {
+
+        /**
+         * @param handler the handler, as `<listener class>.<method>`.
+         * @param event the event it handled.
+         * @param nanos the duration of the invocation, in nanoseconds.
+         */
+        fun onSlowHandler(handler: String, event: Event, nanos: Long)
+    }
+
+    /**
+     * The statistics of an event type or a handler.
+     *
+     * @param name the event class, or the handler as `<listener class>.<method>`.
+     * @param count the number of dispatches of the event type, or invocations of the handler.
+     * @param cancelled the number of dispatches that ended cancelled, or invocations that cancelled the event.
+     * @param sampled the number of measured dispatches or invocations.
+     * @param totalNanos the total measured time.
+     * @param maxNanos the longest measured time.
+     * @param p50Nanos the median of the measured times.
+     * @param p90Nanos the 90th percentile of the measured times.
+     * @param p99Nanos the 99th percentile of the measured times.
+     */
+    data class Stats(
+        val name: String,
+        val count: Long,
+        val cancelled: Long,
+        val sampled: Long,
+        val totalNanos: Long,
+        val maxNanos: Long,
+        val p50Nanos: Long,
+        val p90Nanos: Long,
+        val p99Nanos: Long
+    ) {
+        /** The mean of the measured times, 0 if none was measured. */
+        val meanNanos: Long
+            get() = if(sampled == 0L) 0 else totalNanos / sampled
+    }
+
+    /**
+     * @param eventTypes the statistics of each event type, by dispatch count.
+     * @param handlers the statistics of each handler, by total measured time.
+     */
+    data class Snapshot(val eventTypes: List<Stats>, val handlers: List<Stats>)
+
+    /** Counters and latency histogram of an event type or a handler. */
+    internal class Recorder(private val name: String) {
+        private val count = LongAdder()
+        private val cancelled = LongAdder()
+        private val sampled = LongAdder()
+        private val totalNanos = LongAdder()
+        private val maxNanos = LongAccumulator({ a, b -> maxOf(a, b) }, 0L)
+        private val histogram = AtomicLongArray(BUCKETS)
+
+        fun count() = count.increment()
+
+        fun cancelled() = cancelled.increment()
+
+        fun record(nanos: Long) {
+            sampled.increment()
+            totalNanos.add(nanos)
+            maxNanos.accumulate(nanos)
+            histogram.incrementAndGet(bucket(nanos))
+        }
+
+        fun stats(): Stats {
+            val counts = LongArray(BUCKETS) { histogram.get(it) }
+            val measured = counts.sum()
+            val max = maxNanos.get()
+            // A bucket reports its highest value, which can be above the longest time measured.
+            return Stats(name, count.sum(), cancelled.sum(), sampled.sum(), totalNanos.sum(), max,
+                minOf(percentile(counts, measured, 0.50), max),
+                minOf(percentile(counts, measured, 0.90), max),
+                minOf(percentile(counts, measured, 0.99), max))
+        }
+    }
+
+    /** Identifies an event type or a handler by identity, without keeping it reachable. */
+    private class Key(referent: Any, queue: ReferenceQueue<Any>?) : WeakReference<Any>(referent, queue) {
+        private val hash = System.identityHashCode(referent)
+
+        override fun hashCode() = hash
+
+        override fun equals(other: Any?): Boolean {
+            if(this === other)
+                return true
+            val referent = get()
+            return other is Key && referent != null && referent === other.get()
+        }
+    }
+
+    private val collected = ReferenceQueue<Any>()
+    private val eventTypes = ConcurrentHashMap<Key, Recorder>()
+    private val handlers = ConcurrentHashMap<Key, Recorder>()
+
+    /** @return true to measure the current dispatch. */
+    internal fun sample(): Boolean = sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0
+
+    internal fun eventType(type: Class<*>): Recorder = recorder(eventTypes, type, type.name)
+
+    internal fun handler(handler: HandlerTable.Handler): Recorder = recorder(handlers, handler, handler.name)
+
+    private fun recorder(recorders: ConcurrentHashMap<Key, Recorder>, key: Any, name: String): Recorder {
+        recorders[Key(key, null)]?.let { return it }
+        expunge()
+        return recorders.computeIfAbsent(Key(key, collected)) { Recorder(name) }
+    }
+
+    /** Drops the recorders of the event types and handlers that were collected. */
+    private fun expunge() {
+        while(true) {
+            val key = collected.poll() ?: return
+            eventTypes.remove(key)
+            handlers.remove(key)
+        }
+    }
+
+    /** Records a measured invocation and reports it if it is over the budget. */
+    internal fun handled(handler: HandlerTable.Handler, recorder: Recorder, event: Event, nanos: Long) {
+        recorder.record(nanos)
+        if(nanos > slowHandlerThresholdNanos)
+            onSlowHandler?.onSlowHandler(handler.name, event, nanos)
+    }
+
+    /** Returns the statistics gathered so far. Dispatches running meanwhile may be partly counted. */
+    fun snapshot(): Snapshot = Snapshot(
+        eventTypes.values.map { it.stats() }.sortedByDescending { it.count },
+        handlers.values.map { it.stats() }.sortedByDescending { it.totalNanos }
+    )
+
+    /** Forgets the statistics gathered so far. */
+    fun reset() {
+        eventTypes.clear()
+        handlers.clear()
+    }
+
+    private companion object {
+        /** 8 exact buckets below 8 ns, then 8 buckets per power of two. */
+        private const val BUCKETS = 62 * 8
+
+        private fun bucket(nanos: Long): Int {
+            if(nanos < 8)
+                return maxOf(nanos, 0L).toInt()
+            val log = 63 - java.lang.Long.numberOfLeadingZeros(nanos)
+            return (log - 2) * 8 + ((nanos ushr (log - 3)) and 7).toInt()
+        }
+
+        /** The highest value of a bucket. */
+        private fun bucketMax(bucket: Int): Long {
+            if(bucket < 8)
+                return bucket.toLong()
+            val shift = bucket / 8 - 1
+            return ((8L + bucket % 8) shl shift) + (1L shl shift) - 1
+        }
+
+        private fun percentile(counts: LongArray, total: Long, fraction: Double): Long {
+            if(total == 0L)
+                return 0
+            val rank = maxOf(1L, Math.ceil(total * fraction).toLong())
+            var seen = 0L
+            for(bucket in counts.indices) {
+                seen += counts[bucket]
+                if(seen >= rank)
+                    return bucketMax(bucket)
+            }
+            return bucketMax(counts.size - 1)
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package fr.valentinjdt.lib.event
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.Collections
+import java.util.WeakHashMap
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * A registry of listeners, safe to use from any thread.
+ *
+ * Buses form a tree rooted at [EventRegister]. An event dispatched on a bus runs the handlers of that bus,
+ * then bubbles up to its [parent], up to the root, so a parent sees the events of all its children while a
+ * child only sees its own. [close] detaches a bus with all its descendants at once: their listeners stop
+ * receiving events and become unreachable from the root, whatever their number.
+ *
+ * Listeners are kept in an immutable snapshot that [registerListener] and [removeListener] replace
+ * as a whole, so [runEvent] reads a single volatile field per bus and never locks. A dispatch that started
+ * before a change completes with the listeners of the previous snapshot.
+ *
+ * Events that aren't [Cancellable] can run their handlers on [executor]: the `async` handlers with
+ * [runEvent], or all of them with [runEventAsync]. Cancellable events always run their handlers in order.
+ *
+ * Handlers run by [EventHandler.priority] within each bus. Once a cancellable event is cancelled, the handlers
+ * that ignore cancelled events are skipped through a table built with the chain, so dispatch never sorts nor scans.
+ * A cancelled event keeps bubbling, for the handlers of the parents that still run once it is cancelled.
+ *
+ * Bursty event types can be coalesced with [coalesce]: [runEvent] then holds their events back and a shared
+ * scheduler thread dispatches one event per key once the window of the [CoalescingPolicy] is over.
+ */
+open class EventBus private constructor(
+    /** The bus events bubble up to, null for a root bus. */
+    val parent: EventBus?,
+    /** The class loader this bus belongs to, e.g. the one of a plugin, or null. */
+    val classLoader: ClassLoader?
+) {
+
+    /** Creates a root bus, independent of [EventRegister]. */
+    constructor() : this(null, null)
+
+    /**
+     * A registered listener. The same listener registered twice has two registrations.
+     * A weak registration only keeps a [ListenerReference], and [listener] is null once it is collected.
+     */
+    private class Registration(listener: Listener, weak: Boolean, bus: EventBus) {
+        private val strong = if(weak) null else listener
+        private val reference = if(weak) ListenerReference(listener, this, bus) else null
+
+        val listener: Listener?
+            get() = strong ?: reference?.get()
+    }
+
+    /** Enqueued in [COLLECTED] once its listener is collected, so [REAPER] removes the registration. */
+    private class ListenerReference(listener: Listener, val registration: Registration, val bus: EventBus) :
+        WeakReference<Listener>(listener, COLLECTED)
+
+    /** A handler bound to the listener it is called on. */
+    private class BoundHandler(val registration: Registration, val handler: HandlerTable.Handler) {
+
+        fun invoke(event: Event) {
+            val listener = registration.listener ?: return
+            handler.invoker.invoke(listener, event)
+        }
+    }
+
+    /**
+     * A class of a closed class loader still reachable from a bus, found by [findClassLoaderLeaks].
+     *
+     * @param bus the bus holding the class.
+     * @param className the name of the class.
+     * @param listener the listener holding the class, or null if the class is an event type indexed by the bus.
+     */
+    data class ClassLoaderLeak(val bus: EventBus, val className: String, val listener: Listener?)
+
+    /**
+     * The handlers of every listener for an event type, sorted by priority, then registration order, then by method name.
+     * [skipCancelled] gives, for each handler, the next one to run once the event is cancelled.
+     */
+    private class Chain(val handlers: Array<BoundHandler>, val cancellable: Boolean) {
+        val skipCancelled = HandlerTable.skipTable(handlers.size) { handlers[it].handler.runsWhenCancelled }
+
+        /** The first handler to run for an event that is already cancelled. */
+        val firstWhenCancelled = if(handlers.isEmpty() || handlers[0].handler.runsWhenCancelled) 0 else skipCancelled[0]
+    }
+
+    /** An event held back by a [Coalescer], with the bus it was dispatched on. */
+    private class Pending(val bus: EventBus, val event: Event, val parent: Boolean)
+
+    /**
+     * Holds back the events of a type coalesced by [coalesce], until [COALESCER] drains them.
+     * The events are grouped by bus and key, and dispatched in the order of the first event of each group.
+     */
+    private class Coalescer(private val policy: CoalescingPolicy<Event>) {
+        private var pending = LinkedHashMap<Pair<EventBus, Any?>, Pending>()
+        private var scheduled = false
+        private var lastEvent = 0L
+
+        fun offer(bus: EventBus, event: Event, parent: Boolean) {
+            synchronized(this) {
+                val key = bus to policy.keyOf(event)
+                val held = pending[key]
+                pending[key] = if(held == null) Pending(bus, event, parent) else Pending(bus, policy.merge(held.event, event), held.parent || parent)
+                lastEvent = System.nanoTime()
+                if(scheduled) return
+                scheduled = true
+            }
+            COALESCER.schedule(this::drain, policy.windowMillis, TimeUnit.MILLISECONDS)
+        }
+
+        private fun drain() {
+            if(policy.debounce) {
+                synchronized(this) {
+                    val remaining = TimeUnit.MILLISECONDS.toNanos(policy.windowMillis) - (System.nanoTime() - lastEvent)
+                    if(remaining > 0) {
+                        COALESCER.schedule(this::drain, remaining, TimeUnit.NANOSECONDS)
+                        return
+                    }
+                }
+            }
+            flush()
+        }
+
+        /** Dispatches the events held back now. */
+        fun flush() {
+            val events: Collection<Pending>
+            synchronized(this) {
+                events = pending.values
+                pending = LinkedHashMap()
+                scheduled = false
+            }
+            for(held in events) {
+                try {
+                    held.bus.dispatch(held.event, held.parent, true)
+                } catch(e: Throwable) {
+                    LOGGER.log(Level.SEVERE, "Coalesced dispatch of ${held.event::class.java.name} failed", e)
+                }
+            }
+        }
+    }
+
+    /**
+     * The registered listeners, with one index per value of the parent flag.
+     * The chains only depend on [registrations], so dispatching threads can fill the indexes concurrently.
+     */
+    private class Snapshot(
+        val registrations: Array<Registration>,
+        val exact: ConcurrentHashMap<Class<*>, Chain>,
+        val withParent: ConcurrentHashMap<Class<*>, Chain>
+    ) {
+        fun chainFor(eventType: Class<*>, parent: Boolean): Chain {
+            val index = if(parent) withParent else exact
+            return index[eventType] ?: index.computeIfAbsent(eventType) {
+                Chain(sorted(registrations.flatMap { bind(it, eventType, parent).asList() }), Cancellable::class.java.isAssignableFrom(eventType))
+            }
+        }
+    }
+
+    @Volatile
+    private var snapshot = emptySnapshot()
+
+    @Volatile
+    private var closed = false
+
+    @Volatile
+    private var customExecutor: Executor? = null
+
+    private val writeLock = Any()
+
+    /** The coalesced event types of this bus, replaced as a whole like [snapshot]. */
+    @Volatile
+    private var coalescers: Map<Class<*>, Coalescer> = emptyMap()
+
+    private val childBuses: MutableSet<EventBus> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * The executor running asynchronous handlers. Unless set, a bus uses the executor of its parent,
+     * and a root bus a shared pool of daemon threads.
+     * On JDK 21 and later, `Executors.newVirtualThreadPerTaskExecutor()` is a good fit for blocking handlers.
+     */
+    var executor: Executor
+        get() = customExecutor ?: parent?.executor ?: DEFAULT_EXECUTOR
+        set(value) {
+            customExecutor = value
+        }
+
+    /**
+     * The statistics of the handlers of this bus, or null, the default, to not gather any.
+     * Each bus gathers its own, so a child bus isn't measured by the metrics of its parent.
+     */
+    @Volatile
+    var metrics: DispatchMetrics? = null
+
+    /** The open buses created by [createChild] on this bus. */
+    val children: Set<EventBus>
+        get() = childBuses.toSet()
+
+    /** True once this bus or one of its ancestors is closed. */
+    val isClosed: Boolean
+        get() {
+            var bus: EventBus? = this
+            while(bus != null) {
+                if(bus.closed) return true
+                bus = bus.parent
+            }
+            return false
+        }
+
+    /**
+     * Creates a bus whose events bubble up to this one.
+     *
+     * @param classLoader the class loader the new bus belongs to, see [childFor].
+     * @throws IllegalStateException if this bus is closed.
+     */
+    fun createChild(classLoader: ClassLoader? = null): EventBus {
+        val child = EventBus(this, classLoader)
+        synchronized(writeLock) {
+            check(!closed) { "The bus is closed" }
+            childBuses += child
+        }
+        return child
+    }
+
+    /**
+     * @return the child of this bus that belongs to [classLoader], or null if there is none.
+     */
+    fun childFor(classLoader: ClassLoader): EventBus? = childBuses.firstOrNull { it.classLoader === classLoader }
+
+    /**
+     * Detaches this bus and its descendants from their parent and forgets their listeners.
+     * Dispatching on a closed bus does nothing.
+     *
+     * If the bus belongs to a class loader, the loader is considered closed: the ancestors and the listeners forget
+     * the event types it loaded, and [findClassLoaderLeaks] reports what still references its classes.
+     */
+    fun close() {
+        synchronized(writeLock) {
+            if(closed) return
+            closed = true
+            snapshot = emptySnapshot()
+            coalescers = emptyMap()
+            childBuses.clear()
+        }
+        parent?.childBuses?.remove(this)
+        classLoader?.let { loader ->
+            classLoaderClosed(loader)
+            var bus = parent
+            while(bus != null) {
+                bus.forgetEventTypes(loader)
+                bus = bus.parent
+            }
+        }
+    }
+
+    /** Drops the chains indexed for the event types of [classLoader], so they don't keep its classes reachable. */
+    private fun forgetEventTypes(classLoader: ClassLoader) {
+        val current = snapshot
+        current.exact.keys.removeIf { it.classLoader === classLoader }
+        current.withParent.keys.removeIf { it.classLoader === classLoader }
+    }
+
+    /**
+     * Lists the listeners of this bus and its descendants that hold classes of a closed class loader, either
+     * their own class, the event type of one of their handlers or an event type their handlers were resolved for,
+     * and the event types of a closed class loader still indexed. A class loader is closed once the bus it belongs to is closed, or after [classLoaderClosed].
+     *
+     * @return the leaks found, empty if there are none.
+     */
+    fun findClassLoaderLeaks(): List<ClassLoaderLeak> {
+        val leaks = mutableListOf<ClassLoaderLeak>()
+        val current = snapshot
+        for(registration in current.registrations) {
+            val listener = registration.listener ?: continue
+            val table = HandlerTable.of(listener::class.java)
+            val types = listOf(listener::class.java) + table.eventTypes + table.cachedEventTypes
+            types.filter { isClosed(it.classLoader) }.distinct().forEach { leaks += ClassLoaderLeak(this, it.name, listener) }
+        }
+        (current.exact.keys + current.withParent.keys).filter { isClosed(it.classLoader) }
+            .forEach { leaks += ClassLoaderLeak(this, it.name, null) }
+        childBuses.forEach { leaks += it.findClassLoaderLeaks() }
+        return leaks
+    }
+
+    /** The number of listeners registered on this bus, not counting its children. */
+    val listenerCount: Int
+        get() = snapshot.registrations.size
+
+    /**
+     * Dispatches an event on the calling thread, except for the `async` handlers of events that aren't [Cancellable].
+     * If this bus or one of its ancestors coalesces the type of the event, the event is held back instead,
+     * see [coalesce].
+     *
+     * @param parent true to also run the handlers of every superclass and interface of the event.
+     * @return false if the event is [Cancellable] and was cancelled.
+     */
+    fun runEvent(event: Event, parent: Boolean = false): Boolean {
+        val coalescer = coalescerFor(event::class.java) ?: return dispatch(event, parent, true)
+        if(!isClosed)
+            coalescer.offer(this, event, parent)
+        return true
+    }
+
+    /** The coalescer of the closest bus coalescing [eventType], from this one up to the root. */
+    private fun coalescerFor(eventType: Class<*>): Coalescer? {
+        var bus: EventBus? = this
+        while(bus != null) {
+            val coalescers = bus.coalescers
+            if(coalescers.isNotEmpty())
+                coalescers[eventType]?.let { return it }
+            bus = bus.parent
+        }
+        return null
+    }
+
+    /**
+     * Coalesces the events of a type dispatched with [runEvent] on this bus and its descendants, so a burst of
+     * equivalent events runs the handlers once. The events are held back and grouped as [policy] says, then
+     * dispatched on the bus they were dispatched on, by a scheduler thread shared by every bus: handlers of
+     * coalesced events should hand long work over to another thread.
+     *
+     * Only the events of exactly [eventType] are coalesced, not those of its subclasses.
+     * Setting a new policy for a type dispatches the events held back by the previous one.
+     *
+     * @throws IllegalArgumentException if [eventType] is [Cancellable], since its dispatcher needs the result.
+     * @throws IllegalStateException if this bus is closed.
+     */
+    fun <E : Event> coalesce(eventType: Class<E>, policy: CoalescingPolicy<E>) {
+        require(!Cancellable::class.java.isAssignableFrom(eventType)) { "Cancellable events can't be coalesced" }
+        @Suppress("UNCHECKED_CAST")
+        val coalescer = Coalescer(policy as CoalescingPolicy<Event>)
+        val previous = synchronized(writeLock) {
+            check(!closed) { "The bus is closed" }
+            val current = coalescers
+            coalescers = current + (eventType to coalescer)
+            current[eventType]
+        }
+        previous?.flush()
+    }
+
+    /**
+     * Stops coalescing a type and dispatches the events held back for it.
+     */
+    fun removeCoalescing(eventType: Class<out Event>) {
+        val previous = synchronized(writeLock) {
+            val current = coalescers
+            coalescers = current - eventType
+            current[eventType]
+        }
+        previous?.flush()
+    }
+
+    /**
+     * Dispatches now, on the calling thread, the events held back by the policies of this bus.
+     */
+    fun flushCoalesced() = coalescers.values.forEach { it.flush() }
+
+    /**
+     * Borrows an event from [pool], fills it, dispatches it and gives it back to the pool. Once the pool is warm
+     * and the chain of the event type built, the dispatch doesn't allocate.
+     *
+     * Since the event is reused after the dispatch, the `async` handlers run on the calling thread, like the others,
+     * and handlers must not keep a reference to it.
+     *
+     * @param pool the pool of the event type.
+     * @param parent true to also run the handlers of every superclass and interface of the event.
+     * @param fill sets the fields of the borrowed event.
+     * @return false if the event is [Cancellable] and was cancelled.
+     */
+    inline fun <E : PooledEvent> runEvent(pool: EventPool<E>, parent: Boolean = false, fill: (E) -> Unit): Boolean {
+        val event = pool.borrow()
+        try {
+            fill(event)
+            return dispatch(event, parent, false)
+        } finally {
+            pool.release(event)
+        }
+    }
+
+    /**
+     * @param async false to run the `async` handlers on the calling thread.
+     */
+    @PublishedApi
+    internal fun dispatch(event: Event, parent: Boolean, async: Boolean): Boolean {
+        if(isClosed)
+            return true
+
+        var bus = this
+        var chain = snapshot.chainFor(event::class.java, parent)
+        if(chain.cancellable)
+            return runCancellable(chain, event as Cancellable, event, parent)
+
+        while(true) {
+            val metrics = bus.metrics
+            if(metrics == null) {
+                for(handler in chain.handlers) {
+                    if(async && handler.handler.async)
+                        runAsync(bus, handler, event)
+                    else
+                        handler.invoke(event)
+                }
+            } else {
+                runMeasured(bus, metrics, chain, null, event, 0, async)
+            }
+            bus = bus.parent ?: return true
+            chain = bus.snapshot.chainFor(event::class.java, parent)
+        }
+    }
+
+    /**
+     * Dispatches an event on [executor].
+     *
+     * The handlers of a [Cancellable] event run in order in a single task, like with [runEvent]. The handlers
+     * of other events run concurrently, each in its own task.
+     *
+     * @return a future completed with the result [runEvent] would return once every handler ran,
+     * or completed exceptionally if a handler failed.
+     */
+    fun runEventAsync(event: Event, parent: Boolean = false): CompletableFuture<Boolean> {
+        if(isClosed)
+            return CompletableFuture.completedFuture(true)
+
+        val chain = snapshot.chainFor(event::class.java, parent)
+        if(chain.cancellable)
+            return CompletableFuture.supplyAsync({ runCancellable(chain, event as Cancellable, event, parent) }, executor)
+
+        val tasks = mutableListOf<CompletableFuture<Void>>()
+        var bus: EventBus? = this
+        while(bus != null) {
+            for(handler in bus.snapshot.chainFor(event::class.java, parent).handlers)
+                tasks += runAsync(bus, handler, event, bus.executor)
+            bus = bus.parent
+        }
+
+        return when(tasks.size) {
+            0 -> CompletableFuture.completedFuture(true)
+            1 -> tasks[0].thenApply { true }
+            else -> CompletableFuture.allOf(*tasks.toTypedArray()).thenApply { true }
+        }
+    }
+
+    /**
+     * Runs [chain], the chain of this bus, then the chains of the parents.
+     * Like with [Listener.execute], the first handler of this bus runs even if the event was cancelled before.
+     */
+    private fun runCancellable(chain: Chain, cancellable: Cancellable, event: Event, parent: Boolean): Boolean {
+        runChain(this, chain, cancellable, event, 0)
+        var bus = this.parent
+        while(bus != null) {
+            val parentChain = bus.snapshot.chainFor(event::class.java, parent)
+            runChain(bus, parentChain, cancellable, event, if(cancellable.cancel) parentChain.firstWhenCancelled else 0)
+            bus = bus.parent
+        }
+        return !cancellable.cancel
+    }
+
+    private fun runChain(bus: EventBus, chain: Chain, cancellable: Cancellable, event: Event, first: Int) {
+        val metrics = bus.metrics
+        if(metrics != null)
+            return runMeasured(bus, metrics, chain, cancellable, event, first, false)
+
+        val handlers = chain.handlers
+        var index = first
+        while(index < handlers.size) {
+            handlers[index].invoke(event)
+            index = if(cancellable.cancel) chain.skipCancelled[index] else index + 1
+        }
+    }
+
+    /**
+     * Runs the handlers of [chain] like [runEvent] or [runChain], recording them in [metrics].
+     *
+     * @param cancellable the event if it is [Cancellable], or null.
+     * @param async true to run the `async` handlers on [executor].
+     */
+    private fun runMeasured(bus: EventBus, metrics: DispatchMetrics, chain: Chain, cancellable: Cancellable?, event: Event, first: Int, async: Boolean) {
+        val eventType = metrics.eventType(event::class.java)
+        eventType.count()
+        val sampled = metrics.sample()
+        val start = if(sampled) System.nanoTime() else 0L
+
+        val handlers = chain.handlers
+        var index = first
+        while(index < handlers.size) {
+            val handler = handlers[index]
+            if(async && handler.handler.async) {
+                runAsync(bus, handler, event)
+                index++
+                continue
+            }
+
+            val recorder = metrics.handler(handler.handler)
+            recorder.count()
+            val wasCancelled = cancellable != null && cancellable.cancel
+            if(sampled) {
+                val handlerStart = System.nanoTime()
+                handler.invoke(event)
+                metrics.handled(handler.handler, recorder, event, System.nanoTime() - handlerStart)
+            } else {
+                handler.invoke(event)
+            }
+
+            index = if(cancellable != null && cancellable.cancel) {
+                if(!wasCancelled)
+                    recorder.cancelled()
+                chain.skipCancelled[index]
+            } else {
+                index + 1
+            }
+        }
+
+        if(sampled)
+            eventType.record(System.nanoTime() - start)
+        if(cancellable != null && cancellable.cancel)
+            eventType.cancelled()
+    }
+
+    /** Runs an `async` handler of [runEvent], logging its failure. */
+    private fun runAsync(bus: EventBus, handler: BoundHandler, event: Event) {
+        runAsync(bus, handler, event, bus.executor).exceptionally { e ->
+            LOGGER.log(Level.SEVERE, "Asynchronous handler of ${event::class.java.name} failed", e)
+            null
+        }
+    }
+
+    private fun runAsync(bus: EventBus, handler: BoundHandler, event: Event, executor: Executor): CompletableFuture<Void> =
+        CompletableFuture.runAsync({ handler.invoke(event) }, executor)
+
+    /**
+     * Registers a listener.
+     *
+     * A [weak] registration doesn't keep the listener reachable: once the listener is collected, a background
+     * thread removes it, so a listener of a plugin that forgot to remove it doesn't keep the plugin's class loader
+     * reachable. The listener must then be referenced elsewhere, e.g. by its plugin, or it stops receiving events.
+     *
+     * @param weak true to only keep a weak reference to the listener.
+     * @throws IllegalStateException if this bus is closed.
+     */
+    fun registerListener(listener: Listener, weak: Boolean = false) {
+        // Compiles the handlers now rather than on the first event.
+        HandlerTable.of(listener::class.java)
+        if(weak && REAPER_STARTED.compareAndSet(false, true))
+            REAPER.start()
+        val registration = Registration(listener, weak, this)
+        synchronized(writeLock) {
+            check(!closed) { "The bus is closed" }
+            val current = snapshot
+            // Appends the handlers of the listener to the chains already built.
+            snapshot = Snapshot(
+                current.registrations + registration,
+                derive(current.exact) { type, chain -> sorted(chain.asList() + bind(registration, type, false)) },
+                derive(current.withParent) { type, chain -> sorted(chain.asList() + bind(registration, type, true)) }
+            )
+        }
+    }
+
+    fun removeListener(listener: Listener) {
+        remove(snapshot.registrations.firstOrNull { it.listener == listener } ?: return)
+    }
+
+    private fun remove(registration: Registration) {
+        synchronized(writeLock) {
+            val current = snapshot
+            if(registration !in current.registrations) return
+            snapshot = Snapshot(
+                current.registrations.filter { it !== registration }.toTypedArray(),
+                derive(current.exact) { _, chain -> chain.filter { it.registration !== registration }.toTypedArray() },
+                derive(current.withParent) { _, chain -> chain.filter { it.registration !== registration }.toTypedArray() }
+            )
+        }
+    }
+
+    /** Removes the listeners of this bus. The listeners of its children stay registered. */
+    fun removeAllListeners() {
+        synchronized(writeLock) {
+            if(!closed)
+                snapshot = emptySnapshot()
+        }
+    }
+
+    companion object {
+
+        private val LOGGER: Logger = Logger.getLogger(EventBus::class.java.getName())
+
+        private val DEFAULT_EXECUTOR: Executor by lazy {
+            val threads = AtomicInteger()
+            Executors.newCachedThreadPool { task ->
+                Thread(task, "EventRegister-async-${threads.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }
+
+        /** The class loaders considered closed, kept weakly so the diagnostic doesn't leak them itself. */
+        private val CLOSED_LOADERS: MutableMap<ClassLoader, Boolean> = Collections.synchronizedMap(WeakHashMap())
+
+        private val COLLECTED = ReferenceQueue<Listener>()
+
+        /** Removes the weak registrations whose listener was collected. Started by the first weak registration. */
+        private val REAPER = Thread({
+            while(true) {
+                val reference = COLLECTED.remove() as ListenerReference
+                reference.bus.remove(reference.registration)
+            }
+        }, "EventBus-reaper").apply { isDaemon = true }
+
+        private val REAPER_STARTED = AtomicBoolean()
+
+        /** Dispatches the coalesced events of every bus. */
+        private val COALESCER: ScheduledExecutorService by lazy {
+            Executors.newSingleThreadScheduledExecutor { task -> Thread(task, "EventBus-coalescer").apply { isDaemon = true } }
+        }
+
+        /**
+         * Marks a class loader as closed for [findClassLoaderLeaks], when it wasn't closed through its bus,
+         * and drops the handlers the listeners resolved for its event types.
+         */
+        @JvmStatic
+        fun classLoaderClosed(classLoader: ClassLoader) {
+            CLOSED_LOADERS[classLoader] = true
+            HandlerTable.forgetEventTypes(classLoader)
+        }
+
+        private fun isClosed(classLoader: ClassLoader?) = classLoader != null && CLOSED_LOADERS.containsKey(classLoader)
+
+        private fun emptySnapshot() = Snapshot(emptyArray(), ConcurrentHashMap(), ConcurrentHashMap())
+
+        private fun bind(registration: Registration, eventType: Class<*>, parent: Boolean): Array<BoundHandler> {
+            val listener = registration.listener ?: return emptyArray()
+            return HandlerTable.of(listener::class.java).handlersFor(eventType, parent).handlers
+                .map { BoundHandler(registration, it) }
+                .toTypedArray()
+        }
+
+        /** Sorts handlers by priority. The sort is stable, so equal priorities keep their registration order, then the order of [HandlerTable]. */
+        private fun sorted(handlers: List<BoundHandler>): Array<BoundHandler> =
+            handlers.sortedBy { it.handler.priority }.toTypedArray()
+
+        private inline fun derive(index: ConcurrentHashMap<Class<*>, Chain>, change: (Class<*>, Array<BoundHandler>) -> Array<BoundHandler>): ConcurrentHashMap<Class<*>, Chain> {
+            val derived = ConcurrentHashMap<Class<*>, Chain>()
+            for((type, chain) in index) {
+                val handlers = change(type, chain.handlers)
+                // Empty chains are rebuilt on demand, so they don't keep unloaded event classes reachable.
+                if(handlers.isNotEmpty())
+                    derived[type] = Chain(handlers, chain.cancellable)
+            }
+            return derived
+        }
+    }
+}
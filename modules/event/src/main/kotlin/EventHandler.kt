@@ -1,5 +1,18 @@
 package fr.valentinjdt.lib.event
 
+/**
+ * Marks a [Listener] method as the handler of the event type of its single parameter.
+ *
+ * @property async true to run the handler on [EventRegister.executor] without waiting for it, when the
+ * event isn't [Cancellable]. Handlers of cancellable events always run in order, on the dispatching thread.
+ * @property priority when the handler runs relative to the other handlers of the event.
+ * @property ignoreCancelled true to skip the handler once the event is cancelled, false to still run it,
+ * e.g. to uncancel the event. [EventPriority.MONITOR] handlers always run.
+ */
 @Target(AnnotationTarget.FUNCTION)
 @Retention(AnnotationRetention.RUNTIME)
-annotation class EventHandler
+annotation class EventHandler(
+    val async: Boolean = false,
+    val priority: EventPriority = EventPriority.NORMAL,
+    val ignoreCancelled: Boolean = true
+)
@@ -0,0 +1,71 @@
+package fr.valentinjdt.lib.event
+
+import java.lang.invoke.LambdaConversionException
+import java.lang.invoke.LambdaMetafactory
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.reflect.Method
+
+/**
+ * Calls one [EventHandler] method on a listener.
+ */
+fun interface EventInvoker {
+
+    fun invoke(listener: Listener, event: Event)
+
+    companion object {
+
+        private val INVOKER_TYPE = MethodType.methodType(EventInvoker::class.java)
+        private val ERASED_TYPE = MethodType.methodType(Void.TYPE, Listener::class.java, Event::class.java)
+
+        /**
+         * Compiles a handler method into an invoker.
+         *
+         * The invoker is spun by [LambdaMetafactory], so calls are plain interface calls the JIT can inline.
+         * When the listener class can't be looked up with full privileges, e.g. when it lives in a named module
+         * that isn't open, a [MethodHandle] invoker is used instead, and [Method.invoke] as a last resort.
+         *
+         * @param method an [EventHandler] method with a single parameter.
+         * @return the invoker.
+         */
+        @JvmStatic
+        fun compile(method: Method): EventInvoker {
+            val handle = try {
+                MethodHandles.privateLookupIn(method.declaringClass, MethodHandles.lookup()).unreflect(method)
+            } catch(e: IllegalAccessException) {
+                return reflective(method)
+            }
+            return try {
+                metafactory(method.declaringClass, handle)
+            } catch(e: LambdaConversionException) {
+                bound(handle)
+            } catch(e: IllegalAccessException) {
+                bound(handle)
+            }
+        }
+
+        private fun metafactory(declaringClass: Class<*>, handle: MethodHandle): EventInvoker {
+            val lookup = MethodHandles.privateLookupIn(declaringClass, MethodHandles.lookup())
+            val site = LambdaMetafactory.metafactory(
+                lookup,
+                "invoke",
+                INVOKER_TYPE,
+                ERASED_TYPE,
+                handle,
+                handle.type().changeReturnType(Void.TYPE)
+            )
+            return site.target.invoke() as EventInvoker
+        }
+
+        private fun bound(handle: MethodHandle): EventInvoker {
+            val erased = handle.asType(ERASED_TYPE)
+            return EventInvoker { listener, event -> erased.invoke(listener, event) }
+        }
+
+        private fun reflective(method: Method): EventInvoker {
+            method.trySetAccessible()
+            return EventInvoker { listener, event -> method.invoke(listener, event) }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package fr.valentinjdt.lib.event
+
+/**
+ * The order handlers run in, from [LOWEST] to [MONITOR]. Handlers of the same priority run in
+ * registration order, then, within a listener, by method name and event type: the JVM doesn't
+ * specify the order methods are declared in.
+ */
+enum class EventPriority {
+    LOWEST,
+    LOW,
+    NORMAL,
+    HIGH,
+    HIGHEST,
+
+    /** Runs last and always sees the final state of the event, even once it is cancelled. Shouldn't change it. */
+    MONITOR
+}
@@ -1,17 +1,9 @@
 package fr.valentinjdt.lib.event
 
-object EventRegister {
-
-    private val listeners = mutableListOf<Listener>();
-
-    fun runEvent(event: Event, parent: Boolean = false): Boolean = if(listeners.size == 0) true else listeners.all { it.execute(event, parent) }
-
-    fun registerListener(listener: Listener) {
-        listeners += listener
-    }
-
-    fun removeListener(listener: Listener) {
-        listeners -= listener
-    }
-
-}
\ No newline at end of file
+/**
+ * The root [EventBus], shared by the whole application.
+ *
+ * Code that can be unloaded, like a plugin, should register its listeners on a child bus created with
+ * [createChild] and close it when unloaded, rather than removing each listener from this one.
+ */
+object EventRegister : EventBus()
@@ -0,0 +1,46 @@
+package fr.valentinjdt.lib.event
+
+/**
+ * The handlers of a listener class, generated at compile time by the `event-processor` module.
+ *
+ * The generated class is named after the listener class, with the names of its enclosing classes joined
+ * by `_` and an [SUFFIX] suffix, in the same package. When it exists, the handlers of the listener class
+ * are taken from it instead of being discovered and compiled by reflection.
+ */
+interface GeneratedDispatcher {
+
+    /** A generated handler, calling its method directly. [methodName] names it in [DispatchMetrics]. */
+    class Handler(
+        val eventType: Class<out Event>,
+        val async: Boolean,
+        val priority: EventPriority,
+        val ignoreCancelled: Boolean,
+        val methodName: String = "",
+        val invoker: EventInvoker
+    )
+
+    /** The [EventHandler] methods declared by the listener class, in declaration order. */
+    fun handlers(): Array<Handler>
+
+    companion object {
+        const val SUFFIX = "_EventDispatcher"
+
+        /**
+         * @param listenerClass the listener class.
+         * @return the generated dispatcher of the class, or null if it has none.
+         */
+        @JvmStatic
+        fun find(listenerClass: Class<*>): GeneratedDispatcher? {
+            val packageName = listenerClass.packageName
+            val name = (if(packageName.isEmpty()) "" else "$packageName.") +
+                listenerClass.name.substringAfterLast('.').replace('$', '_') + SUFFIX
+            val dispatcherClass = try {
+                Class.forName(name, true, listenerClass.classLoader)
+            } catch(e: ClassNotFoundException) {
+                return null
+            }
+            if(!GeneratedDispatcher::class.java.isAssignableFrom(dispatcherClass)) return null
+            return dispatcherClass.getDeclaredConstructor().newInstance() as GeneratedDispatcher
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package fr.valentinjdt.lib.event
+
+import java.util.Collections
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The [EventHandler] methods of a listener class, discovered once and cached per class.
+ *
+ * The handlers come from the [GeneratedDispatcher] of the class when there is one. Otherwise each method
+ * is compiled into an [EventInvoker] when the table is built. The handlers that apply
+ * to an event type are resolved on the first dispatch of that type, so later dispatches only walk an array,
+ * whether they match the exact type or its whole hierarchy.
+ */
+internal class HandlerTable private constructor(private val handlers: Array<Handler>) {
+
+    /** An [EventHandler] method, callable on any instance of its listener class. */
+    internal class Handler(
+        val name: String,
+        val eventType: Class<*>,
+        val invoker: EventInvoker,
+        val async: Boolean,
+        val priority: EventPriority,
+        ignoreCancelled: Boolean
+    ) {
+        /** True if the handler still runs once the event is cancelled. */
+        val runsWhenCancelled = !ignoreCancelled || priority == EventPriority.MONITOR
+    }
+
+    /**
+     * The handlers to call for an event type, sorted by priority, then method name and event type.
+     * [cancellable] is resolved with the chain, since a failing `is Cancellable` check scans the
+     * interfaces of the event class on every dispatch.
+     */
+    internal class Chain(val handlers: Array<Handler>, val cancellable: Boolean) {
+        val skipCancelled = skipTable(handlers.size) { handlers[it].runsWhenCancelled }
+    }
+
+    /** The event types of the handlers, by method name and event type. */
+    val eventTypes: List<Class<*>>
+        get() = handlers.map { it.eventType }
+
+    private val exact = ConcurrentHashMap<Class<*>, Chain>()
+    private val withParent = ConcurrentHashMap<Class<*>, Chain>()
+
+    /** The event types a chain was resolved for. */
+    val cachedEventTypes: Set<Class<*>>
+        get() = exact.keys + withParent.keys
+
+    /**
+     * @param eventType the class of the dispatched event.
+     * @param parent true to also include the handlers of every superclass and interface of [eventType].
+     * @return the handlers to call.
+     */
+    fun handlersFor(eventType: Class<*>, parent: Boolean): Chain {
+        val cache = if(parent) withParent else exact
+        // get() first, computeIfAbsent locks the bin even when the value is present.
+        return cache[eventType] ?: cache.computeIfAbsent(eventType) { type ->
+            Chain(
+                handlers.filter { it.eventType === type || (parent && it.eventType.isAssignableFrom(type)) }
+                    .sortedBy { it.priority }
+                    .toTypedArray(),
+                Cancellable::class.java.isAssignableFrom(type)
+            )
+        }
+    }
+
+    companion object {
+
+        private val TABLES = object : ClassValue<HandlerTable>() {
+            override fun computeValue(type: Class<*>): HandlerTable = HandlerTable(scan(type)).also { LIVE.add(it) }
+        }
+
+        /** Every table, to purge their chains. A table lives as long as its listener class. */
+        private val LIVE: MutableSet<HandlerTable> = Collections.synchronizedSet(Collections.newSetFromMap(WeakHashMap()))
+
+        fun of(listenerClass: Class<out Listener>): HandlerTable = TABLES.get(listenerClass)
+
+        /**
+         * Drops the chains of every table resolved for the event types of [classLoader], so a listener
+         * that outlives it doesn't keep its classes reachable.
+         */
+        fun forgetEventTypes(classLoader: ClassLoader) {
+            val tables = synchronized(LIVE) { LIVE.toList() }
+            for(table in tables) {
+                table.exact.keys.removeIf { it.classLoader === classLoader }
+                table.withParent.keys.removeIf { it.classLoader === classLoader }
+            }
+        }
+
+        /**
+         * Builds the table used to skip the handlers that ignore cancelled events: entry `i` is the index
+         * of the first handler after `i` that still runs once the event is cancelled, or [size] if there is none.
+         *
+         * @param size the number of handlers.
+         * @param runsWhenCancelled true for the handlers that still run once the event is cancelled.
+         */
+        inline fun skipTable(size: Int, runsWhenCancelled: (Int) -> Boolean): IntArray {
+            val next = IntArray(size)
+            var following = size
+            for(i in size - 1 downTo 0) {
+                next[i] = following
+                if(runsWhenCancelled(i)) following = i
+            }
+            return next
+        }
+
+        /** Sorts the handlers by method name and event type, an order both discovery paths agree on. */
+        private val STABLE_ORDER = compareBy<Handler>({ it.name }, { it.eventType.name })
+
+        private fun scan(type: Class<*>): Array<Handler> {
+            GeneratedDispatcher.find(type)?.let { dispatcher ->
+                return dispatcher.handlers().mapIndexed { index, handler ->
+                    Handler("${type.name}.${handler.methodName.ifEmpty { "handler$index" }}", handler.eventType, handler.invoker, handler.async, handler.priority, handler.ignoreCancelled)
+                }.sortedWith(STABLE_ORDER).toTypedArray()
+            }
+            return type.declaredMethods
+                .filter { it.isAnnotationPresent(EventHandler::class.java) && it.parameterCount == 1 }
+                .map { method ->
+                    val annotation = method.getAnnotation(EventHandler::class.java)
+                    Handler("${type.name}.${method.name}", method.parameterTypes[0], EventInvoker.compile(method), annotation.async, annotation.priority, annotation.ignoreCancelled)
+                }
+                .sortedWith(STABLE_ORDER)
+                .toTypedArray()
+        }
+    }
+}
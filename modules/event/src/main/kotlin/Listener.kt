@@ -3,17 +3,26 @@ package fr.valentinjdt.lib.event
 open class Listener {
 
     fun execute(event: Event, parent: Boolean = false): Boolean {
-        val functions = this::class.java.declaredMethods
+        val chain = HandlerTable.of(this::class.java).handlersFor(event::class.java, parent)
+        val handlers = chain.handlers
 
-        for(function in functions.filter { it.isAnnotationPresent(EventHandler::class.java) }) {
-            for(parameter in function.parameters.filter { it.type === event::class.java || (parent && it.type === event::class.java.superclass) }) {
-                function.invoke(this, event)
-                if(event is Cancellable && event.cancel)
-                    return false
-            }
+        if(!chain.cancellable) {
+            for(handler in handlers)
+                handler.invoker.invoke(this, event)
+            return true
         }
 
-        return true
+        if(handlers.isEmpty())
+            return true
+
+        val cancellable = event as Cancellable
+        var index = 0
+        while(index < handlers.size) {
+            handlers[index].invoker.invoke(this, event)
+            index = if(cancellable.cancel) chain.skipCancelled[index] else index + 1
+        }
+
+        return !cancellable.cancel
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,10 @@
+package fr.valentinjdt.lib.event
+
+/**
+ * An event that can be reused, to dispatch it with [EventBus.runEvent] and an [EventPool].
+ */
+interface PooledEvent : Event {
+
+    /** Clears the fields of the event, including [Cancellable.cancel], before it goes back to its pool. */
+    fun reset()
+}
@@ -0,0 +1,359 @@
+package fr.valentinjdt.lib.event
+
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.locks.LockSupport
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * An event bus for high-rate events, built on a ring of preallocated events.
+ *
+ * Producers don't create events: [publish] claims the next slot of the ring, lets the caller fill the event
+ * stored there and makes it visible to the consumers. Each consumer is a thread running the handlers of one
+ * [Listener] (or [EventRegister], see [forwardToEventRegister]) on every event, in publication order. A consumer
+ * handles all the events published since its last pass as one batch, and producers wait for the slowest
+ * consumer when the ring is full.
+ *
+ * Consumers read the same event concurrently, so handlers must not modify it, and cancelling a [Cancellable]
+ * event has no effect: the flag is cleared each time a slot is claimed. An event is only valid during the
+ * handler call: its slot is filled again once every consumer moved past it.
+ *
+ * ```
+ * val bus = RingBufferEventBus(factory = ::MessageEvent)
+ * bus.registerListener(MessageListener())
+ * bus.start()
+ * bus.publish { it.message = message }
+ * ```
+ *
+ * @param E the type of the events.
+ * @param bufferSize the number of slots, a power of two.
+ * @param factory creates the events stored in the slots, called [bufferSize] times.
+ * @param producerType [ProducerType.SINGLE] if only one thread ever publishes, which makes publishing cheaper.
+ * @param waitStrategy how the consumers wait for events.
+ * @param parent true to also run the handlers of every superclass and interface of the events.
+ * @param threadFactory creates the consumer threads.
+ */
+class RingBufferEventBus<E : Event>(
+    bufferSize: Int = 1024,
+    factory: () -> E,
+    producerType: ProducerType = ProducerType.MULTI,
+    private val waitStrategy: WaitStrategy = WaitStrategy.blocking(),
+    private val parent: Boolean = false,
+    private val threadFactory: ThreadFactory = defaultThreadFactory()
+) {
+
+    /** Who publishes to a [RingBufferEventBus]. */
+    enum class ProducerType { SINGLE, MULTI }
+
+    init {
+        require(bufferSize > 0 && bufferSize and (bufferSize - 1) == 0) { "bufferSize must be a power of two" }
+    }
+
+    private val mask = bufferSize - 1
+    private val slots: Array<Event> = Array(bufferSize) { factory() }
+    private val sequencer: Sequencer = when(producerType) {
+        ProducerType.SINGLE -> SingleProducerSequencer(bufferSize, waitStrategy)
+        ProducerType.MULTI -> MultiProducerSequencer(bufferSize, waitStrategy)
+    }
+    private val consumers = mutableListOf<Consumer>()
+
+    @Volatile
+    private var state = NEW
+
+    /** The number of slots. */
+    val bufferSize: Int
+        get() = slots.size
+
+    /** The number of slots that can be published without waiting for a consumer. */
+    val remainingCapacity: Long
+        get() = sequencer.remainingCapacity()
+
+    /**
+     * Adds a consumer running the handlers of [listener]. Must be called before [start].
+     */
+    fun registerListener(listener: Listener) {
+        val chain = HandlerTable.of(listener::class.java).handlersFor(slots[0]::class.java, parent).handlers
+        addConsumer(listener::class.java.name) { event ->
+            for(handler in chain)
+                handler.invoker.invoke(listener, event)
+        }
+    }
+
+    /**
+     * Adds a consumer dispatching each event on [EventRegister], to the listeners registered at that time.
+     * Must be called before [start].
+     *
+     * Like a pooled event, the event is dispatched synchronously, `async` handlers included, and isn't
+     * coalesced, since its slot is filled again once the consumer moves on.
+     */
+    fun forwardToEventRegister() = addConsumer(EventRegister::class.java.name) { event -> EventRegister.dispatch(event, parent, false) }
+
+    private fun addConsumer(name: String, handle: (Event) -> Unit) {
+        check(state == NEW) { "Consumers must be added before the bus is started" }
+        consumers += Consumer(name, handle)
+    }
+
+    /** Starts a thread per consumer. */
+    fun start() {
+        synchronized(consumers) {
+            check(state == NEW) { "The bus is already started" }
+            sequencer.gatingSequences = Array(consumers.size) { consumers[it].sequence }
+            state = RUNNING
+            consumers.forEach { consumer -> threadFactory.newThread(consumer).also { consumer.thread = it }.start() }
+        }
+    }
+
+    /**
+     * Claims the next slot, waiting while the ring is full, fills its event and publishes it.
+     *
+     * @param fill sets the fields of the event. It must not keep a reference to it.
+     */
+    fun publish(fill: (E) -> Unit) {
+        check(state == RUNNING) { "The bus isn't running" }
+        val sequence = sequencer.next()
+        try {
+            fillSlot(sequence, fill)
+        } finally {
+            sequencer.publish(sequence)
+        }
+    }
+
+    /**
+     * Like [publish], but returns false instead of waiting when the ring is full.
+     */
+    fun tryPublish(fill: (E) -> Unit): Boolean {
+        check(state == RUNNING) { "The bus isn't running" }
+        val sequence = sequencer.tryNext()
+        if(sequence < 0)
+            return false
+        try {
+            fillSlot(sequence, fill)
+        } finally {
+            sequencer.publish(sequence)
+        }
+        return true
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private inline fun fillSlot(sequence: Long, fill: (E) -> Unit) {
+        val event = slots[(sequence and mask.toLong()).toInt()]
+        // A handler of the previous lap may have cancelled the event.
+        if(event is Cancellable)
+            event.cancel = false
+        fill(event as E)
+    }
+
+    /**
+     * Waits until the consumers handled the events published so far, then stops them.
+     *
+     * @param timeout the maximum time to wait, in milliseconds.
+     * @return true if every published event was handled.
+     */
+    fun shutdown(timeout: Long = 1000L): Boolean {
+        synchronized(consumers) {
+            if(state != RUNNING) return true
+            state = STOPPED
+        }
+        val target = sequencer.cursor.get()
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout)
+        var drained = true
+        while(Sequence.minimum(sequencer.gatingSequences, target) < target) {
+            if(System.nanoTime() > deadline) {
+                drained = false
+                break
+            }
+            waitStrategy.signalAllWhenBlocking()
+            Thread.onSpinWait()
+        }
+        consumers.forEach { it.running = false }
+        waitStrategy.signalAllWhenBlocking()
+        consumers.forEach { it.thread?.join(timeout) }
+        return drained
+    }
+
+    /** A thread handling the events in order, one batch at a time. */
+    private inner class Consumer(val name: String, private val handle: (Event) -> Unit) : Runnable {
+
+        val sequence = Sequence()
+
+        @Volatile
+        var running = true
+
+        var thread: Thread? = null
+
+        private val alerted = { !running }
+
+        override fun run() {
+            var next = sequence.get() + 1
+            while(true) {
+                val available = waitStrategy.waitFor(next, sequencer.cursor, alerted)
+                if(available < next) {
+                    if(!running) return
+                    continue
+                }
+                val highest = sequencer.highestPublished(next, available)
+                if(highest < next) {
+                    // Claimed by a producer that hasn't published it yet.
+                    Thread.onSpinWait()
+                    continue
+                }
+                while(next <= highest) {
+                    val event = slots[(next and mask.toLong()).toInt()]
+                    try {
+                        handle(event)
+                    } catch(e: Throwable) {
+                        LOGGER.log(Level.SEVERE, "Consumer $name failed on ${event::class.java.name}", e)
+                    }
+                    next++
+                }
+                // One release store per batch lets the producers reuse the slots.
+                sequence.set(highest)
+            }
+        }
+    }
+
+    companion object {
+        private const val NEW = 0
+        private const val RUNNING = 1
+        private const val STOPPED = 2
+
+        private val LOGGER: Logger = Logger.getLogger(RingBufferEventBus::class.java.getName())
+
+        private fun defaultThreadFactory(): ThreadFactory {
+            val threads = AtomicInteger()
+            return ThreadFactory { task ->
+                Thread(task, "RingBufferEventBus-consumer-${threads.incrementAndGet()}").apply { isDaemon = true }
+            }
+        }
+    }
+}
+
+/**
+ * Hands out the sequences of a ring and tracks which are published.
+ * [cursor] only moves forward; producers never claim more than the ring size ahead of the slowest [gatingSequences].
+ */
+private abstract class Sequencer(protected val bufferSize: Int, protected val waitStrategy: WaitStrategy) {
+
+    val cursor = Sequence()
+
+    @Volatile
+    var gatingSequences: Array<Sequence> = emptyArray()
+
+    /** Claims the next sequence, waiting while the ring is full. */
+    abstract fun next(): Long
+
+    /** Claims the next sequence, or returns -1 if the ring is full. */
+    abstract fun tryNext(): Long
+
+    /** Makes a claimed sequence visible to the consumers. */
+    abstract fun publish(sequence: Long)
+
+    /** @return the highest sequence from [lower] to [available] such that every sequence up to it is published. */
+    abstract fun highestPublished(lower: Long, available: Long): Long
+
+    abstract fun remainingCapacity(): Long
+}
+
+/** A sequencer for a single publishing thread: claiming is a plain field update. */
+private class SingleProducerSequencer(bufferSize: Int, waitStrategy: WaitStrategy) : Sequencer(bufferSize, waitStrategy) {
+
+    private var nextValue = Sequence.INITIAL
+    private var cachedGating = Sequence.INITIAL
+
+    override fun next(): Long {
+        val next = nextValue + 1
+        val wrapPoint = next - bufferSize
+        if(wrapPoint > cachedGating) {
+            var minimum = Sequence.minimum(gatingSequences, nextValue)
+            while(wrapPoint > minimum) {
+                LockSupport.parkNanos(1L)
+                minimum = Sequence.minimum(gatingSequences, nextValue)
+            }
+            cachedGating = minimum
+        }
+        nextValue = next
+        return next
+    }
+
+    override fun tryNext(): Long {
+        val next = nextValue + 1
+        val wrapPoint = next - bufferSize
+        if(wrapPoint > cachedGating) {
+            cachedGating = Sequence.minimum(gatingSequences, nextValue)
+            if(wrapPoint > cachedGating) return -1L
+        }
+        nextValue = next
+        return next
+    }
+
+    override fun publish(sequence: Long) {
+        cursor.set(sequence)
+        waitStrategy.signalAllWhenBlocking()
+    }
+
+    override fun highestPublished(lower: Long, available: Long): Long = available
+
+    override fun remainingCapacity(): Long = bufferSize - (cursor.get() - Sequence.minimum(gatingSequences, cursor.get()))
+}
+
+/**
+ * A sequencer for concurrent publishing threads. [cursor] is the highest claimed sequence, and each slot records
+ * the lap of the ring its event was published in, since sequences can be published out of order.
+ */
+private class MultiProducerSequencer(bufferSize: Int, waitStrategy: WaitStrategy) : Sequencer(bufferSize, waitStrategy) {
+
+    private val mask = bufferSize - 1
+    private val indexShift = Integer.numberOfTrailingZeros(bufferSize)
+    private val published = AtomicIntegerArray(bufferSize).apply { for(i in 0 until bufferSize) set(i, -1) }
+    private val cachedGating = Sequence()
+
+    override fun next(): Long {
+        while(true) {
+            val current = cursor.get()
+            val next = current + 1
+            val wrapPoint = next - bufferSize
+            val gating = cachedGating.get()
+            if(wrapPoint > gating || gating > current) {
+                val minimum = Sequence.minimum(gatingSequences, current)
+                if(wrapPoint > minimum) {
+                    LockSupport.parkNanos(1L)
+                    continue
+                }
+                cachedGating.set(minimum)
+            } else if(cursor.compareAndSet(current, next)) {
+                return next
+            }
+        }
+    }
+
+    override fun tryNext(): Long {
+        while(true) {
+            val current = cursor.get()
+            val next = current + 1
+            if(next - bufferSize > Sequence.minimum(gatingSequences, current))
+                return -1L
+            if(cursor.compareAndSet(current, next))
+                return next
+        }
+    }
+
+    override fun publish(sequence: Long) {
+        published.lazySet((sequence and mask.toLong()).toInt(), (sequence ushr indexShift).toInt())
+        waitStrategy.signalAllWhenBlocking()
+    }
+
+    override fun highestPublished(lower: Long, available: Long): Long {
+        var sequence = lower
+        while(sequence <= available) {
+            if(published.get((sequence and mask.toLong()).toInt()) != (sequence ushr indexShift).toInt())
+                return sequence - 1
+            sequence++
+        }
+        return available
+    }
+
+    override fun remainingCapacity(): Long = bufferSize - (cursor.get() - Sequence.minimum(gatingSequences, cursor.get()))
+}
@@ -0,0 +1,48 @@
+package fr.valentinjdt.lib.event
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A sequence number of a [RingBufferEventBus], read and written by different threads.
+ *
+ * The value sits in the middle of a 15 longs array, so it never shares a cache line with another
+ * sequence or with the fields around it.
+ *
+ * @param initial the initial value.
+ */
+class Sequence(initial: Long = INITIAL) {
+
+    private val values = AtomicLongArray(PADDED_SIZE).apply { set(INDEX, initial) }
+
+    fun get(): Long = values.get(INDEX)
+
+    /** Sets the value with release semantics: writes made before are visible to a thread that reads it. */
+    fun set(value: Long) = values.lazySet(INDEX, value)
+
+    fun setVolatile(value: Long) = values.set(INDEX, value)
+
+    fun compareAndSet(expected: Long, value: Long): Boolean = values.compareAndSet(INDEX, expected, value)
+
+    override fun toString(): String = get().toString()
+
+    companion object {
+        const val INITIAL = -1L
+
+        private const val INDEX = 7
+        private const val PADDED_SIZE = 15
+
+        /**
+         * @param sequences the sequences to read.
+         * @param default the value returned when [sequences] is empty.
+         * @return the smallest value of the sequences.
+         */
+        @JvmStatic
+        fun minimum(sequences: Array<Sequence>, default: Long): Long {
+            var minimum = default
+            for(sequence in sequences) {
+                minimum = minOf(minimum, sequence.get())
+            }
+            return minimum
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package fr.valentinjdt.lib.event
+
+import java.lang.invoke.VarHandle
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * How the consumers of a [RingBufferEventBus] wait for events to be published, trading latency for CPU use.
+ */
+interface WaitStrategy {
+
+    /**
+     * Waits until [cursor] reaches [sequence], or until [alerted] returns true.
+     *
+     * @param sequence the sequence the consumer waits for.
+     * @param cursor the last published (or, with several producers, claimed) sequence.
+     * @param alerted returns true when the consumer must stop waiting.
+     * @return the value of [cursor], lower than [sequence] if the consumer was alerted.
+     */
+    fun waitFor(sequence: Long, cursor: Sequence, alerted: () -> Boolean): Long
+
+    /** Wakes up the consumers blocked in [waitFor]. Called after each publication. */
+    fun signalAllWhenBlocking()
+
+    companion object {
+
+        /** Spins on the cursor. The lowest latency, but each consumer keeps a core busy. */
+        @JvmStatic
+        fun busySpin(): WaitStrategy = BusySpinWaitStrategy()
+
+        /** Spins, then yields the thread. Low latency while leaving the core to other runnable threads. */
+        @JvmStatic
+        fun yielding(): WaitStrategy = YieldingWaitStrategy()
+
+        /**
+         * Spins, yields, then parks for [sleepNanos]. Little CPU use when idle, at the cost of latency.
+         *
+         * @param sleepNanos the time to park between checks, in nanoseconds.
+         */
+        @JvmStatic
+        fun sleeping(sleepNanos: Long = TimeUnit.MICROSECONDS.toNanos(100)): WaitStrategy = SleepingWaitStrategy(sleepNanos)
+
+        /** Blocks on a condition signalled by the producers. No CPU use when idle, the highest latency. */
+        @JvmStatic
+        fun blocking(): WaitStrategy = BlockingWaitStrategy()
+    }
+}
+
+private class BusySpinWaitStrategy : WaitStrategy {
+
+    override fun waitFor(sequence: Long, cursor: Sequence, alerted: () -> Boolean): Long {
+        var available = cursor.get()
+        while(available < sequence && !alerted()) {
+            Thread.onSpinWait()
+            available = cursor.get()
+        }
+        return available
+    }
+
+    override fun signalAllWhenBlocking() {}
+}
+
+private class YieldingWaitStrategy : WaitStrategy {
+
+    override fun waitFor(sequence: Long, cursor: Sequence, alerted: () -> Boolean): Long {
+        var spins = SPIN_TRIES
+        var available = cursor.get()
+        while(available < sequence && !alerted()) {
+            if(spins > 0) {
+                spins--
+                Thread.onSpinWait()
+            } else {
+                Thread.yield()
+            }
+            available = cursor.get()
+        }
+        return available
+    }
+
+    override fun signalAllWhenBlocking() {}
+
+    companion object {
+        private const val SPIN_TRIES = 100
+    }
+}
+
+private class SleepingWaitStrategy(private val sleepNanos: Long) : WaitStrategy {
+
+    override fun waitFor(sequence: Long, cursor: Sequence, alerted: () -> Boolean): Long {
+        var tries = RETRIES
+        var available = cursor.get()
+        while(available < sequence && !alerted()) {
+            when {
+                tries > YIELD_TRIES -> {
+                    tries--
+                    Thread.onSpinWait()
+                }
+                tries > 0 -> {
+                    tries--
+                    Thread.yield()
+                }
+                else -> LockSupport.parkNanos(sleepNanos)
+            }
+            available = cursor.get()
+        }
+        return available
+    }
+
+    override fun signalAllWhenBlocking() {}
+
+    companion object {
+        private const val RETRIES = 200
+        private const val YIELD_TRIES = 100
+    }
+}
+
+private class BlockingWaitStrategy : WaitStrategy {
+
+    private val lock = ReentrantLock()
+    private val published = lock.newCondition()
+
+    @Volatile
+    private var waiters = 0
+
+    override fun waitFor(sequence: Long, cursor: Sequence, alerted: () -> Boolean): Long {
+        var available = cursor.get()
+        if(available >= sequence) return available
+        lock.withLock {
+            waiters++
+            try {
+                available = cursor.get()
+                while(available < sequence && !alerted()) {
+                    // Bounded, so an alert raised without a signal is still seen.
+                    published.awaitNanos(ALERT_CHECK_NANOS)
+                    available = cursor.get()
+                }
+            } finally {
+                waiters--
+            }
+        }
+        return available
+    }
+
+    override fun signalAllWhenBlocking() {
+        // Publishing only takes the lock when a consumer is blocked. The fence orders the cursor
+        // update before the read of waiters, which the consumer updates before reading the cursor.
+        VarHandle.fullFence()
+        if(waiters > 0) {
+            lock.withLock { published.signalAll() }
+        }
+    }
+
+    companion object {
+        private val ALERT_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10)
+    }
+}
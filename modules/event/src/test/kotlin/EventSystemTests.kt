@@ -1,5 +1,10 @@
 package fr.valentinjdt.lib.event
 
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.test.*
 
 class EventSystemTests {
@@ -109,12 +114,509 @@ class EventSystemTests {
         // Vérification
         assertFalse(listener.eventHandled, "Le listener supprimé ne devrait pas être appelé")
     }
+
+    @Test
+    fun testOnlyMatchingHandlersAreIndexed() {
+        // Enregistrement d'un listener avant et après la première exécution
+        val first = TestListener()
+        val other = CancellingListener()
+        EventRegister.registerListener(first)
+        EventRegister.registerListener(other)
+        EventRegister.runEvent(TestEvent())
+        val second = TestListener()
+        EventRegister.registerListener(second)
+
+        // Le listener ajouté après la construction de l'index est appelé
+        first.eventHandled = false
+        assertTrue(EventRegister.runEvent(TestEvent()))
+        assertTrue(first.eventHandled, "Le premier listener devrait avoir traité l'événement")
+        assertTrue(second.eventHandled, "Le listener ajouté ensuite devrait avoir traité l'événement")
+
+        // Le listener supprimé est retiré de l'index
+        EventRegister.removeListener(first)
+        first.eventHandled = false
+        EventRegister.runEvent(TestEvent())
+        assertFalse(first.eventHandled, "Le listener supprimé ne devrait pas être appelé")
+
+        // Nettoyage
+        EventRegister.removeListener(other)
+        EventRegister.removeListener(second)
+    }
+
+    @Test
+    fun testConcurrentRegistrationAndDispatch() {
+        // Un listener stable et des listeners ajoutés et retirés pendant l'exécution
+        val stable = CountingListener()
+        EventRegister.registerListener(stable)
+        val errors = ConcurrentLinkedQueue<Throwable>()
+        val running = AtomicBoolean(true)
+
+        val writer = Thread {
+            while(running.get()) {
+                val listener = CountingListener()
+                EventRegister.registerListener(listener)
+                EventRegister.removeListener(listener)
+            }
+        }
+        val readers = (1..4).map {
+            Thread {
+                try {
+                    repeat(20_000) { EventRegister.runEvent(CountedEvent()) }
+                } catch(e: Throwable) {
+                    errors.add(e)
+                }
+            }
+        }
+        writer.start()
+        readers.forEach { it.start() }
+        readers.forEach { it.join() }
+        running.set(false)
+        writer.join()
+
+        // Aucune erreur et le listener stable a reçu chaque événement
+        assertTrue(errors.isEmpty(), "Aucune exception ne devrait être levée : $errors")
+        assertEquals(80_000, stable.count.get(), "Le listener stable devrait recevoir tous les événements")
+
+        // Nettoyage
+        EventRegister.removeListener(stable)
+    }
+
+    @Test
+    fun testAsyncDispatch() {
+        // Un gestionnaire asynchrone et un gestionnaire synchrone
+        val listener = AsyncListener()
+        EventRegister.registerListener(listener)
+
+        // runEvent n'attend pas le gestionnaire asynchrone
+        assertTrue(EventRegister.runEvent(TestEvent()))
+        assertEquals(Thread.currentThread().name, listener.syncThread)
+        assertTrue(listener.asyncDone.await(5, TimeUnit.SECONDS), "Le gestionnaire asynchrone devrait être appelé")
+        assertNotEquals(Thread.currentThread().name, listener.asyncThread)
+
+        // runEventAsync se termine une fois tous les gestionnaires exécutés
+        assertTrue(EventRegister.runEventAsync(TestEvent()).get(5, TimeUnit.SECONDS))
+
+        // Un événement annulable garde son ordre et son résultat
+        val cancellingListener = CancellingListener()
+        EventRegister.registerListener(cancellingListener)
+        assertFalse(EventRegister.runEventAsync(TestCancellableEvent()).get(5, TimeUnit.SECONDS))
+
+        // Nettoyage
+        EventRegister.removeListener(listener)
+        EventRegister.removeListener(cancellingListener)
+    }
+
+    @Test
+    fun testHierarchyEventHandling() {
+        // Listener sur une classe grand-parent et sur une interface
+        val listener = HierarchyListener()
+        EventRegister.registerListener(listener)
+
+        // Sans le flag parent, seuls les gestionnaires du type exact sont appelés
+        EventRegister.runEvent(GrandChildEvent())
+        assertEquals(listOf("grandChild"), listener.calls)
+
+        // Avec le flag parent, toute la hiérarchie est parcourue, dans l'ordre des priorités
+        listener.calls.clear()
+        EventRegister.runEvent(GrandChildEvent(), true)
+        assertEquals(listOf("parent", "marker", "grandChild"), listener.calls)
+
+        // Nettoyage
+        EventRegister.removeListener(listener)
+    }
+
+    @Test
+    fun testEqualPrioritiesOrder() {
+        // Deux listeners dont les gestionnaires ont la même priorité
+        val calls = mutableListOf<String>()
+        val first = UnorderedListener("first", calls)
+        val second = UnorderedListener("second", calls)
+        EventRegister.registerListener(first)
+        EventRegister.registerListener(second)
+
+        // Ordre d'enregistrement, puis nom de méthode, quel que soit l'ordre de déclaration
+        EventRegister.runEvent(PriorityEvent())
+        assertEquals(listOf("first:alpha", "first:bravo", "first:charlie", "second:alpha", "second:bravo", "second:charlie"), calls)
+
+        // Nettoyage
+        EventRegister.removeListener(first)
+        EventRegister.removeListener(second)
+    }
+
+    @Test
+    fun testPrioritiesAndIgnoreCancelled() {
+        // Deux listeners dont les priorités s'entrelacent
+        val calls = mutableListOf<String>()
+        val first = PriorityListener("first", calls)
+        val second = PriorityListener("second", calls)
+        EventRegister.registerListener(first)
+        EventRegister.registerListener(second)
+
+        // Ordre par priorité puis par enregistrement, MONITOR en dernier
+        assertTrue(EventRegister.runEvent(PriorityEvent()))
+        assertEquals(listOf("first:low", "second:low", "first:high", "second:high", "first:monitor", "second:monitor"), calls)
+
+        // Une fois annulé, seuls les gestionnaires qui n'ignorent pas l'annulation et MONITOR sont appelés
+        calls.clear()
+        assertFalse(EventRegister.runEvent(PriorityEvent(cancelAt = "first:low")))
+        assertEquals(listOf("first:low", "first:high", "second:high", "first:monitor", "second:monitor"), calls)
+
+        // Nettoyage
+        EventRegister.removeListener(first)
+        EventRegister.removeListener(second)
+    }
+
+    @Test
+    fun testChildBusBubblesAndCloses() {
+        // Un bus enfant et un petit-enfant sous EventRegister
+        val child = EventRegister.createChild()
+        val grandChild = child.createChild()
+        val rootCalls = mutableListOf<String>()
+        val rootListener = PriorityListener("root", rootCalls)
+        val childCalls = mutableListOf<String>()
+        val childListener = PriorityListener("child", childCalls)
+        val grandChildListener = CountingListener()
+        EventRegister.registerListener(rootListener)
+        child.registerListener(childListener)
+        grandChild.registerListener(grandChildListener)
+
+        // Un événement remonte du bus où il est lancé jusqu'à la racine, mais ne descend pas
+        assertTrue(child.runEvent(PriorityEvent()))
+        assertEquals(listOf("child:low", "child:high", "child:monitor"), childCalls)
+        assertEquals(listOf("root:low", "root:high", "root:monitor"), rootCalls)
+        EventRegister.runEvent(CountedEvent())
+        grandChild.runEvent(CountedEvent())
+        assertEquals(1, grandChildListener.count.get())
+
+        // Un événement annulé dans l'enfant continue vers le parent, pour les gestionnaires qui n'ignorent pas l'annulation
+        childCalls.clear()
+        rootCalls.clear()
+        assertFalse(child.runEvent(PriorityEvent(cancelAt = "child:low")))
+        assertEquals(listOf("root:high", "root:monitor"), rootCalls)
+
+        // Fermer l'enfant détache tout son sous-arbre
+        child.close()
+        assertTrue(grandChild.isClosed)
+        assertFalse(EventRegister.children.contains(child))
+        rootCalls.clear()
+        grandChild.runEvent(CountedEvent())
+        child.runEvent(PriorityEvent())
+        assertEquals(1, grandChildListener.count.get())
+        assertTrue(rootCalls.isEmpty(), "Un bus fermé ne devrait plus rien transmettre")
+        assertFailsWith<IllegalStateException> { child.registerListener(CountingListener()) }
+
+        // Nettoyage
+        EventRegister.removeListener(rootListener)
+    }
+
+    @Test
+    fun testWeakListenerIsPruned() {
+        val bus = EventBus()
+        val kept = CountingListener()
+        bus.registerListener(kept, weak = true)
+        registerUnreferencedListener(bus)
+        assertEquals(2, bus.listenerCount)
+
+        // Le listener qui n'est plus référencé est retiré après sa collecte
+        val deadline = System.currentTimeMillis() + 5000
+        while(bus.listenerCount > 1 && System.currentTimeMillis() < deadline) {
+            System.gc()
+            Thread.sleep(10)
+        }
+        assertEquals(1, bus.listenerCount)
+
+        // Le listener encore référencé reçoit toujours les événements
+        bus.runEvent(CountedEvent())
+        assertEquals(1, kept.count.get())
+    }
+
+    private fun registerUnreferencedListener(bus: EventBus) = bus.registerListener(CountingListener(), weak = true)
+
+    @Test
+    fun testClassLoaderLeaks() {
+        // Un listener chargé par un autre class loader, comme celui d'un plugin
+        val loader = IsolatingClassLoader(CountingListener::class.java.name)
+        val listener = loader.loadClass(CountingListener::class.java.name).getDeclaredConstructor().newInstance() as Listener
+        val bus = EventRegister.createChild(loader)
+        bus.registerListener(listener)
+        EventRegister.registerListener(listener)
+
+        // Fermer le bus du class loader signale le listener resté enregistré ailleurs
+        bus.close()
+        val leaks = EventRegister.findClassLoaderLeaks()
+        assertEquals(1, leaks.size)
+        assertSame(listener, leaks[0].listener)
+        assertEquals(CountingListener::class.java.name, leaks[0].className)
+
+        // Nettoyage
+        EventRegister.removeListener(listener)
+        assertTrue(EventRegister.findClassLoaderLeaks().isEmpty())
+    }
+
+    @Test
+    fun testListenerOutlivingClassLoader() {
+        // Un événement chargé par le class loader d'un plugin, reçu par un listener qui lui survit
+        val loader = IsolatingClassLoader(ChildEvent::class.java.name)
+        val eventType = loader.loadClass(ChildEvent::class.java.name)
+        val listener = ParentEventListener()
+        EventRegister.registerListener(listener)
+        val bus = EventRegister.createChild(loader)
+        bus.runEvent(eventType.getDeclaredConstructor().newInstance() as Event, true)
+        assertTrue(listener.parentEventHandled)
+        assertTrue(eventType in HandlerTable.of(ParentEventListener::class.java).cachedEventTypes)
+
+        // Fermer le bus purge aussi les gestionnaires résolus par le listener
+        bus.close()
+        assertFalse(eventType in HandlerTable.of(ParentEventListener::class.java).cachedEventTypes)
+        assertTrue(EventRegister.findClassLoaderLeaks().isEmpty())
+
+        // Un événement du plugin encore distribué après sa fermeture est signalé, avec le listener qui le retient
+        EventRegister.runEvent(eventType.getDeclaredConstructor().newInstance() as Event, true)
+        val leaks = EventRegister.findClassLoaderLeaks()
+        assertTrue(leaks.any { it.listener === listener && it.className == ChildEvent::class.java.name }, leaks.toString())
+
+        // Nettoyage
+        EventRegister.removeListener(listener)
+        EventRegister.createChild(loader).close()
+        assertTrue(EventRegister.findClassLoaderLeaks().isEmpty(), EventRegister.findClassLoaderLeaks().toString())
+    }
+
+    @Test
+    fun testDispatchMetrics() {
+        // Un bus mesuré, avec un budget dépassé par tous les gestionnaires
+        val slow = mutableListOf<String>()
+        val bus = EventBus()
+        bus.metrics = DispatchMetrics(slowHandlerThresholdNanos = -1) { handler, _, _ -> slow += handler }
+        bus.registerListener(PriorityListener("first", mutableListOf()))
+
+        bus.runEvent(PriorityEvent())
+        bus.runEvent(PriorityEvent(cancelAt = "first:low"))
+
+        // Les dispatchs, les annulations et les invocations sont comptés par type et par gestionnaire
+        val snapshot = bus.metrics!!.snapshot()
+        val eventStats = snapshot.eventTypes.single()
+        assertEquals(PriorityEvent::class.java.name, eventStats.name)
+        assertEquals(2, eventStats.count)
+        assertEquals(1, eventStats.cancelled)
+        assertEquals(2, eventStats.sampled)
+        assertTrue(eventStats.maxNanos >= eventStats.p50Nanos)
+
+        val low = snapshot.handlers.single { it.name == PriorityListener::class.java.name + ".onLow" }
+        assertEquals(2, low.count)
+        assertEquals(1, low.cancelled)
+        assertEquals(3, snapshot.handlers.size)
+        assertEquals(6, slow.size)
+
+        // Sans métriques, rien n'est plus enregistré
+        val metrics = bus.metrics!!
+        metrics.reset()
+        bus.metrics = null
+        bus.runEvent(PriorityEvent())
+        assertTrue(metrics.snapshot().eventTypes.isEmpty())
+    }
+
+    @Test
+    fun testMetricsDontKeepClassLoaders() {
+        val bus = EventBus()
+        bus.metrics = DispatchMetrics()
+        val loader = measureIsolatedListener(bus)
+
+        // Les statistiques ne retiennent ni le gestionnaire ni le class loader du listener retiré
+        val deadline = System.currentTimeMillis() + 5000
+        while(loader.get() != null && System.currentTimeMillis() < deadline) {
+            System.gc()
+            Thread.sleep(10)
+        }
+        assertNull(loader.get())
+    }
+
+    private fun measureIsolatedListener(bus: EventBus): java.lang.ref.WeakReference<ClassLoader> {
+        val loader = IsolatingClassLoader(CountingListener::class.java.name)
+        val listener = loader.loadClass(CountingListener::class.java.name).getDeclaredConstructor().newInstance() as Listener
+        bus.registerListener(listener)
+        bus.runEvent(CountedEvent())
+        assertEquals(1, bus.metrics!!.snapshot().handlers.size)
+        bus.removeListener(listener)
+        return java.lang.ref.WeakReference(loader)
+    }
+
+    @Test
+    fun testPooledEventDispatch() {
+        val bus = EventBus()
+        val listener = PooledListener()
+        bus.registerListener(listener)
+        val pool = EventPool(::PooledTestEvent)
+
+        // L'événement est rempli, dispatché puis réinitialisé et réutilisé
+        assertTrue(bus.runEvent(pool) { it.value = 42 })
+        assertEquals(42, listener.lastValue)
+        val first = listener.lastEvent
+        assertEquals(0, first!!.value)
+        bus.runEvent(pool) { it.value = 7 }
+        assertSame(first, listener.lastEvent)
+
+        // Une fois le pool et la chaîne prêts, le dispatch n'alloue plus
+        val threads = java.lang.management.ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        repeat(10_000) { i -> bus.runEvent(pool) { it.value = i } }
+        val before = threads.currentThreadAllocatedBytes
+        repeat(10_000) { i -> bus.runEvent(pool) { it.value = i } }
+        val allocated = threads.currentThreadAllocatedBytes - before
+        assertTrue(allocated < 1024, "$allocated octets alloués pour 10 000 dispatchs")
+    }
+
+    @Test
+    fun testRingBufferEventBus() {
+        // Plusieurs producteurs, un consommateur par listener et un vers EventRegister
+        val bus = RingBufferEventBus(bufferSize = 64, factory = ::SequencedEvent)
+        val first = SequenceListener()
+        val second = SequenceListener()
+        bus.registerListener(first)
+        bus.registerListener(second)
+        bus.forwardToEventRegister()
+        val registered = SequenceListener()
+        EventRegister.registerListener(registered)
+        bus.start()
+
+        // Chaque producteur publie des valeurs croissantes, bien plus que la taille de l'anneau
+        val producers = (0 until 4).map { producer ->
+            Thread {
+                for(i in 0 until 10_000)
+                    bus.publish { it.producer = producer; it.value = i }
+            }.apply { start() }
+        }
+        producers.forEach { it.join() }
+
+        // Tous les événements publiés sont traités, dans l'ordre de publication de chaque producteur
+        assertTrue(bus.shutdown(5000))
+        for(listener in listOf(first, second, registered)) {
+            assertEquals(40_000, listener.count)
+            assertTrue(listener.ordered, "Les événements d'un producteur devraient arriver dans l'ordre")
+        }
+
+        // L'anneau ne peut plus être utilisé une fois arrêté
+        assertFailsWith<IllegalStateException> { bus.publish { } }
+
+        // Nettoyage
+        EventRegister.removeListener(registered)
+    }
+
+    @Test
+    fun testRingBufferForwardsSynchronously() {
+        // Un gestionnaire asynchrone garderait l'événement après son tour, alors que son emplacement est réutilisé
+        val bus = RingBufferEventBus(bufferSize = 4, factory = ::RingEvent, producerType = RingBufferEventBus.ProducerType.SINGLE)
+        bus.forwardToEventRegister()
+        val listener = RingListener()
+        EventRegister.registerListener(listener)
+        bus.start()
+
+        for(i in 0 until 100)
+            bus.publish { it.value = i }
+        assertTrue(bus.shutdown(5000))
+
+        // Chaque événement est vu une fois, sur le thread consommateur, et n'est jamais déjà annulé
+        assertEquals((0 until 100).toList(), listener.values)
+        assertTrue(listener.threads.all { it.startsWith("RingBufferEventBus-consumer") }, listener.threads.toString())
+        assertFalse(listener.sawCancelled, "Le drapeau d'annulation devrait être réinitialisé à chaque tour")
+
+        // Nettoyage
+        EventRegister.removeListener(listener)
+    }
+
+    @Test
+    fun testRingBufferIgnoresCoalescing() {
+        val bus = RingBufferEventBus(bufferSize = 4, factory = ::SequencedEvent, producerType = RingBufferEventBus.ProducerType.SINGLE)
+        bus.forwardToEventRegister()
+        val listener = SequenceListener()
+        EventRegister.registerListener(listener)
+        EventRegister.coalesce(SequencedEvent::class.java, CoalescingPolicy.keepLatest(60_000))
+        bus.start()
+
+        for(i in 0 until 100)
+            bus.publish { it.value = i }
+        assertTrue(bus.shutdown(5000))
+
+        // Les événements ne sont pas retenus par la politique de regroupement
+        assertEquals(100, listener.count)
+        assertTrue(listener.ordered)
+
+        // Nettoyage
+        EventRegister.removeCoalescing(SequencedEvent::class.java)
+        EventRegister.removeListener(listener)
+    }
+
+    @Test
+    fun testCoalescedEvents() {
+        // La politique du parent s'applique aux événements de ses enfants
+        val bus = EventBus()
+        val child = bus.createChild()
+        val listener = ConfigListener()
+        bus.registerListener(listener)
+        bus.coalesce(ConfigChangedEvent::class.java, CoalescingPolicy.keepLatest(50) { it.section })
+
+        // Une rafale de 1 000 événements équivalents ne donne qu'une invocation, avec le dernier
+        repeat(1000) { child.runEvent(ConfigChangedEvent("server", setOf("port-$it"))) }
+        assertTrue(listener.calls.isEmpty(), "Les événements devraient être retenus")
+        assertTrue(listener.received.await(5, TimeUnit.SECONDS))
+        Thread.sleep(100)
+        assertEquals(listOf("server" to setOf("port-999")), listener.calls.toList())
+
+        // Fusion des changements, une invocation par clé
+        listener.reset(2)
+        bus.coalesce(ConfigChangedEvent::class.java, CoalescingPolicy.merge(50, { it.section }) { held, event ->
+            ConfigChangedEvent(held.section, held.keys + event.keys)
+        })
+        repeat(500) { bus.runEvent(ConfigChangedEvent(if(it % 2 == 0) "server" else "client", setOf("key-${it % 4}"))) }
+        assertTrue(listener.received.await(5, TimeUnit.SECONDS))
+        assertEquals(setOf("server" to setOf("key-0", "key-2"), "client" to setOf("key-1", "key-3")), listener.calls.toSet())
+
+        // Le debounce attend la fin de la rafale
+        listener.reset(1)
+        bus.coalesce(ConfigChangedEvent::class.java, CoalescingPolicy.debounce(100))
+        val start = System.nanoTime()
+        repeat(10) {
+            bus.runEvent(ConfigChangedEvent("server", setOf("step-$it")))
+            Thread.sleep(20)
+        }
+        assertTrue(listener.received.await(5, TimeUnit.SECONDS))
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(9 * 20 + 100))
+        assertEquals(listOf("server" to setOf("step-9")), listener.calls.toList())
+
+        // Les événements retenus peuvent être dispatchés immédiatement
+        listener.reset(1)
+        bus.coalesce(ConfigChangedEvent::class.java, CoalescingPolicy.keepLatest(60_000))
+        bus.runEvent(ConfigChangedEvent("client", setOf("now")))
+        bus.flushCoalesced()
+        assertEquals(listOf("client" to setOf("now")), listener.calls.toList())
+
+        // Sans politique, le dispatch est de nouveau immédiat ; les événements annulables ne sont pas regroupés
+        bus.removeCoalescing(ConfigChangedEvent::class.java)
+        bus.runEvent(ConfigChangedEvent("server", setOf("direct")))
+        assertEquals(2, listener.calls.size)
+        assertFailsWith<IllegalArgumentException> { bus.coalesce(PriorityEvent::class.java, CoalescingPolicy.keepLatest(10)) }
+    }
 }
 
 // Événements de test
 class TestEvent : Event
+class CountedEvent : Event
+class PooledTestEvent(var value: Int = 0) : PooledEvent {
+    override fun reset() {
+        value = 0
+    }
+}
+class ConfigChangedEvent(val section: String, val keys: Set<String>) : Event
+class RingEvent(var value: Int = 0) : Event, Cancellable {
+    override var cancel = false
+}
+class SequencedEvent(var producer: Int = 0, var value: Int = 0) : Event
 class ChildEvent : ParentEvent()
 open class ParentEvent : Event
+interface MarkerEvent : Event
+open class MiddleEvent : ParentEvent(), MarkerEvent
+class GrandChildEvent : MiddleEvent()
+class PriorityEvent(val cancelAt: String? = null) : Event, Cancellable {
+    override var cancel: Boolean = false
+}
 class TestCancellableEvent : Event, Cancellable {
     override var cancel: Boolean = false
 }
@@ -129,6 +631,149 @@ class TestListener : Listener() {
     }
 }
 
+class CountingListener : Listener() {
+    val count = AtomicInteger()
+
+    @EventHandler
+    fun onCountedEvent(event: CountedEvent) {
+        count.incrementAndGet()
+    }
+}
+
+class SequenceListener : Listener() {
+    var count = 0
+    var ordered = true
+    private val last = IntArray(4) { -1 }
+
+    // Appelé par un seul thread consommateur
+    @EventHandler
+    fun onSequencedEvent(event: SequencedEvent) {
+        count++
+        if(event.value != last[event.producer] + 1)
+            ordered = false
+        last[event.producer] = event.value
+    }
+}
+
+class RingListener : Listener() {
+    val values: MutableList<Int> = java.util.Collections.synchronizedList(mutableListOf())
+    val threads: MutableSet<String> = java.util.Collections.synchronizedSet(mutableSetOf())
+    @Volatile
+    var sawCancelled = false
+
+    @EventHandler(async = true)
+    fun onRingEvent(event: RingEvent) {
+        if(event.cancel)
+            sawCancelled = true
+        values += event.value
+        threads += Thread.currentThread().name
+        event.cancel = true
+    }
+}
+
+class ConfigListener : Listener() {
+    val calls: MutableList<Pair<String, Set<String>>> = java.util.Collections.synchronizedList(mutableListOf())
+    @Volatile
+    var received = CountDownLatch(1)
+
+    fun reset(expected: Int) {
+        calls.clear()
+        received = CountDownLatch(expected)
+    }
+
+    @EventHandler
+    fun onConfigChanged(event: ConfigChangedEvent) {
+        calls += event.section to event.keys
+        received.countDown()
+    }
+}
+
+class PooledListener : Listener() {
+    var lastValue = 0
+    var lastEvent: PooledTestEvent? = null
+
+    // Asynchrone, mais exécuté sur le thread appelant pour un événement du pool
+    @EventHandler(async = true)
+    fun onPooledEvent(event: PooledTestEvent) {
+        lastValue = event.value
+        lastEvent = event
+    }
+}
+
+class AsyncListener : Listener() {
+    val asyncDone = CountDownLatch(1)
+    @Volatile var asyncThread: String? = null
+    var syncThread: String? = null
+
+    @EventHandler(async = true)
+    fun onTestEventAsync(event: TestEvent) {
+        asyncThread = Thread.currentThread().name
+        asyncDone.countDown()
+    }
+
+    @EventHandler
+    fun onTestEvent(event: TestEvent) {
+        syncThread = Thread.currentThread().name
+    }
+}
+
+class HierarchyListener : Listener() {
+    val calls = mutableListOf<String>()
+
+    @EventHandler(priority = EventPriority.LOW)
+    fun onParentEvent(event: ParentEvent) {
+        calls += "parent"
+    }
+
+    @EventHandler(priority = EventPriority.NORMAL)
+    fun onMarkerEvent(event: MarkerEvent) {
+        calls += "marker"
+    }
+
+    @EventHandler(priority = EventPriority.HIGH)
+    fun onGrandChildEvent(event: GrandChildEvent) {
+        calls += "grandChild"
+    }
+}
+
+class UnorderedListener(private val name: String, private val calls: MutableList<String>) : Listener() {
+
+    @EventHandler
+    fun charlie(event: PriorityEvent) {
+        calls += "$name:charlie"
+    }
+
+    @EventHandler
+    fun alpha(event: PriorityEvent) {
+        calls += "$name:alpha"
+    }
+
+    @EventHandler
+    fun bravo(event: PriorityEvent) {
+        calls += "$name:bravo"
+    }
+}
+
+class PriorityListener(private val name: String, private val calls: MutableList<String>) : Listener() {
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    fun onMonitor(event: PriorityEvent) {
+        calls += "$name:monitor"
+    }
+
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = false)
+    fun onHigh(event: PriorityEvent) {
+        calls += "$name:high"
+    }
+
+    @EventHandler(priority = EventPriority.LOW)
+    fun onLow(event: PriorityEvent) {
+        calls += "$name:low"
+        if(event.cancelAt == "$name:low")
+            event.cancel = true
+    }
+}
+
 class CancellingListener : Listener() {
     @EventHandler
     fun onTestCancellableEvent(event: TestCancellableEvent) {
@@ -144,3 +789,16 @@ class ParentEventListener : Listener() {
         parentEventHandled = true
     }
 }
+
+/** Charge lui-même une classe de test, pour qu'elle appartienne à un autre class loader. */
+class IsolatingClassLoader(private val isolated: String) : ClassLoader(IsolatingClassLoader::class.java.classLoader) {
+    override fun loadClass(name: String, resolve: Boolean): Class<*> {
+        if(name != isolated)
+            return super.loadClass(name, resolve)
+        synchronized(getClassLoadingLock(name)) {
+            findLoadedClass(name)?.let { return it }
+            val bytes = parent.getResourceAsStream(name.replace('.', '/') + ".class")!!.use { it.readBytes() }
+            return defineClass(name, bytes, 0, bytes.size)
+        }
+    }
+}
@@ -94,6 +94,52 @@ class ListenerTests {
         assertTrue(result, "La méthode execute devrait retourner true même sans gestionnaire correspondant")
         assertFalse(listener.simpleEventHandled, "Aucun gestionnaire ne devrait être appelé")
     }
+
+    @Test
+    fun testHandlersAreResolvedOncePerClass() {
+        // Deux listeners de la même classe partagent la même table
+        val table = HandlerTable.of(ComplexListener::class.java)
+        assertSame(table, HandlerTable.of(ComplexListener::class.java))
+
+        // Les gestionnaires d'un type d'événement ne sont résolus qu'une fois
+        val handlers = table.handlersFor(SimpleEvent::class.java, false).handlers
+        assertSame(handlers, table.handlersFor(SimpleEvent::class.java, false).handlers)
+        assertEquals(1, handlers.size)
+
+        // Les méthodes non annotées sont ignorées
+        assertEquals(0, table.handlersFor(UnhandledEvent::class.java, false).handlers.size)
+
+        // Exécution répétée avec la table en cache
+        val listener = ComplexListener()
+        repeat(3) { assertTrue(listener.execute(SimpleEvent())) }
+        assertTrue(listener.simpleEventHandled, "Le gestionnaire d'événement simple devrait avoir été appelé")
+    }
+
+    @Test
+    fun testCompiledInvoker() {
+        // Compilation d'un gestionnaire en invoker
+        val method = SimpleListener::class.java.getDeclaredMethod("onSimpleEvent", SimpleEvent::class.java)
+        val invoker = EventInvoker.compile(method)
+
+        // Appel direct de l'invoker
+        val listener = SimpleListener()
+        invoker.invoke(listener, SimpleEvent())
+
+        // Vérification
+        assertTrue(listener.simpleEventHandled, "L'invoker devrait appeler le gestionnaire")
+    }
+
+    @Test
+    fun testGeneratedDispatcherIsPreferred() {
+        // Un listener avec un dispatcher généré
+        val listener = GeneratedListener()
+        val result = listener.execute(SimpleEvent())
+
+        // Le gestionnaire est appelé par le dispatcher généré
+        assertTrue(result, "La méthode execute devrait retourner true")
+        assertEquals(1, listener.calls, "Le gestionnaire devrait être appelé une fois")
+        assertTrue(listener.viaDispatcher, "Le gestionnaire devrait être appelé par le dispatcher généré")
+    }
 }
 
 // Événements de test
@@ -165,3 +211,25 @@ class ParentListener : Listener() {
         parentEventHandled = true
     }
 }
+
+class GeneratedListener : Listener() {
+    var calls = 0
+    var viaDispatcher = false
+
+    @EventHandler
+    fun onSimpleEvent(event: SimpleEvent) {
+        calls++
+    }
+}
+
+// Équivalent du code généré par le module event-processor, dont la sortie réelle est testée par EventDispatcherProcessorTest
+class GeneratedListener_EventDispatcher : GeneratedDispatcher {
+
+    override fun handlers(): Array<GeneratedDispatcher.Handler> =
+        arrayOf(
+            GeneratedDispatcher.Handler(SimpleEvent::class.java, false, EventPriority.NORMAL, true) { listener, event ->
+                (listener as GeneratedListener).viaDispatcher = true
+                listener.onSimpleEvent(event as SimpleEvent)
+            }
+        )
+}
\ No newline at end of file
@@ -1,6 +1,6 @@
 dependencies {
     implementation(project(":utils"))
-    implementation(project(":event"))
+    api(project(":event"))
     testImplementation(kotlin("test"))
 }
 
@@ -1,5 +1,6 @@
 package fr.valentinjdt.lib.plugin
 
+import fr.valentinjdt.lib.event.EventBus
 import java.io.File
 import java.net.URL
 import java.util.Properties
@@ -24,6 +25,9 @@ interface IPlugin {
     var jarUrl: URL
     /** The loader that manages this plugin. [PluginLoader] define it. */
     var pluginLoader: PluginLoader<*>
+    /** The event bus of the plugin, see [PluginLoader.getEventBus]. Listeners registered on it are removed when the plugin is unloaded. */
+    val eventBus: EventBus
+        get() = pluginLoader.getEventBus(this)
     /** Call when the plugin is enabled. */
     fun onEnable()
     /** Call when the plugin is disabled. */
@@ -3,6 +3,7 @@
 package fr.valentinjdt.lib.plugin
 
 import fr.valentinjdt.lib.plugin.event.*
+import fr.valentinjdt.lib.event.EventBus
 import fr.valentinjdt.lib.event.EventRegister
 import fr.valentinjdt.lib.utils.normalize
 import java.io.File
@@ -15,6 +16,9 @@ class PluginLoader<T : IPlugin>(val directory: String) {
 
     private val plugins = mutableMapOf<T, URLClassLoader>()
 
+    /** The event bus of the loaded plugins, created on first use. */
+    private val eventBuses = mutableMapOf<IPlugin, EventBus>()
+
     init {
         val dir = File(directory)
         if(!dir.exists())
@@ -95,11 +99,11 @@ class PluginLoader<T : IPlugin>(val directory: String) {
         }
     }
 
-    /** Enable a plugin. */
+    /** Enable a plugin. Its events are dispatched on [EventRegister] if it isn't loaded by this loader. */
     fun enablePlugin(plugin: T) {
-        EventRegister.runEvent(PluginPreEnableEvent(plugin))
+        lifecycleBus(plugin).runEvent(PluginPreEnableEvent(plugin), parent = true)
         plugin.onEnable()
-        EventRegister.runEvent(PluginEnableEvent(plugin))
+        lifecycleBus(plugin).runEvent(PluginEnableEvent(plugin), parent = true)
     }
 
     /** Reload a plugin by its name. */
@@ -129,11 +133,11 @@ class PluginLoader<T : IPlugin>(val directory: String) {
         plugins.keys.find { it.name == name }?.apply { disablePlugin(this) }
     }
 
-    /** Call [IPlugin.onDisable] of the plugin. */
+    /** Call [IPlugin.onDisable] of the plugin. Its events are dispatched on [EventRegister] if it isn't loaded by this loader. */
     fun disablePlugin(plugin: T) {
-        EventRegister.runEvent(PluginPreDisableEvent(plugin))
+        lifecycleBus(plugin).runEvent(PluginPreDisableEvent(plugin), parent = true)
         plugin.onDisable()
-        EventRegister.runEvent(PluginDisableEvent(plugin))
+        lifecycleBus(plugin).runEvent(PluginDisableEvent(plugin), parent = true)
     }
 
     /** Unload a plugin. */
@@ -142,8 +146,9 @@ class PluginLoader<T : IPlugin>(val directory: String) {
     /** Unload a plugin by its name. */
     fun unloadPlugin(name: String) {
         plugins.entries.find { it.key.name == name }?.apply {
-            if(EventRegister.runEvent(PluginUnLoadEvent(this.key))) {
+            if(getEventBus(this.key).runEvent(PluginUnLoadEvent(this.key), parent = true)) {
                 disablePlugin(this.key)
+                closeEventBus(this.key)
                 this.value.close()
                 plugins.remove(this.key)
             }
@@ -163,7 +168,8 @@ class PluginLoader<T : IPlugin>(val directory: String) {
         var (plugin, classLoader) = loadMainClassPlugin(file.toURI().toURL())
 
         plugin?.run {
-            if(!EventRegister.runEvent(PluginLoadEvent(this))) {
+            if(!getEventBus(this).runEvent(PluginLoadEvent(this), parent = true)) {
+                closeEventBus(this)
                 classLoader?.close()
                 plugins.remove(this)
                 plugin = null
@@ -183,8 +189,9 @@ class PluginLoader<T : IPlugin>(val directory: String) {
         while(iter.hasNext()) {
             val entry = iter.next()
 
-            if(EventRegister.runEvent(PluginUnLoadEvent(entry.key))) {
+            if(getEventBus(entry.key).runEvent(PluginUnLoadEvent(entry.key), parent = true)) {
                 disablePlugin(entry.key)
+                closeEventBus(entry.key)
                 entry.value.close()
                 iter.remove()
             }
@@ -193,6 +200,30 @@ class PluginLoader<T : IPlugin>(val directory: String) {
 
     fun getPlugins() = plugins.keys
 
+    /**
+     * Returns the event bus of a loaded plugin. Its events bubble up to [EventRegister], and it is closed,
+     * with every listener registered on it, when the plugin is unloaded.
+     *
+     * @throws IllegalStateException if the plugin isn't loaded by this loader.
+     */
+    fun getEventBus(plugin: IPlugin): EventBus {
+        val classLoader = (plugins as Map<IPlugin, URLClassLoader>)[plugin] ?: throw IllegalStateException("The plugin ${plugin.name} isn't loaded")
+        return eventBuses.getOrPut(plugin) { EventRegister.createChild(classLoader) }
+    }
+
+    /** The bus of a loaded plugin, or [EventRegister] for a plugin this loader doesn't hold (anymore). */
+    private fun lifecycleBus(plugin: IPlugin): EventBus =
+        if((plugins as Map<IPlugin, URLClassLoader>).containsKey(plugin)) getEventBus(plugin) else EventRegister
+
+    /**
+     * Closes the event bus of a plugin being unloaded, which also marks its class loader as closed
+     * for [EventBus.findClassLoaderLeaks].
+     */
+    private fun closeEventBus(plugin: T) {
+        getEventBus(plugin).close()
+        eventBuses.remove(plugin)
+    }
+
     private fun loadMainClassPlugin(jarUrl: URL): Pair<T?, URLClassLoader?> {
         val classLoader = URLClassLoader(arrayOf(jarUrl))
 
@@ -200,7 +231,7 @@ class PluginLoader<T : IPlugin>(val directory: String) {
 
         if(!properties.containsKey("main")) {
             classLoader.close()
-            EventRegister.runEvent(PluginCanNotLoadEvent(jarUrl.toString()))
+            EventRegister.runEvent(PluginCanNotLoadEvent(jarUrl.toString()), parent = true)
             return Pair(null, null)
         }
 
@@ -210,7 +241,7 @@ class PluginLoader<T : IPlugin>(val directory: String) {
             classLoader.loadClass(defaultClass) as Class<out T>
         } catch(exception: ClassNotFoundException) {
             exception.printStackTrace()
-            EventRegister.runEvent(PluginCanNotLoadEvent(jarUrl.toString()))
+            EventRegister.runEvent(PluginCanNotLoadEvent(jarUrl.toString()), parent = true)
             null
         } ?: return Pair(null, null)
 
@@ -221,7 +252,7 @@ class PluginLoader<T : IPlugin>(val directory: String) {
         val matchedPlugin = plugins.keys.find { it.name == plugin.name }
 
         if(matchedPlugin != null) {
-            EventRegister.runEvent(PluginAlreadyLoadedEvent(matchedPlugin))
+            EventRegister.runEvent(PluginAlreadyLoadedEvent(matchedPlugin), parent = true)
             classLoader.close()
             return Pair(null, null)
         }
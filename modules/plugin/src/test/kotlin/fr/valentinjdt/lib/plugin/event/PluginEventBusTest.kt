@@ -0,0 +1,118 @@
+package fr.valentinjdt.lib.plugin.event
+
+import fr.valentinjdt.lib.event.Event
+import fr.valentinjdt.lib.event.EventHandler
+import fr.valentinjdt.lib.event.EventRegister
+import fr.valentinjdt.lib.event.Listener
+import fr.valentinjdt.lib.plugin.Plugin
+import fr.valentinjdt.lib.plugin.PluginLoader
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class PluginEventBusTest {
+
+    @TempDir
+    lateinit var tempDir: File
+
+    private lateinit var listener: RecordingListener
+
+    @BeforeEach
+    fun setup() {
+        // Reset the EventRegister before each test
+        EventRegister.removeAllListeners()
+
+        listener = RecordingListener()
+        EventRegister.registerListener(listener)
+
+        writePluginJar(File(tempDir, "bus-plugin.jar"))
+    }
+
+    @AfterEach
+    fun tearDown() {
+        EventRegister.removeListener(listener)
+    }
+
+    @Test
+    fun `plugin event bus lives as long as the plugin`() {
+        val loader = PluginLoader<Plugin>(tempDir.absolutePath)
+        val plugin = loader.getPlugins().single()
+
+        // The bus is created on load, as a child of EventRegister owned by the plugin class loader
+        val bus = loader.getEventBus(plugin)
+        assertTrue(bus in EventRegister.children)
+        val classLoader = assertNotNull(bus.classLoader)
+        assertEquals(listOf("PluginLoadEvent"), listener.received)
+
+        // Lifecycle events reach the listeners of EventRegister
+        listener.received.clear()
+        loader.enablePlugin(plugin)
+        assertEquals(listOf("PluginPreEnableEvent", "PluginEnableEvent"), listener.received)
+
+        // An event type of the plugin jar bubbles up to EventRegister, which indexes it
+        val eventType = classLoader.loadClass(PACKAGED_EVENT)
+        assertSame(classLoader, eventType.classLoader)
+        plugin.eventBus.runEvent(eventType.getDeclaredConstructor().newInstance() as Event, parent = true)
+        assertEquals(eventType.simpleName, listener.received.last())
+
+        // Unloading closes the bus, and EventRegister forgets the event types of the plugin
+        loader.unloadPlugin(plugin)
+        assertTrue(bus.isClosed)
+        assertFalse(bus in EventRegister.children)
+        assertTrue(EventRegister.findClassLoaderLeaks().isEmpty())
+        assertFailsWith<IllegalStateException> { loader.getEventBus(plugin) }
+
+        // A plugin that isn't loaded anymore dispatches its lifecycle events on EventRegister
+        listener.received.clear()
+        loader.disablePlugin(plugin)
+        assertEquals(listOf("PluginPreDisableEvent", "PluginDisableEvent"), listener.received)
+    }
+
+    /**
+     * Writes a plugin jar whose main class comes from the test class path, and with an event type
+     * that only the jar has, so it is loaded by the plugin class loader.
+     */
+    private fun writePluginJar(file: File) {
+        val template = TemplateEvent::class.java
+        val bytes = template.getResourceAsStream(template.simpleName + ".class")!!.use { it.readBytes() }
+        // Same length names, so the constant pool stays valid
+        val renamed = String(bytes, Charsets.ISO_8859_1)
+            .replace(template.simpleName, PACKAGED_EVENT.substringAfterLast('.'))
+            .toByteArray(Charsets.ISO_8859_1)
+
+        JarOutputStream(file.outputStream()).use { jar ->
+            jar.putNextEntry(JarEntry("plugin.properties"))
+            jar.write("name=bus-plugin\nmain=${BusPlugin::class.java.name}\n".toByteArray())
+            jar.putNextEntry(JarEntry(PACKAGED_EVENT.replace('.', '/') + ".class"))
+            jar.write(renamed)
+            jar.closeEntry()
+        }
+    }
+
+    class BusPlugin : Plugin()
+
+    class RecordingListener : Listener() {
+        val received = mutableListOf<String>()
+
+        @EventHandler
+        fun onPluginEvent(event: PluginEvent) {
+            received += event::class.java.simpleName
+        }
+    }
+
+    companion object {
+        private const val PACKAGED_EVENT = "fr.valentinjdt.lib.plugin.event.PackagedEvent"
+    }
+}
+
+class TemplateEvent : PluginEvent("template")
@@ -18,10 +18,7 @@ class PluginEventTest {
     @BeforeEach
     fun setup() {
         // Reset the EventRegister before each test
-        val field = EventRegister::class.java.getDeclaredField("listeners")
-        field.isAccessible = true
-        val listeners = field.get(null) as ArrayList<*>
-        listeners.clear()
+        EventRegister.removeAllListeners()
 
         testPlugin = TestPlugin("test-plugin", "Test Plugin Description", "4.1.2")
         testPlugin.jarUrl = URL("file:///test/plugin.jar")